@@ -238,6 +238,7 @@ public class Allowed extends SQLiteOpenHelper {
                     }
                 } catch (Exception ignore) {}
                 
+                ToyVpnService.blocklistChanged();
                 Log.d(TAG, "Added to blacklist: " + domain);
                 return true;
             }
@@ -258,6 +259,7 @@ public class Allowed extends SQLiteOpenHelper {
                 blacklistCache.remove(domain.toLowerCase());
                 blockedIPs.remove(domain.toLowerCase());
                 blockedIPs.remove("." + domain.toLowerCase());
+                ToyVpnService.blocklistChanged();
                 Log.d(TAG, "Removed from blacklist: " + domain);
                 return true;
             }
@@ -380,6 +382,7 @@ public class Allowed extends SQLiteOpenHelper {
                 } catch (Exception ignore) {}
             }
             c.close();
+            ToyVpnService.blocklistChanged();
 
             Log.d(TAG, "Loaded blacklist entries: " + blockedIPs.size());
         } catch (Exception e) {
@@ -0,0 +1,277 @@
+package com.netsniff.app;
+
+import android.util.Log;
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Size-classed pool of direct buffers for packets on their way to the TUN.
+// Shards borrow a buffer, fill it and submit it to the TunWriter, which
+// returns it here once the write completes. Free lists are array backed so
+// neither borrowing nor returning allocates once the pool is warm.
+//
+// Packets read from the TUN come from here too: one more class of heap
+// buffers of the TUN's MTU, which the dispatcher reads into and the shard
+// handling the packet gives back. Heap, since the handlers parse array().
+//
+// Debug builds remember where every outstanding buffer was borrowed so that
+// leaks and double releases can be traced back to their call site.
+public class BufferPool {
+    private static final String TAG = "BufferPool";
+
+    // 64: RST/ACK, 2048: one MTU packet, 16K/64K: large datagrams and jumbo MTU
+    private static final int[] CLASS_SIZES = { 64, 256, 2048, 16384, 65536 };
+    private static final int[] CLASS_RETAIN = { 1024, 256, 2048, 64, 16 };
+    // Free TUN packets kept, by bytes so a jumbo MTU keeps fewer of them
+    private static final int PACKET_RETAIN_BYTES = 4 * 1024 * 1024;
+    private static final int MIN_PACKET_RETAIN = 64;
+    private static final int MAX_PACKET_RETAIN = 4096;
+
+    private final ArrayBlockingQueue<ByteBuffer>[] freeLists;
+    private final AtomicLong[] allocations;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong oversized = new AtomicLong(0);
+    private final AtomicLong outstanding = new AtomicLong(0);
+    
+    private final int packetSize;
+    private final ArrayBlockingQueue<ByteBuffer> freePackets;
+    private final AtomicLong packetAllocations = new AtomicLong(0);
+
+    private final boolean trackLeaks;
+    private final Map<ByteBuffer, Borrow> borrowed;
+
+    private static class Borrow {
+        final long time;
+        final Throwable site;
+
+        Borrow(long time, Throwable site) {
+            this.time = time;
+            this.site = site;
+        }
+    }
+
+    // A pooled buffer with more than one holder, e.g. a TCP segment that is
+    // queued on the TunWriter and kept for retransmission at the same time.
+    // The last release returns the buffer to the pool.
+    static final class Shared {
+        final ByteBuffer buffer;
+        private final BufferPool pool;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Shared(BufferPool pool, ByteBuffer buffer) {
+            this.pool = pool;
+            this.buffer = buffer;
+        }
+
+        Shared retain() {
+            refs.incrementAndGet();
+            return this;
+        }
+
+        void release() {
+            int remaining = refs.decrementAndGet();
+            if (remaining == 0) {
+                pool.release(buffer);
+            } else if (remaining < 0) {
+                Log.w(TAG, "Shared buffer released too often", new Throwable("released here"));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    BufferPool(int packetSize, boolean trackLeaks) {
+        this.packetSize = packetSize;
+        this.freePackets = new ArrayBlockingQueue<>(
+            Math.max(MIN_PACKET_RETAIN, Math.min(MAX_PACKET_RETAIN, PACKET_RETAIN_BYTES / packetSize)));
+        this.trackLeaks = trackLeaks;
+        this.borrowed = trackLeaks ? new IdentityHashMap<>() : null;
+        this.freeLists = new ArrayBlockingQueue[CLASS_SIZES.length];
+        this.allocations = new AtomicLong[CLASS_SIZES.length];
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            freeLists[i] = new ArrayBlockingQueue<>(CLASS_RETAIN[i]);
+            allocations[i] = new AtomicLong(0);
+        }
+    }
+
+    private static int classFor(int size) {
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            if (size <= CLASS_SIZES[i]) return i;
+        }
+        return -1;
+    }
+
+    // Borrow a cleared buffer with its limit set to size
+    ByteBuffer acquire(int size) {
+        int sizeClass = classFor(size);
+        ByteBuffer buffer;
+
+        if (sizeClass < 0) {
+            oversized.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(size);
+        } else {
+            buffer = freeLists[sizeClass].poll();
+            if (buffer != null) {
+                hits.incrementAndGet();
+            } else {
+                allocations[sizeClass].incrementAndGet();
+                buffer = ByteBuffer.allocateDirect(CLASS_SIZES[sizeClass]);
+            }
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        borrow(buffer);
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        // A heap TUN packet submitted as is goes back to its own free list
+        if (isPacket(buffer)) {
+            releasePacket(buffer);
+            return;
+        }
+        if (buffer == null || !giveBack(buffer)) return;
+
+        int sizeClass = classFor(buffer.capacity());
+        if (sizeClass >= 0 && buffer.isDirect() && buffer.capacity() == CLASS_SIZES[sizeClass]) {
+            freeLists[sizeClass].offer(buffer);
+        }
+    }
+
+    // Borrow a cleared heap buffer of packetSize for one TUN read
+    ByteBuffer acquirePacket() {
+        ByteBuffer buffer = freePackets.poll();
+        if (buffer != null) {
+            hits.incrementAndGet();
+            buffer.clear();
+        } else {
+            packetAllocations.incrementAndGet();
+            buffer = ByteBuffer.allocate(packetSize);
+        }
+        borrow(buffer);
+        return buffer;
+    }
+
+    // Give back a TUN packet. Anything else a shard handles in its place, a
+    // reassembled datagram or out-of-order data, is not pooled and ignored.
+    void releasePacket(ByteBuffer buffer) {
+        if (!isPacket(buffer) || !giveBack(buffer)) return;
+        freePackets.offer(buffer);
+    }
+
+    boolean isPacket(ByteBuffer buffer) {
+        return buffer != null && !buffer.isDirect() && buffer.capacity() == packetSize;
+    }
+
+    int getPacketSize() {
+        return packetSize;
+    }
+
+    private void borrow(ByteBuffer buffer) {
+        outstanding.incrementAndGet();
+        if (trackLeaks) {
+            synchronized (borrowed) {
+                borrowed.put(buffer, new Borrow(System.currentTimeMillis(), new Throwable("borrowed here")));
+            }
+        }
+    }
+
+    // False for a buffer that is not out on loan
+    private boolean giveBack(ByteBuffer buffer) {
+        if (trackLeaks) {
+            synchronized (borrowed) {
+                if (borrowed.remove(buffer) == null) {
+                    Log.w(TAG, "Release of buffer not borrowed from pool (double release?)",
+                        new Throwable("released here"));
+                    return false;
+                }
+            }
+        }
+        outstanding.decrementAndGet();
+        return true;
+    }
+
+    // Wrap a borrowed buffer for shared ownership; the caller holds the first reference
+    Shared share(ByteBuffer buffer) {
+        return new Shared(this, buffer);
+    }
+
+    // Debug builds only: log buffers held longer than maxAgeMs with their borrow site
+    int reportLeaks(long maxAgeMs) {
+        if (!trackLeaks) return 0;
+
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        List<Borrow> leaks = new ArrayList<>();
+        synchronized (borrowed) {
+            for (Borrow borrow : borrowed.values()) {
+                if (borrow.time < cutoff) leaks.add(borrow);
+            }
+        }
+
+        for (Borrow leak : leaks) {
+            Log.w(TAG, "Buffer held for " + (System.currentTimeMillis() - leak.time) + " ms", leak.site);
+        }
+        return leaks.size();
+    }
+
+    // Buffers created so far, TUN packets included; stops growing once
+    // forwarding reaches steady state
+    long getAllocations() {
+        long total = packetAllocations.get();
+        for (AtomicLong count : allocations) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    long getOutstanding() {
+        return outstanding.get();
+    }
+
+    JSObject getStats() {
+        JSArray classes = new JSArray();
+        long totalAllocations = 0;
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            JSObject o = new JSObject();
+            o.put("size", CLASS_SIZES[i]);
+            o.put("allocations", allocations[i].get());
+            o.put("free", freeLists[i].size());
+            classes.put(o);
+            totalAllocations += allocations[i].get();
+        }
+        JSObject packets = new JSObject();
+        packets.put("size", packetSize);
+        packets.put("allocations", packetAllocations.get());
+        packets.put("free", freePackets.size());
+        totalAllocations += packetAllocations.get();
+
+        JSObject stats = new JSObject();
+        stats.put("allocations", totalAllocations);
+        stats.put("hits", hits.get());
+        stats.put("oversized", oversized.get());
+        stats.put("outstanding", outstanding.get());
+        stats.put("classes", classes);
+        stats.put("packets", packets);
+        return stats;
+    }
+
+    void clear() {
+        for (ArrayBlockingQueue<ByteBuffer> freeList : freeLists) {
+            freeList.clear();
+        }
+        freePackets.clear();
+        if (trackLeaks) {
+            synchronized (borrowed) {
+                borrowed.clear();
+            }
+        }
+    }
+}
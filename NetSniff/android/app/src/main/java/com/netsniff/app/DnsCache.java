@@ -0,0 +1,258 @@
+package com.netsniff.app;
+
+import com.getcapacitor.JSObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Engine-wide cache of DNS answers, shared by all shards. Responses are kept
+// as received together with the offsets of their TTL fields; a hit copies the
+// stored message, takes the transaction ID and question from the new query
+// and counts every TTL down by the time spent in the cache. Entries expire
+// with their lowest TTL and the least recently used go first when full.
+public class DnsCache {
+    static final int MAX_ENTRIES = 1024;
+    static final int MAX_MESSAGE = ToyVpnService.DEFAULT_MTU - 28;  // must fit one UDP packet back to the app
+    private static final long MAX_TTL_S = 3600;
+    private static final long MAX_NEGATIVE_TTL_S = 300;  // NXDOMAIN / no data, RFC 2308
+    private static final int HEADER_LEN = 12;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_OPT = 41;
+    private static final int FLAG_CD = 0x0010;
+    private static final int EDNS_DO = 0x8000;
+
+    private static class Entry {
+        final byte[] message;
+        final int[] ttlOffsets;
+        final int[] ttls;
+        final long storedAt;
+        final long expiresAt;
+
+        Entry(byte[] message, int[] ttlOffsets, int[] ttls, long storedAt, long expiresAt) {
+            this.message = message;
+            this.ttlOffsets = ttlOffsets;
+            this.ttls = ttls;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong stored = new AtomicLong(0);
+
+    // Cache key of a standard query with a single question, or null for
+    // anything that should always go upstream
+    static String queryKey(byte[] msg, int offset, int length) {
+        if (length < HEADER_LEN) return null;
+        int flags = readShort(msg, offset + 2);
+        if ((flags & 0x8000) != 0 || (flags & 0x7800) != 0) return null;  // response, or not QUERY
+        if (readShort(msg, offset + 4) != 1) return null;
+        if (readShort(msg, offset + 6) != 0 || readShort(msg, offset + 8) != 0) return null;
+        return questionKey(msg, offset, length);
+    }
+
+    // Key of the question a response answers, to match it against its query
+    static String responseKey(byte[] msg, int offset, int length) {
+        if (length < HEADER_LEN) return null;
+        if ((readShort(msg, offset + 2) & 0x8000) == 0 || readShort(msg, offset + 4) != 1) return null;
+        return questionKey(msg, offset, length);
+    }
+
+    // Lower-cased name, type and class. EDNS queries get their own entries
+    // since their answers may be larger, and so do the DO and CD bits: DO
+    // asks for DNSSEC records, CD for answers that failed validation.
+    private static String questionKey(byte[] msg, int offset, int length) {
+        int end = offset + length;
+        int pos = offset + HEADER_LEN;
+        StringBuilder key = new StringBuilder(64);
+        while (pos < end) {
+            int labelLen = msg[pos] & 0xFF;
+            if (labelLen == 0) break;
+            if ((labelLen & 0xC0) != 0 || pos + 1 + labelLen > end) return null;
+            for (int i = pos + 1; i <= pos + labelLen; i++) {
+                char c = (char) (msg[i] & 0xFF);
+                key.append(c >= 'A' && c <= 'Z' ? (char) (c + 32) : c);
+            }
+            key.append('.');
+            pos += 1 + labelLen;
+        }
+        if (pos + 5 > end) return null;
+        key.append('/').append(readShort(msg, pos + 1))
+           .append('/').append(readShort(msg, pos + 3));
+        int edns = ednsFlags(msg, offset, pos + 5, end);
+        if (edns >= 0) key.append((edns & EDNS_DO) != 0 ? "/ed" : "/e");
+        if ((readShort(msg, offset + 2) & FLAG_CD) != 0) key.append("/c");
+        return key.toString();
+    }
+
+    // Flags of the OPT record, -1 if the message has none. OPT sits in the
+    // additional section, so any answer and authority records are skipped.
+    private static int ednsFlags(byte[] msg, int offset, int pos, int end) {
+        int additional = readShort(msg, offset + 10);
+        if (additional == 0) return -1;
+        int records = readShort(msg, offset + 6) + readShort(msg, offset + 8) + additional;
+        for (int i = 0; i < records; i++) {
+            pos = skipName(msg, pos, end);
+            if (pos < 0 || pos + 10 > end) return -1;
+            if (readShort(msg, pos) == TYPE_OPT) return readShort(msg, pos + 6);
+            pos += 10 + readShort(msg, pos + 8);
+        }
+        return -1;
+    }
+
+    // Write the cached answer to a query into out; returns its length, or -1 on a miss
+    int answer(String key, byte[] query, int queryOffset, byte[] out, long now) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && now >= entry.expiresAt) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return -1;
+        }
+        hits.incrementAndGet();
+
+        byte[] message = entry.message;
+        System.arraycopy(message, 0, out, 0, message.length);
+        // Same key, so the question has the same length; its case may differ (0x20 randomisation)
+        int questionEnd = skipName(message, HEADER_LEN, message.length) + 4;
+        System.arraycopy(query, queryOffset, out, 0, 2);
+        System.arraycopy(query, queryOffset + HEADER_LEN, out, HEADER_LEN, questionEnd - HEADER_LEN);
+
+        long elapsed = (now - entry.storedAt) / 1000;
+        for (int i = 0; i < entry.ttlOffsets.length; i++) {
+            writeInt(out, entry.ttlOffsets[i], (int) Math.max(0, entry.ttls[i] - elapsed));
+        }
+        return message.length;
+    }
+
+    // Keep a successful or negative answer from upstream for as long as its TTLs allow
+    void store(byte[] msg, int offset, int length, long now) {
+        if (length < HEADER_LEN || length > MAX_MESSAGE) return;
+        int flags = readShort(msg, offset + 2);
+        if ((flags & 0x8000) == 0 || (flags & 0x0200) != 0) return;  // not a response, or truncated
+        int rcode = flags & 0x000F;
+        if (rcode != 0 && rcode != 3) return;
+        if (readShort(msg, offset + 4) != 1) return;
+
+        String key = questionKey(msg, offset, length);
+        if (key == null) return;
+
+        int answers = readShort(msg, offset + 6);
+        int authority = readShort(msg, offset + 8);
+        int records = answers + authority + readShort(msg, offset + 10);
+        boolean negative = answers == 0 || rcode != 0;
+        int[] ttlOffsets = new int[records];
+        int[] ttls = new int[records];
+        int count = 0;
+        long minTtl = Long.MAX_VALUE;
+        boolean hasSoa = false;
+
+        int end = offset + length;
+        int pos = skipName(msg, offset + HEADER_LEN, end);
+        if (pos < 0) return;
+        pos += 4;
+        for (int i = 0; i < records; i++) {
+            pos = skipName(msg, pos, end);
+            if (pos < 0 || pos + 10 > end) return;
+            int type = readShort(msg, pos);
+            int rdLength = readShort(msg, pos + 8);
+            // OPT carries EDNS flags where the TTL would be
+            if (type != TYPE_OPT) {
+                long ttl = readInt(msg, pos + 4) & 0xFFFFFFFFL;
+                // RFC 2308: a negative answer lives for the lesser of the
+                // SOA's TTL and its MINIMUM, the last field of its data
+                if (negative && type == TYPE_SOA && i >= answers && i < answers + authority
+                        && rdLength >= 22 && pos + 10 + rdLength <= end) {
+                    ttl = Math.min(ttl, readInt(msg, pos + 6 + rdLength) & 0xFFFFFFFFL);
+                    hasSoa = true;
+                }
+                ttlOffsets[count] = pos + 4 - offset;
+                ttls[count] = (int) Math.min(ttl, Integer.MAX_VALUE);
+                count++;
+                minTtl = Math.min(minTtl, ttl);
+            }
+            pos += 10 + rdLength;
+        }
+        if (pos > end || count == 0) return;
+        // Without an SOA there is no say in how long a negative answer holds
+        if (negative && !hasSoa) return;
+
+        long ttl = Math.min(minTtl, negative ? MAX_NEGATIVE_TTL_S : MAX_TTL_S);
+        if (ttl <= 0) return;
+
+        byte[] message = new byte[length];
+        System.arraycopy(msg, offset, message, 0, length);
+        if (count < records) {
+            int[] trimmed = new int[count];
+            System.arraycopy(ttlOffsets, 0, trimmed, 0, count);
+            ttlOffsets = trimmed;
+            trimmed = new int[count];
+            System.arraycopy(ttls, 0, trimmed, 0, count);
+            ttls = trimmed;
+        }
+
+        Entry entry = new Entry(message, ttlOffsets, ttls, now, now + ttl * 1000);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+        stored.incrementAndGet();
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    JSObject getStats() {
+        JSObject stats = new JSObject();
+        synchronized (entries) {
+            stats.put("entries", entries.size());
+        }
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("stored", stored.get());
+        return stats;
+    }
+
+    // Offset just past a name, following no compression pointer; -1 if malformed
+    private static int skipName(byte[] msg, int pos, int end) {
+        while (pos < end) {
+            int labelLen = msg[pos] & 0xFF;
+            if (labelLen == 0) return pos + 1;
+            if ((labelLen & 0xC0) == 0xC0) return pos + 2 <= end ? pos + 2 : -1;
+            if ((labelLen & 0xC0) != 0) return -1;
+            pos += 1 + labelLen;
+        }
+        return -1;
+    }
+
+    private static int readShort(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16)
+            | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,313 @@
+package com.netsniff.app;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Upstream side of the DNS stage. Cache misses for the VPN's resolvers go out
+// through a few protected sockets per shard, connected to the resolvers,
+// rather than a socket per query. Queries are told apart by a rewritten
+// transaction ID. When racing, a query goes to every resolver at once and
+// the first usable answer wins; otherwise retries move on to the next
+// resolver. A reply must repeat the question exactly, case included, which
+// makes 0x20-randomised names part of what an off-path forger has to guess,
+// along with the ID and the source port. Sockets are replaced every
+// QUERIES_PER_SOCKET queries or SOCKET_LIFETIME_MS so that port keeps
+// changing too. Owned by a single shard thread.
+public class DnsForwarder {
+    private static final String TAG = "DnsForwarder";
+    static final long QUERY_TIMEOUT_MS = 1000;
+    static final int MAX_ATTEMPTS = 3;
+    private static final int SOCKETS_PER_RESOLVER = 2;
+    static final int QUERIES_PER_SOCKET = 64;
+    private static final long SOCKET_LIFETIME_MS = 30000;
+    private static final int MAX_PENDING = 1024;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_REFUSED = 5;
+
+    // One connected, protected socket to a resolver. A replaced socket is
+    // kept as retired until queries sent through it have had their time.
+    static class Upstream {
+        final int resolver;
+        final InetSocketAddress server;
+        DatagramChannel channel;
+        int queries;
+        long openedAt;
+        DatagramChannel retired;
+        long retiredAt;
+
+        Upstream(int resolver, InetSocketAddress server) {
+            this.resolver = resolver;
+            this.server = server;
+        }
+    }
+
+    static class Pending {
+        final TimerWheel.Timer timer = new TimerWheel.Timer(this);
+        final int upstreamId;
+        final int queryId;
+        final byte[] query;  // carries upstreamId
+        final int sourceAddr;
+        final int sourcePort;
+        final int destAddr;  // resolver the app asked, the reply comes from it
+        final int uid;
+        int attempts;
+        int waiting;  // resolvers of this attempt yet to answer
+
+        Pending(int upstreamId, int queryId, byte[] query,
+                int sourceAddr, int sourcePort, int destAddr, int uid) {
+            this.upstreamId = upstreamId;
+            this.queryId = queryId;
+            this.query = query;
+            this.sourceAddr = sourceAddr;
+            this.sourcePort = sourcePort;
+            this.destAddr = destAddr;
+            this.uid = uid;
+        }
+    }
+
+    private final ToyVpnService service;
+    private final Selector selector;
+    private final boolean race;
+    private final int[] resolverAddrs;
+    private final Upstream[] upstreams;
+    private final HashMap<Integer, Pending> pending = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private int nextSocket;
+
+    private final AtomicLong forwarded = new AtomicLong(0);
+    private final AtomicLong retries = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong mismatched = new AtomicLong(0);
+    private final AtomicLong rotations = new AtomicLong(0);
+    private final AtomicLong[] wins;
+
+    DnsForwarder(ToyVpnService service, Selector selector, String[] resolvers, boolean race) {
+        this.service = service;
+        this.selector = selector;
+        this.race = race;
+        this.resolverAddrs = new int[resolvers.length];
+        this.upstreams = new Upstream[resolvers.length * SOCKETS_PER_RESOLVER];
+        this.wins = new AtomicLong[resolvers.length];
+        for (int i = 0; i < resolvers.length; i++) {
+            // Literal addresses, so no lookup happens here
+            InetSocketAddress server = new InetSocketAddress(resolvers[i], 53);
+            resolverAddrs[i] = ByteBuffer.wrap(server.getAddress().getAddress()).getInt();
+            wins[i] = new AtomicLong(0);
+            for (int j = 0; j < SOCKETS_PER_RESOLVER; j++) {
+                upstreams[j * resolvers.length + i] = new Upstream(i, server);
+            }
+        }
+    }
+
+    // Only queries to the VPN's own resolvers are ours to answer
+    boolean handles(int destAddr) {
+        for (int addr : resolverAddrs) {
+            if (addr == destAddr) return true;
+        }
+        return false;
+    }
+
+    // Send a query upstream under a fresh ID; null if it was dropped, in
+    // which case the app's own retry will try again
+    Pending send(byte[] data, int offset, int length,
+                 int sourceAddr, int sourcePort, int destAddr, int uid) {
+        if (pending.size() >= MAX_PENDING) return null;
+
+        int upstreamId;
+        do {
+            upstreamId = random.nextInt(65536);
+        } while (pending.containsKey(upstreamId));
+
+        byte[] query = new byte[length];
+        System.arraycopy(data, offset, query, 0, length);
+        int queryId = ((query[0] & 0xFF) << 8) | (query[1] & 0xFF);
+        query[0] = (byte) (upstreamId >>> 8);
+        query[1] = (byte) upstreamId;
+
+        Pending p = new Pending(upstreamId, queryId, query, sourceAddr, sourcePort, destAddr, uid);
+        if (!transmit(p)) return null;
+        pending.put(upstreamId, p);
+        forwarded.incrementAndGet();
+        return p;
+    }
+
+    // Resend after a timeout; false once the query has used its attempts
+    boolean retry(Pending p) {
+        if (p.attempts >= MAX_ATTEMPTS || !transmit(p)) {
+            pending.remove(p.upstreamId);
+            timeouts.incrementAndGet();
+            return false;
+        }
+        retries.incrementAndGet();
+        return true;
+    }
+
+    private boolean transmit(Pending p) {
+        int resolvers = resolverAddrs.length;
+        int first = race ? 0 : p.attempts % resolvers;
+        int count = race ? resolvers : 1;
+        p.attempts++;
+        p.waiting = 0;
+
+        ByteBuffer query = ByteBuffer.wrap(p.query);
+        long now = System.currentTimeMillis();
+        for (int i = first; i < first + count; i++) {
+            Upstream upstream = socketFor(i % resolvers, now);
+            if (upstream == null) continue;
+            try {
+                query.rewind();
+                upstream.channel.write(query);
+                upstream.queries++;
+                p.waiting++;
+            } catch (IOException e) {
+                Log.w(TAG, "Upstream send failed: " + upstream.server, e);
+                close(upstream, upstream.channel);
+            }
+        }
+        return p.waiting > 0;
+    }
+
+    // Sockets are opened on first use, reopened after an error and replaced
+    // once worn out. The socket before the current one is closed when the
+    // current one is retired in turn, which waits until it has been retired
+    // for a full query timeout.
+    private Upstream socketFor(int resolver, long now) {
+        int resolvers = resolverAddrs.length;
+        int slot = (nextSocket++ % SOCKETS_PER_RESOLVER) * resolvers + resolver;
+        Upstream upstream = upstreams[slot];
+        if (upstream.channel != null) {
+            boolean wornOut = upstream.queries >= QUERIES_PER_SOCKET
+                || now - upstream.openedAt >= SOCKET_LIFETIME_MS;
+            if (!wornOut || (upstream.retired != null && now - upstream.retiredAt < QUERY_TIMEOUT_MS)) {
+                return upstream;
+            }
+            closeChannel(upstream.retired);
+            upstream.retired = upstream.channel;
+            upstream.retiredAt = now;
+            upstream.channel = null;
+            rotations.incrementAndGet();
+        }
+        try {
+            // Unbound, so the system picks a fresh random source port
+            DatagramChannel channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            service.protect(channel.socket());
+            channel.connect(upstream.server);
+            channel.register(selector, SelectionKey.OP_READ, upstream);
+            upstream.channel = channel;
+            upstream.queries = 0;
+            upstream.openedAt = now;
+            return upstream;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open upstream socket: " + upstream.server, e);
+            return null;
+        }
+    }
+
+    // Match an upstream reply to its query. Returns the query once it has its
+    // answer, with the app's ID restored in data; null for replies that are
+    // late, forged or a failure while another resolver may still do better.
+    Pending onResponse(Upstream upstream, byte[] data, int length) {
+        if (length < 12) return null;
+        int upstreamId = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+        Pending p = pending.get(upstreamId);
+        if (p == null) return null;
+        // EDNS is left out: a resolver may answer without an OPT record, and
+        // that answer is better than a timeout
+        if ((data[2] & 0x80) == 0 || !sameQuestion(p.query, data, length)) {
+            mismatched.incrementAndGet();
+            return null;
+        }
+
+        int rcode = data[3] & 0x0F;
+        if ((rcode == RCODE_SERVFAIL || rcode == RCODE_REFUSED) && --p.waiting > 0) return null;
+
+        pending.remove(upstreamId);
+        wins[upstream.resolver].incrementAndGet();
+        data[0] = (byte) (p.queryId >>> 8);
+        data[1] = (byte) p.queryId;
+        return p;
+    }
+
+    // The single question, name byte for byte, type and class, as sent
+    private static boolean sameQuestion(byte[] query, byte[] data, int length) {
+        if (((data[4] & 0xFF) << 8 | (data[5] & 0xFF)) != 1) return false;
+        int pos = 12;
+        while (pos < query.length && query[pos] != 0) {
+            pos += 1 + (query[pos] & 0xFF);
+        }
+        int questionEnd = pos + 5;
+        if (questionEnd > query.length || questionEnd > length) return false;
+        for (int i = 12; i < questionEnd; i++) {
+            if (query[i] != data[i]) return false;
+        }
+        return true;
+    }
+
+    // Close whichever of the upstream's sockets failed
+    void close(Upstream upstream, DatagramChannel channel) {
+        if (channel == upstream.channel) {
+            upstream.channel = null;
+        } else if (channel == upstream.retired) {
+            upstream.retired = null;
+        }
+        closeChannel(channel);
+    }
+
+    private void closeChannel(DatagramChannel channel) {
+        if (channel == null) return;
+        try {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null) key.cancel();
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing upstream socket", e);
+        }
+    }
+
+    void closeAll() {
+        for (Upstream upstream : upstreams) {
+            close(upstream, upstream.channel);
+            close(upstream, upstream.retired);
+        }
+        pending.clear();
+    }
+
+    long getForwarded() {
+        return forwarded.get();
+    }
+
+    long getRetries() {
+        return retries.get();
+    }
+
+    long getTimeouts() {
+        return timeouts.get();
+    }
+
+    long getMismatched() {
+        return mismatched.get();
+    }
+
+    long getRotations() {
+        return rotations.get();
+    }
+
+    // Answers taken from each resolver, in configuration order
+    long[] getWins() {
+        long[] result = new long[wins.length];
+        for (int i = 0; i < wins.length; i++) {
+            result[i] = wins[i].get();
+        }
+        return result;
+    }
+}
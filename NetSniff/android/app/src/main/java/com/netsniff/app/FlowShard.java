@@ -0,0 +1,2053 @@
+package com.netsniff.app;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One worker of the flow engine. The dispatcher hashes each packet's 5-tuple
+// to a shard, so a shard's Selector and connection maps are only ever touched
+// by its own thread.
+public class FlowShard implements Runnable {
+    private static final String TAG = "FlowShard";
+    private static final int DEFAULT_MTU = ToyVpnService.DEFAULT_MTU;
+    private static final int MAX_PACKET_SIZE = ToyVpnService.MAX_PACKET_SIZE;
+    private static final int INBOX_BUDGET = 64; // packets per pass before servicing sockets
+    private static final int INBOX_CAPACITY = 4096; // beyond this the dispatcher drops
+    private static final int UDP_READ_BUDGET = 16; // datagrams per readable event
+    private static final long LEAK_REPORT_INTERVAL_MS = 5000;
+    private static final long LEAK_REPORT_AGE_MS = 10000;
+    
+    // Idle timeouts by TCP state; handshakes and half-closed flows go quickly
+    private static final long TCP_HANDSHAKE_TIMEOUT_MS = 20000;
+    private static final long TCP_ESTABLISHED_TIMEOUT_MS = 60000;
+    private static final long TCP_CLOSE_WAIT_TIMEOUT_MS = 30000;
+    private static final long TCP_FIN_WAIT_TIMEOUT_MS = 10000;
+    
+    // Idle timeouts by UDP destination port
+    private static final long UDP_DNS_TIMEOUT_MS = 5000;
+    private static final long UDP_QUIC_TIMEOUT_MS = 60000;
+    private static final long UDP_DEFAULT_TIMEOUT_MS = 30000;
+    
+    private static final long SEQ_MASK = 0xFFFFFFFFL;
+    private static final long WRITER_RETRY_MS = 2; // poll interval while the TunWriter is backlogged
+    private static final int MAX_RETRANSMITS = 8;  // per segment, then the flow is reset
+    private static final int MAX_SACK_BLOCKS = 4;  // fills the 40 option bytes
+    // Delayed ACK (RFC 1122, RFC 5681): ACK every second full segment, or this
+    // long after the first unacknowledged one
+    private static final long ACK_DELAY_MS = 40;
+    private static final int WINDOW_HISTORY_FLOWS = 16;  // closed flows kept for stats
+    
+    // Per-flow socket read size adapts between these to the flow's throughput
+    private static final int MIN_READ_SIZE = 4096;
+    private static final int INITIAL_READ_SIZE = 16384;
+    private static final int MAX_READ_SIZE = 65536;
+    
+    private static final int IP_HEADER_LEN = 20;
+    private static final int IPV6_HEADER_LEN = 40;
+    private static final int TCP_HEADER_LEN = 20;
+    private static final int UDP_HEADER_LEN = 8;
+    private static final int MAX_UDP_PAYLOAD = 65535 - IP_HEADER_LEN - UDP_HEADER_LEN;
+    
+    public static final int TCP_IDLE = 0;
+    public static final int TCP_SYN_SENT = 1;
+    public static final int TCP_SYN_RECEIVED = 2;
+    public static final int TCP_ESTABLISHED = 3;
+    public static final int TCP_FIN_WAIT = 4;
+    public static final int TCP_CLOSE_WAIT = 5;
+    public static final int TCP_CLOSING = 6;
+    public static final int TCP_CLOSED = 7;
+    
+    private final ToyVpnService service;
+    private final int index;
+    private final int mtu;  // of the TUN; 1500 up to 64K in jumbo mode
+    // What the first IPv4 fragment of a datagram carries: its IP payload must
+    // be a multiple of 8, and the UDP header takes 8 of it
+    private final int firstFragmentPayload;
+    private final TunWriter writer;
+    private final BufferPool pool;
+    private final MemoryBudget memory;
+    private final DnsCache dnsCache;
+    private final UidResolver uidResolver;
+    private final Selector selector;
+    private final DnsForwarder dnsForwarder;
+    private final FragmentReassembler reassembler;
+    // Pooled TUN packets from the dispatcher; array backed, so handing one
+    // over allocates nothing
+    private final ArrayBlockingQueue<ByteBuffer> inbox = new ArrayBlockingQueue<>(INBOX_CAPACITY);
+    private boolean packetKept;  // set by a handler that holds on to its packet
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
+    private final AtomicLong packetsProcessed = new AtomicLong(0);
+    private final AtomicLong inboxDrops = new AtomicLong(0);
+    private final AtomicLong flowsExpired = new AtomicLong(0);
+    private final AtomicLong windowStalls = new AtomicLong(0);
+    private final AtomicLong writerStalls = new AtomicLong(0);
+    private final AtomicLong memoryStalls = new AtomicLong(0);
+    private final AtomicLong memoryDrops = new AtomicLong(0);
+    private final AtomicLong retransmits = new AtomicLong(0);
+    private final AtomicLong fastRetransmits = new AtomicLong(0);
+    private final AtomicLong outOfOrderSegments = new AtomicLong(0);
+    private final AtomicLong cutThroughBytes = new AtomicLong(0);
+    private final AtomicLong coalescedAcks = new AtomicLong(0);
+    private final AtomicLong windowGrowths = new AtomicLong(0);
+    private final AtomicLong fragmentsSent = new AtomicLong(0);
+    // Buffer growth of recently closed flows that were tuned, newest last
+    private final ArrayDeque<String> windowHistory = new ArrayDeque<>();
+    private volatile boolean running = true;
+    private Thread thread;
+    
+    // Reused for every socket read on this shard; reads are consumed before the next one
+    private final ByteBuffer udpReadBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    
+    // Pooled packets a TCP read is scattered into, and the start of its payload
+    // kept for the packet log once the packets are gone
+    private final ByteBuffer[] scatterBuffers = new ByteBuffer[128];
+    
+    // A UDP read fills one standard MTU packet first; the rest of a larger
+    // datagram lands here and goes to the app in a jumbo packet or as IPv4
+    // fragments
+    private final ByteBuffer datagramOverflow = ByteBuffer.allocateDirect(MAX_UDP_PAYLOAD);
+    private final ByteBuffer[] datagramScatter = new ByteBuffer[2];
+    private final byte[] previewScratch = new byte[32];
+    
+    // Cached DNS answers are assembled here before going into a packet
+    private final byte[] dnsScratch = new byte[DnsCache.MAX_MESSAGE];
+    
+    // Scratch array for gathering writes of a flow's forwardQueue
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[64];
+    
+    private final FlowTable<TcpConnection> tcpConnections = new FlowTable<>();
+    private final FlowTable<UdpConnection> udpConnections = new FlowTable<>();
+    private final TimerWheel timers = new TimerWheel(System.currentTimeMillis());
+    private final ArrayList<TimerWheel.Timer> expiredTimers = new ArrayList<>();
+    
+    // IP IDs of fragmented datagrams toward the app, unique across shards
+    private static final AtomicInteger fragmentIds = new AtomicInteger(new Random().nextInt());
+    
+    // Flows whose socket reads are parked until the TunWriter drains and the
+    // memory budget has room again
+    private final ArrayList<TcpConnection> pressureStalled = new ArrayList<>();
+
+    public static class TcpConnection {
+        SocketChannel channel;
+        String key;  // "src:port-dst:port", for logs only
+        long flowKey0;
+        long flowKey1;
+        String sourceIp;
+        int sourcePort;
+        String destIp;
+        int destPort;
+        long lastActivity;
+        volatile int uid;  // the guess until UidResolver finds the owner
+        final TimerWheel.Timer idleTimer = new TimerWheel.Timer(this);
+        int blocklistGeneration;  // when destIp was last checked against the blocklist
+        
+        int state;
+        long localSeq;
+        long remoteSeq;
+        long localSeqStart;
+        long remoteSeqStart;
+        long remoteAck;  // highest ACK from the app; localSeq - remoteAck is in flight
+        int sendWindow;  // app's receive window, scaled
+        int recvWindow;  // receive buffer toward the app, grown by the tuner
+        int lastAdvertised;  // free space we last told the app about
+        int mss;
+        boolean windowScaleSupported;
+        int recvScale;
+        int sendScale;
+        boolean sackPermitted;
+        
+        // Socket reads are paused (OP_READ off) while either is set
+        boolean windowStalled;  // in-flight bytes fill the app's window
+        boolean pressureStalled;  // TunWriter backlogged or memory budget spent
+        
+        final RetransmitQueue retransmit = new RetransmitQueue(this);
+        final WindowTuner tuner;
+        long connectStarted;
+        
+        // In-order data received but not acknowledged yet; the ACK timer
+        // sends it if no data segment toward the app carries it first
+        final TimerWheel.Timer ackTimer = new TimerWheel.Timer(this);
+        int unackedBytes;
+        int unackedSegments;
+        
+        // remoteSeq is kept unwrapped (64 bit) so reassembly can order by it
+        final ReassemblyBuffer reassembly = new ReassemblyBuffer();
+        final long[] sackScratch = new long[MAX_SACK_BLOCKS * 2];
+        
+        int readSize;       // bytes per socket read, grows while reads fill it
+        // Contiguous data for the remote, in order. Chunks are the pooled TUN
+        // packets the data arrived in, between position and limit, or data
+        // that filled a hole; partial writes just advance position.
+        ArrayDeque<ByteBuffer> forwardQueue;
+        int forwardBytes;
+        long forwardHeld;   // capacity of the queued chunks, what they really pin
+        long charged;       // bytes charged to the memory budget
+        ByteBuffer pendingWrite;
+        
+        // Prebuilt IPv4 or IPv6 + TCP header toward the app; only length, seq,
+        // ack, flags, window and checksums are patched per segment
+        byte[] headerTemplate;
+        int ipHeaderLen;
+        long ipHeaderSum;    // IPv4 header sum without total length
+        long tcpPseudoSum;   // pseudo-header + ports, without TCP length
+
+        TcpConnection(long flowKey0, long flowKey1, String sourceIp, int sourcePort,
+                      String destIp, int destPort, int uid) {
+            this.flowKey0 = flowKey0;
+            this.flowKey1 = flowKey1;
+            this.sourceIp = sourceIp;
+            this.sourcePort = sourcePort;
+            this.destIp = destIp;
+            this.destPort = destPort;
+            this.key = sourceIp + ":" + sourcePort + "-" + destIp + ":" + destPort;
+            this.uid = uid;
+            this.lastActivity = System.currentTimeMillis();
+            this.tuner = new WindowTuner(lastActivity);
+            this.readSize = INITIAL_READ_SIZE;
+            this.forwardQueue = new ArrayDeque<>();
+            this.state = TCP_IDLE;
+            this.localSeq = (long) (Math.random() * 0xFFFFFFFFL);
+            this.localSeqStart = this.localSeq;
+            this.remoteSeq = 0;
+            this.remoteSeqStart = 0;
+            this.remoteAck = this.localSeq;
+            this.sendWindow = 65535;
+            this.recvWindow = 65535;
+            this.mss = 1460;
+            this.windowScaleSupported = false;
+            this.recvScale = 0;
+            this.sendScale = 0;
+        }
+    }
+    
+    public static class UdpConnection {
+        DatagramChannel channel;
+        String key;  // "src:port-dst:port", for logs only
+        long flowKey0;
+        long flowKey1;
+        String sourceIp;
+        int sourcePort;
+        String destIp;
+        int destPort;
+        long lastActivity;
+        volatile int uid;  // the guess until UidResolver finds the owner
+        final TimerWheel.Timer idleTimer = new TimerWheel.Timer(this);
+        int blocklistGeneration;  // when destIp was last checked against the blocklist
+        
+        // Prebuilt IPv4 or IPv6 + UDP header toward the app
+        byte[] headerTemplate;
+        int ipHeaderLen;
+        long ipHeaderSum;    // IPv4 header sum without total length
+        long udpPseudoSum;   // pseudo-header + ports, without the two length fields
+        
+        UdpConnection(long flowKey0, long flowKey1, String sourceIp, int sourcePort,
+                      String destIp, int destPort, int uid) {
+            this.flowKey0 = flowKey0;
+            this.flowKey1 = flowKey1;
+            this.sourceIp = sourceIp;
+            this.sourcePort = sourcePort;
+            this.destIp = destIp;
+            this.destPort = destPort;
+            this.key = sourceIp + ":" + sourcePort + "-" + destIp + ":" + destPort;
+            this.uid = uid;
+            this.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    FlowShard(ToyVpnService service, int index, TunWriter writer, BufferPool pool,
+              MemoryBudget memory, DnsCache dnsCache, UidResolver uidResolver, int mtu,
+              boolean raceDns) throws IOException {
+        this.service = service;
+        this.index = index;
+        this.mtu = mtu;
+        this.firstFragmentPayload = ((mtu - IP_HEADER_LEN) & ~7) - UDP_HEADER_LEN;
+        this.writer = writer;
+        this.pool = pool;
+        this.memory = memory;
+        this.dnsCache = dnsCache;
+        this.uidResolver = uidResolver;
+        this.selector = Selector.open();
+        this.dnsForwarder = new DnsForwarder(service, selector, ToyVpnService.DNS_SERVERS, raceDns);
+        this.reassembler = new FragmentReassembler(timers);
+    }
+    
+    void start() {
+        thread = new Thread(this, "VPN-Shard-" + index);
+        thread.start();
+    }
+    
+    // Called from the dispatcher thread; takes ownership of the packet
+    void enqueue(ByteBuffer packet) {
+        if (!inbox.offer(packet)) {
+            inboxDrops.incrementAndGet();
+            pool.releasePacket(packet);
+            return;
+        }
+        if (sleeping.compareAndSet(true, false)) {
+            selector.wakeup();
+        }
+    }
+    
+    int getIndex() {
+        return index;
+    }
+    
+    long getPacketsProcessed() {
+        return packetsProcessed.get();
+    }
+    
+    long getInboxDrops() {
+        return inboxDrops.get();
+    }
+    
+    int getTcpFlowCount() {
+        return tcpConnections.size();
+    }
+    
+    int getUdpFlowCount() {
+        return udpConnections.size();
+    }
+    
+    long getFlowsExpired() {
+        return flowsExpired.get();
+    }
+    
+    long getWindowStalls() {
+        return windowStalls.get();
+    }
+    
+    long getWriterStalls() {
+        return writerStalls.get();
+    }
+    
+    long getMemoryStalls() {
+        return memoryStalls.get();
+    }
+    
+    long getMemoryDrops() {
+        return memoryDrops.get();
+    }
+    
+    long getRetransmits() {
+        return retransmits.get();
+    }
+    
+    long getFastRetransmits() {
+        return fastRetransmits.get();
+    }
+    
+    long getOutOfOrderSegments() {
+        return outOfOrderSegments.get();
+    }
+    
+    long getCutThroughBytes() {
+        return cutThroughBytes.get();
+    }
+    
+    long getCoalescedAcks() {
+        return coalescedAcks.get();
+    }
+    
+    long getWindowGrowths() {
+        return windowGrowths.get();
+    }
+    
+    long getDnsForwarded() {
+        return dnsForwarder.getForwarded();
+    }
+    
+    long getDnsRetries() {
+        return dnsForwarder.getRetries();
+    }
+    
+    long getDnsTimeouts() {
+        return dnsForwarder.getTimeouts();
+    }
+    
+    long getDnsMismatched() {
+        return dnsForwarder.getMismatched();
+    }
+    
+    long getDnsRotations() {
+        return dnsForwarder.getRotations();
+    }
+    
+    long[] getDnsWins() {
+        return dnsForwarder.getWins();
+    }
+    
+    long getFragmentsSent() {
+        return fragmentsSent.get();
+    }
+    
+    long getFragmentsReceived() {
+        return reassembler.getFragments();
+    }
+    
+    long getDatagramsReassembled() {
+        return reassembler.getReassembled();
+    }
+    
+    long getFragmentDrops() {
+        return reassembler.getDropped();
+    }
+    
+    List<String> getWindowHistory() {
+        synchronized (windowHistory) {
+            return new ArrayList<>(windowHistory);
+        }
+    }
+    
+    // Sleeps in select() until a socket is ready, the dispatcher hands over a
+    // packet (selector.wakeup()) or the next flow timer is due
+    @Override
+    public void run() {
+        Log.d(TAG, "Shard " + index + " started");
+        // Only shard 0 reports pool leaks
+        long nextLeakReport = index == 0 ? System.currentTimeMillis() + LEAK_REPORT_INTERVAL_MS : Long.MAX_VALUE;
+        
+        try {
+            while (running && !Thread.interrupted()) {
+                int handled = 0;
+                ByteBuffer packet;
+                while (handled < INBOX_BUDGET && (packet = inbox.poll()) != null) {
+                    packetKept = false;
+                    handlePacket(packet);
+                    if (!packetKept) pool.releasePacket(packet);
+                    handled++;
+                }
+                packetsProcessed.addAndGet(handled);
+                
+                long now = System.currentTimeMillis();
+                long timeout = Math.min(timers.millisUntilNext(now), nextLeakReport - now);
+                if (!pressureStalled.isEmpty()) {
+                    timeout = Math.min(timeout, WRITER_RETRY_MS);
+                }
+                sleeping.set(true);
+                if (!inbox.isEmpty()) {
+                    sleeping.set(false);
+                    selector.selectNow();
+                } else {
+                    if (timeout == Long.MAX_VALUE) {
+                        selector.select();
+                    } else {
+                        selector.select(Math.max(1, timeout));
+                    }
+                    sleeping.set(false);
+                }
+                
+                processSocketEvents();
+                resumePressureStalled();
+                
+                now = System.currentTimeMillis();
+                expireFlows(now);
+                if (now >= nextLeakReport) {
+                    pool.reportLeaks(LEAK_REPORT_AGE_MS);
+                    nextLeakReport = now + LEAK_REPORT_INTERVAL_MS;
+                }
+            }
+        } catch (Exception e) {
+            if (running) {
+                Log.e(TAG, "Error in shard " + index, e);
+            }
+        } finally {
+            Log.d(TAG, "Shard " + index + " stopped");
+        }
+    }
+    
+    void stop() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(1000);
+        }
+        
+        List<TcpConnection> tcpFlows = new ArrayList<>();
+        tcpConnections.values(tcpFlows);
+        for (TcpConnection conn : tcpFlows) {
+            closeTcpConnection(conn);
+        }
+        tcpConnections.clear();
+        
+        List<UdpConnection> udpFlows = new ArrayList<>();
+        udpConnections.values(udpFlows);
+        for (UdpConnection conn : udpFlows) {
+            closeUdpConnection(conn);
+        }
+        udpConnections.clear();
+        dnsForwarder.closeAll();
+        reassembler.clear();
+        timers.clear();
+        pressureStalled.clear();
+        
+        ByteBuffer packet;
+        while ((packet = inbox.poll()) != null) {
+            pool.releasePacket(packet);
+        }
+        try {
+            if (selector.isOpen()) selector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing selector", e);
+        }
+    }
+    
+    private void handlePacket(ByteBuffer buffer) {
+        try {
+            byte[] packet = buffer.array();
+            int length = buffer.limit();
+            int versionAndIHL = buffer.get(0) & 0xFF;
+            int version = (versionAndIHL >> 4) & 0xF;
+            
+            int ihl;
+            int protocol;
+            if (version == 4) {
+                if (FragmentReassembler.isFragment(packet)) {
+                    // The whole datagram goes back through the dispatcher, since
+                    // its ports pick the shard that owns the flow
+                    byte[] datagram = reassembler.add(packet, length, System.currentTimeMillis());
+                    if (datagram != null) service.dispatchReassembled(datagram);
+                    return;
+                }
+                ihl = (versionAndIHL & 0xF) * 4;
+                protocol = buffer.get(9) & 0xFF;
+            } else if (version == 6 && length >= IPV6_HEADER_LEN) {
+                // Extension headers are not followed: apps send TCP and UDP
+                // directly after the fixed header
+                ihl = IPV6_HEADER_LEN;
+                protocol = buffer.get(6) & 0xFF;
+                length = Math.min(length, IPV6_HEADER_LEN + (buffer.getShort(4) & 0xFFFF));
+            } else {
+                return;
+            }
+            
+            if (protocol == 6) {
+                handleTcpPacket(buffer, ihl, length);
+            } else if (protocol == 17) {
+                handleUdpPacket(buffer, ihl, length);
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error handling packet", e);
+        }
+    }
+    
+    private void handleTcpPacket(ByteBuffer buffer, int ihl, int totalLength) {
+        try {
+            buffer.position(ihl);
+            int sourcePort = buffer.getShort() & 0xFFFF;
+            int destPort = buffer.getShort() & 0xFFFF;
+            long seq = buffer.getInt() & 0xFFFFFFFFL;
+            long ackSeq = buffer.getInt() & 0xFFFFFFFFL;
+            
+            int dataOffsetAndFlags = buffer.getShort() & 0xFFFF;
+            int tcpHeaderLen = ((dataOffsetAndFlags >> 12) & 0xF) * 4;
+            
+            byte flags = buffer.get(ihl + 13);
+            boolean syn = (flags & 0x02) != 0;
+            boolean ack = (flags & 0x10) != 0;
+            boolean fin = (flags & 0x01) != 0;
+            boolean rst = (flags & 0x04) != 0;
+            boolean psh = (flags & 0x08) != 0;
+            
+            int window = buffer.getShort(ihl + 14) & 0xFFFF;
+            
+            int headerSize = ihl + tcpHeaderLen;
+            int dataSize = totalLength - headerSize;
+            
+            long k0 = flowKey0(buffer);
+            long k1 = flowKey1(buffer, sourcePort, destPort, 6);
+            TcpConnection conn = tcpConnections.get(k0, k1);
+            if (conn != null && !isFlowPacket(conn.headerTemplate, buffer)) {
+                Log.w(TAG, "IPv6 flow key collision, dropping packet for " + conn.key);
+                return;
+            }
+
+            if (rst) {
+                if (conn != null) {
+                    closeTcpConnection(conn);
+                    tcpConnections.remove(k0, k1);
+                }
+                return;
+            }
+            
+            // Established flows look at the blocklist again only once it has
+            // changed, and are reset if their destination has joined it
+            int blocklistGeneration = service.getBlocklistGeneration();
+            if (conn == null) {
+                if (service.isBlockedIp(destIp(buffer))) {
+                    Log.d(TAG, "Blocked TCP to: " + destIp(buffer));
+                    return;
+                }
+            } else if (conn.blocklistGeneration != blocklistGeneration) {
+                conn.blocklistGeneration = blocklistGeneration;
+                if (service.isBlockedIp(conn.destIp)) {
+                    Log.d(TAG, "Blocked TCP to: " + conn.destIp);
+                    sendTcpReset(conn);
+                    closeTcpConnection(conn);
+                    tcpConnections.remove(k0, k1);
+                    return;
+                }
+            }
+            
+            if (syn && !ack && conn != null) {
+                // The app retransmitted its SYN, so our SYN-ACK was lost
+                if (conn.state == TCP_SYN_RECEIVED) {
+                    conn.localSeq--;
+                    sendTcpSynAck(conn);
+                    conn.localSeq++;
+                }
+                return;
+            }
+            
+            if (syn && !ack) {
+                int uid = service.getMostLikelyActiveUid();
+                
+                int mss = 1460;
+                int ws = 0;
+                boolean wsSupported = false;
+                boolean sackPermitted = false;
+                int optLen = tcpHeaderLen - 20;
+                int optPos = ihl + 20;
+                
+                while (optLen > 0 && optPos < buffer.limit()) {
+                    int kind = buffer.get(optPos) & 0xFF;
+                    if (kind == 0) break;
+                    if (kind == 1) {
+                        optLen--;
+                        optPos++;
+                        continue;
+                    }
+                    
+                    int len = buffer.get(optPos + 1) & 0xFF;
+                    if (len < 2) break;  // malformed, would never advance
+                    if (kind == 2 && len == 4) {
+                        mss = buffer.getShort(optPos + 2) & 0xFFFF;
+                    } else if (kind == 3 && len == 3) {
+                        ws = buffer.get(optPos + 2) & 0xFF;
+                        wsSupported = true;
+                    } else if (kind == 4 && len == 2) {
+                        sackPermitted = true;
+                    }
+                    
+                    optLen -= len;
+                    optPos += len;
+                }
+                
+                conn = new TcpConnection(k0, k1, sourceIp(buffer), sourcePort, destIp(buffer), destPort, uid);
+                conn.blocklistGeneration = blocklistGeneration;
+                initTcpTemplate(conn, buffer);
+                conn.remoteSeq = seq + 1;  // SYN consumes 1 sequence number
+                conn.remoteSeqStart = seq;
+                conn.sendWindow = window;
+                // Same clamp whatever the MTU: a jumbo TUN gets segments of up to 64K
+                conn.mss = Math.min(mss, mtu - conn.ipHeaderLen - TCP_HEADER_LEN);
+                conn.windowScaleSupported = wsSupported;
+                conn.sendScale = wsSupported ? ws : 0;
+                conn.recvScale = wsSupported ? 7 : 0;  // cale factor
+                conn.sackPermitted = sackPermitted;
+                
+                try {
+                    conn.channel = SocketChannel.open();
+                    conn.channel.configureBlocking(false);
+                    conn.channel.socket().setTcpNoDelay(true);
+                    conn.channel.socket().setSendBufferSize(WindowTuner.INITIAL_BUFFER);
+                    conn.channel.socket().setReceiveBufferSize(WindowTuner.INITIAL_BUFFER);
+                    service.protect(conn.channel.socket());
+                    
+                    InetSocketAddress remote = new InetSocketAddress(conn.destIp, destPort);
+                    conn.connectStarted = System.currentTimeMillis();
+                    conn.channel.connect(remote);
+                    
+                    conn.state = TCP_SYN_SENT;
+                    
+                    conn.channel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ, conn);
+                    tcpConnections.put(k0, k1, conn);
+                    scheduleTcpTimeout(conn);
+                    resolveOwner(conn);
+                    
+                    Log.d(TAG, "New TCP connection: " + conn.key + " MSS=" + conn.mss);
+                    
+                    service.notifyPacketOptimized(buffer.array(), totalLength, "outgoing", uid, 
+                                        conn.sourceIp, sourcePort, conn.destIp, destPort, 6);
+                    
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to create TCP socket", e);
+                    sendTcpReset(buffer, 0, seq + 1);
+                }
+                return;
+            }
+            
+            if (conn == null) {
+                Log.w(TAG, "No connection for packet: " + sourceIp(buffer) + ":" + sourcePort
+                    + "-" + destIp(buffer) + ":" + destPort);
+                if (!syn) {
+                    sendTcpReset(buffer, ackSeq, seq + dataSize + (fin ? 1 : 0));
+                }
+                return;
+            }
+            
+            long now = System.currentTimeMillis();
+            conn.lastActivity = now;
+            
+            // Update window
+            int previousWindow = conn.sendWindow;
+            if (conn.windowScaleSupported) {
+                conn.sendWindow = window << conn.sendScale;
+            } else {
+                conn.sendWindow = window;
+            }
+            
+            // Handle ACK
+            if (ack) {
+                // Ignore stale or reordered ACKs, and anything acking data never sent
+                long acked = (ackSeq - conn.remoteAck) & SEQ_MASK;
+                if (acked > 0 && acked <= bytesInFlight(conn)) {
+                    conn.remoteAck = ackSeq;
+                    onTcpAckAdvanced(conn, ackSeq, now);
+                } else if (acked == 0 && dataSize == 0 && !fin && conn.sendWindow == previousWindow
+                           && bytesInFlight(conn) > 0 && conn.retransmit.onDuplicateAck()) {
+                    fastRetransmits.incrementAndGet();
+                    retransmitFirst(conn, now);
+                }
+                
+                if (conn.state == TCP_SYN_RECEIVED && ackSeq == (conn.localSeq & SEQ_MASK)) {
+                    conn.state = TCP_ESTABLISHED;
+                    scheduleTcpTimeout(conn);
+                    Log.d(TAG, "TCP established: " + conn.key);
+                    
+                    // forward any queued data, and start reading the remote
+                    if (!conn.forwardQueue.isEmpty()) {
+                        flushForwardQueue(conn);
+                    }
+                    updateInterestOps(conn);
+                }
+                
+                // ACK or window update opened the app's window again
+                if (conn.windowStalled && sendWindowAvailable(conn) > 0) {
+                    conn.windowStalled = false;
+                    updateInterestOps(conn);
+                }
+            }
+            
+            // Handle data, positioned relative to remoteSeq so wraparound is harmless
+            long segmentStart = conn.remoteSeq + (int) (seq - conn.remoteSeq);
+            if (dataSize > 0) {
+                if (conn.state == TCP_ESTABLISHED || conn.state == TCP_CLOSE_WAIT) {
+                    long segmentEnd = segmentStart + dataSize;
+                    
+                    if (segmentEnd <= conn.remoteSeq) {
+                        // Old segment: our ACK was probably lost, repeat it now
+                        sendTcpAck(conn);
+                        
+                    } else if (segmentStart <= conn.remoteSeq
+                               && (conn.forwardQueue.isEmpty() || !memory.isExhausted())) {
+                        // In order, possibly overlapping bytes we already have. The
+                        // pooled packet itself is queued, narrowed to its payload,
+                        // and goes back to the pool once the socket has taken it all.
+                        int skip = (int) (conn.remoteSeq - segmentStart);
+                        buffer.limit(headerSize + dataSize);
+                        buffer.position(headerSize + skip);
+                        conn.forwardQueue.add(buffer);
+                        conn.forwardHeld += buffer.capacity();
+                        packetKept = true;
+                        conn.forwardBytes += dataSize - skip;
+                        conn.remoteSeq = segmentEnd;
+                        
+                        // The hole may be closed now
+                        boolean filledHole = !conn.reassembly.isEmpty();
+                        byte[] next;
+                        while ((next = conn.reassembly.pollContiguous(conn.remoteSeq)) != null) {
+                            conn.forwardQueue.add(ByteBuffer.wrap(next));
+                            conn.forwardBytes += next.length;
+                            conn.forwardHeld += next.length;
+                            conn.remoteSeq += next.length;
+                        }
+                        
+                        // A filled hole is acknowledged at once so the app's
+                        // recovery ends quickly, anything else may wait
+                        if (filledHole) {
+                            sendTcpAck(conn);
+                        } else {
+                            delayAck(conn, dataSize - skip, now);
+                        }
+                        
+                        // Cut-through: write now rather than after the next select
+                        boolean direct = conn.forwardQueue.size() == 1;
+                        int before = conn.forwardBytes;
+                        flushForwardQueue(conn);
+                        if (direct) cutThroughBytes.addAndGet(before - conn.forwardBytes);
+                        
+                    } else if (memory.isExhausted()) {
+                        // No room to hold it; the app retransmits once the budget frees up
+                        memoryDrops.incrementAndGet();
+                        
+                    } else {
+                        // Out of order: hold it unless it lies beyond the advertised window
+                        if (segmentEnd - conn.remoteSeq <= receiveWindowAvailable(conn)) {
+                            conn.reassembly.insert(segmentStart, buffer.array(), headerSize, dataSize,
+                                                   conn.remoteSeq);
+                        }
+                        outOfOrderSegments.incrementAndGet();
+                        
+                        // Duplicate ACK, with SACK blocks if negotiated
+                        sendTcpAck(conn);
+                    }
+                }
+            }
+            
+            // Handle FIN, once everything before it has arrived
+            if (fin && segmentStart + dataSize == conn.remoteSeq) {
+                if (conn.state == TCP_ESTABLISHED) {
+                    conn.state = TCP_CLOSE_WAIT;
+                    scheduleTcpTimeout(conn);
+                    conn.remoteSeq++;  // FIN consumes 1 sequence number
+                    sendTcpAck(conn);
+                    
+                    // Try to close our side too
+                    try {
+                        conn.channel.shutdownInput();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error shutting down input", e);
+                    }
+                    
+                    Log.d(TAG, "TCP FIN received: " + conn.key);
+                } else if (conn.state == TCP_FIN_WAIT) {
+                    conn.remoteSeq++;
+                    sendTcpAck(conn);
+                    closeTcpConnection(conn);
+                    tcpConnections.remove(k0, k1);
+                }
+            }
+            
+            updateMemoryCharge(conn);
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error handling TCP packet", e);
+        }
+    }
+    
+    private void processSocketEvents() {
+        try {
+            if (!selector.selectedKeys().isEmpty()) {
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    
+                    if (!key.isValid()) continue;
+                    
+                    Object attachment = key.attachment();
+                    
+                    if (attachment instanceof TcpConnection) {
+                        TcpConnection conn = (TcpConnection) attachment;
+                        
+                        try {
+                            if (key.isValid() && key.isConnectable()) {
+                                handleTcpConnect(conn, key);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                handleTcpRead(conn);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flushForwardQueue(conn);
+                            }
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error processing TCP key: " + conn.key, e);
+                            closeTcpConnection(conn);
+                            tcpConnections.remove(conn.flowKey0, conn.flowKey1);
+                        }
+                        
+                    } else if (attachment instanceof DnsForwarder.Upstream) {
+                        if (key.isReadable()) {
+                            handleDnsUpstreamRead((DnsForwarder.Upstream) attachment,
+                                                  (DatagramChannel) key.channel());
+                        }
+                        
+                    } else if (attachment instanceof UdpConnection) {
+                        UdpConnection conn = (UdpConnection) attachment;
+                        
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                handleUdpRead(conn);
+                            }
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error processing UDP key: " + conn.key, e);
+                            closeUdpConnection(conn);
+                            udpConnections.remove(conn.flowKey0, conn.flowKey1);
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing socket events", e);
+        }
+    }
+    
+    private void handleTcpConnect(TcpConnection conn, SelectionKey key) {
+        try {
+            if (conn.channel.finishConnect()) {
+                conn.tuner.setRtt(System.currentTimeMillis() - conn.connectStarted);
+                Log.d(TAG, "TCP connected: " + conn.key + " RTT=" + conn.tuner.getRtt() + "ms");
+                
+                conn.state = TCP_SYN_RECEIVED;
+                scheduleTcpTimeout(conn);
+                
+                // Send SYN-ACK
+                sendTcpSynAck(conn);
+                conn.localSeq++;
+                
+                updateInterestOps(conn);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to complete connection: " + conn.key, e);
+            sendTcpReset(conn);
+            closeTcpConnection(conn);
+            tcpConnections.remove(conn.flowKey0, conn.flowKey1);
+        }
+    }
+    
+    private void handleTcpRead(TcpConnection conn) {
+        try {
+            // Never read more than the app can accept; the rest waits in the
+            // socket's receive buffer and TCP pushes back on the remote
+            long available = sendWindowAvailable(conn);
+            if (available <= 0) {
+                conn.windowStalled = true;
+                windowStalls.incrementAndGet();
+                updateInterestOps(conn);
+                return;
+            }
+            if (writer.isBacklogged() || memory.isExhausted()) {
+                conn.pressureStalled = true;
+                pressureStalled.add(conn);
+                if (memory.isExhausted()) {
+                    memoryStalls.incrementAndGet();
+                } else {
+                    writerStalls.incrementAndGet();
+                }
+                updateInterestOps(conn);
+                return;
+            }
+            
+            int limit = (int) Math.min(conn.readSize, Math.min(available, memory.available()));
+            long bytesRead = readSegments(conn, limit);
+            
+            if (bytesRead > 0) {
+                long now = System.currentTimeMillis();
+                conn.lastActivity = now;
+                if (conn.tuner.addDownloaded(bytesRead, now)) {
+                    tuneWindows(conn, now);
+                }
+                
+                // Grow the read size for flows that keep filling it, shrink it for trickles
+                if (bytesRead == conn.readSize && conn.readSize < MAX_READ_SIZE) {
+                    conn.readSize <<= 1;
+                } else if (bytesRead < conn.readSize / 4 && conn.readSize > MIN_READ_SIZE) {
+                    conn.readSize >>= 1;
+                }
+                updateMemoryCharge(conn);
+                
+                service.notifyPacketOptimized(previewScratch, (int) bytesRead, "incoming", conn.uid, 
+                    conn.destIp, conn.destPort, conn.sourceIp, conn.sourcePort, 6);
+                    
+            } else if (bytesRead < 0) {
+                Log.d(TAG, "TCP remote closed: " + conn.key);
+                
+                if (conn.state == TCP_ESTABLISHED) {
+                    conn.state = TCP_FIN_WAIT;
+                    scheduleTcpTimeout(conn);
+                    sendTcpFinAck(conn);
+                } else {
+                    closeTcpConnection(conn);
+                    tcpConnections.remove(conn.flowKey0, conn.flowKey1);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading from TCP socket: " + conn.key, e);
+            closeTcpConnection(conn);
+            tcpConnections.remove(conn.flowKey0, conn.flowKey1);
+        }
+    }
+    
+    // Scatter a socket read straight into pooled packets, one MSS each, behind
+    // a gap left for the headers. The kernel's copy into the direct buffer is
+    // the only one: each filled buffer gets its headers written in place and
+    // goes to the TunWriter and the retransmit queue as it is.
+    private long readSegments(TcpConnection conn, int limit) throws IOException {
+        ByteBuffer[] scatter = scatterBuffers;
+        // Data segments carry no options, so the payload always starts here
+        int gap = conn.ipHeaderLen + TCP_HEADER_LEN;
+        int mss = conn.mss;
+        int count = Math.min(scatter.length, (limit + mss - 1) / mss);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer packet = pool.acquire(gap + Math.min(mss, limit - i * mss));
+            packet.position(gap);
+            scatter[i] = packet;
+        }
+        
+        long bytesRead;
+        int sent = 0;
+        try {
+            bytesRead = conn.channel.read(scatter, 0, count);
+            if (bytesRead > 0) {
+                // Copy the preview for the packet log before the first segment is shared
+                ByteBuffer first = scatter[0];
+                int preview = (int) Math.min(previewScratch.length, bytesRead);
+                for (int i = 0; i < preview; i++) {
+                    previewScratch[i] = first.get(gap + i);
+                }
+            }
+            
+            // The read fills buffers in order, so stop at the first empty one
+            for (; sent < count && scatter[sent].position() > gap; sent++) {
+                ByteBuffer packet = scatter[sent];
+                scatter[sent] = null;
+                int payloadSize = packet.position() - gap;
+                writeTcpHeader(conn, packet, 0x0010, 0, 0, payloadSize);
+                sendRetransmittable(conn, packet, payloadSize);
+                conn.localSeq += payloadSize;
+            }
+        } finally {
+            for (int i = sent; i < count; i++) {
+                pool.release(scatter[i]);
+                scatter[i] = null;
+            }
+        }
+        return bytesRead;
+    }
+    
+    // Gathering write of as much of the forwardQueue as the socket takes
+    private void flushForwardQueue(TcpConnection conn) {
+        if (conn.state == TCP_CLOSED) return;
+        try {
+            ByteBuffer[] chain = gatherBuffers;
+            long total = 0;
+            while (!conn.forwardQueue.isEmpty()) {
+                int count = 0;
+                long requested = 0;
+                for (ByteBuffer chunk : conn.forwardQueue) {
+                    chain[count++] = chunk;
+                    requested += chunk.remaining();
+                    if (count == chain.length) break;
+                }
+                
+                long written = conn.channel.write(chain, 0, count);
+                Arrays.fill(chain, 0, count, null);
+                
+                conn.forwardBytes -= written;
+                total += written;
+                while (!conn.forwardQueue.isEmpty() && !conn.forwardQueue.peekFirst().hasRemaining()) {
+                    ByteBuffer done = conn.forwardQueue.pollFirst();
+                    conn.forwardHeld -= done.capacity();
+                    pool.releasePacket(done);
+                }
+                // Socket send buffer is full, the rest waits for OP_WRITE
+                if (written < requested) break;
+            }
+            updateInterestOps(conn);
+            updateMemoryCharge(conn);
+            
+            if (total > 0) {
+                long now = System.currentTimeMillis();
+                if (conn.tuner.addUploaded(total, now)) {
+                    tuneWindows(conn, now);
+                }
+                // Tell the app once at least half its window has reopened,
+                // rather than waiting for it to probe a closed one
+                int half = conn.recvWindow / 2;
+                if (conn.state >= TCP_ESTABLISHED && conn.lastAdvertised < half
+                        && receiveWindowAvailable(conn) >= half) {
+                    sendTcpAck(conn);
+                }
+            }
+            
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing to TCP socket: " + conn.key, e);
+            closeTcpConnection(conn);
+            tcpConnections.remove(conn.flowKey0, conn.flowKey1);
+        }
+    }
+    
+    // Free space in the receive buffer toward the app
+    private static int receiveWindowAvailable(TcpConnection conn) {
+        return Math.max(0, conn.recvWindow - conn.forwardBytes);
+    }
+    
+    // Apply the tuner's new sizes to the advertised window and socket buffers.
+    // Kernel buffers are fixed by setting them, so growing them is up to us.
+    private void tuneWindows(TcpConnection conn, long now) {
+        WindowTuner tuner = conn.tuner;
+        int upload = tuner.uploadBuffer;
+        int download = tuner.downloadBuffer;
+        // Growth stays charged until close, so it only takes half of what is
+        // left; the rest is for data, or grown buffers could stall every flow
+        if (!tuner.endRoundTrip(now, memory.available() / 2)) return;
+        
+        windowGrowths.incrementAndGet();
+        updateMemoryCharge(conn);
+        try {
+            if (tuner.uploadBuffer != upload) {
+                conn.recvWindow = conn.windowScaleSupported ? tuner.uploadBuffer : Math.min(tuner.uploadBuffer, 65535);
+                conn.channel.socket().setSendBufferSize(tuner.uploadBuffer);
+            }
+            if (tuner.downloadBuffer != download) {
+                conn.channel.socket().setReceiveBufferSize(tuner.downloadBuffer);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not resize socket buffers: " + conn.key, e);
+        }
+    }
+    
+    private static long bytesInFlight(TcpConnection conn) {
+        return (conn.localSeq - conn.remoteAck) & SEQ_MASK;
+    }
+    
+    // Room left in the app's advertised window
+    private static long sendWindowAvailable(TcpConnection conn) {
+        return conn.sendWindow - bytesInFlight(conn);
+    }
+    
+    private void updateInterestOps(TcpConnection conn) {
+        SelectionKey key = conn.channel.keyFor(selector);
+        if (key == null || !key.isValid()) return;
+        
+        int ops = 0;
+        // Nothing goes to the app before it has acknowledged our SYN-ACK;
+        // data sent earlier would move localSeq past the ACK it is due to send
+        if (conn.state != TCP_SYN_RECEIVED && !conn.windowStalled && !conn.pressureStalled) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!conn.forwardQueue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+    
+    private void resumePressureStalled() {
+        if (pressureStalled.isEmpty() || writer.isBacklogged() || memory.isExhausted()) return;
+        
+        for (int i = 0; i < pressureStalled.size(); i++) {
+            TcpConnection conn = pressureStalled.get(i);
+            conn.pressureStalled = false;
+            if (conn.channel.isOpen()) updateInterestOps(conn);
+        }
+        pressureStalled.clear();
+    }
+    
+    // Bring the flow's share of the memory budget in line with what it holds now
+    private void updateMemoryCharge(TcpConnection conn) {
+        if (conn.state == TCP_CLOSED) return;
+        
+        // A queued TUN packet pins its whole buffer however little of it is
+        // still to be written, so the queue is charged by capacity. Grown
+        // socket buffers stay charged until the flow closes.
+        long held = conn.forwardHeld + conn.reassembly.bytes() + conn.retransmit.bytes()
+            + conn.tuner.grownBytes();
+        long delta = held - conn.charged;
+        if (delta > 0) {
+            memory.charge(delta);
+        } else if (delta < 0) {
+            memory.release(-delta);
+        }
+        conn.charged = held;
+    }
+    
+    // Send a segment that consumes sequence space at conn.localSeq and keep it
+    // until the app acknowledges it
+    private void sendRetransmittable(TcpConnection conn, ByteBuffer packet, int seqLength) {
+        long now = System.currentTimeMillis();
+        BufferPool.Shared shared = pool.share(packet);
+        conn.retransmit.add(conn.localSeq, seqLength, shared, now);
+        writer.submit(shared.retain());
+        if (!conn.retransmit.timer.isScheduled()) {
+            timers.schedule(conn.retransmit.timer, now + conn.retransmit.currentRto());
+        }
+    }
+    
+    private void onTcpAckAdvanced(TcpConnection conn, long ackSeq, long now) {
+        RetransmitQueue queue = conn.retransmit;
+        if (queue.onAck(ackSeq, now) == 0) return;
+        
+        long srtt = queue.getSrtt();
+        if (srtt >= 0) conn.tuner.setAppRtt(srtt);
+        
+        if (queue.isEmpty()) {
+            timers.cancel(queue.timer);
+        } else {
+            timers.schedule(queue.timer, now + queue.currentRto());
+        }
+    }
+    
+    // Resend the oldest unacknowledged segment. Its payload and sequence
+    // number stay as first sent, but ACK and window are brought up to date
+    // the way writeTcpHeader would write them now. The kept packet may still
+    // be queued at the writer, so the update goes into a copy, and the
+    // checksum is patched for the changed words rather than recomputed.
+    private void retransmitFirst(TcpConnection conn, long now) {
+        RetransmitQueue.Sent sent = conn.retransmit.first();
+        if (sent == null) return;
+        
+        sent.retransmits++;
+        sent.sentAt = now;
+        retransmits.incrementAndGet();
+        
+        ByteBuffer original = sent.packet.buffer;
+        int size = original.limit();
+        ByteBuffer copy = original.duplicate();
+        copy.position(0);
+        ByteBuffer packet = pool.acquire(size);
+        packet.put(copy);
+        packet.flip();
+        
+        int tcpStart = conn.ipHeaderLen;
+        int flags = packet.getShort(tcpStart + 12) & 0xFFFF;
+        int oldAck = packet.getInt(tcpStart + 8);
+        int oldWindow = packet.getShort(tcpStart + 14) & 0xFFFF;
+        short checksum = packet.getShort(tcpStart + 16);
+        
+        int ackSeq = (int) conn.remoteSeq;
+        int scale = conn.windowScaleSupported && (flags & 0x0002) == 0 ? conn.recvScale : 0;
+        int window = Math.min(receiveWindowAvailable(conn) >> scale, 65535);
+        conn.lastAdvertised = window << scale;
+        
+        checksum = PacketUtils.checksumUpdate32(checksum, oldAck, ackSeq);
+        checksum = PacketUtils.checksumUpdate(checksum, oldWindow, window);
+        packet.putInt(tcpStart + 8, ackSeq);
+        packet.putShort(tcpStart + 14, (short) window);
+        packet.putShort(tcpStart + 16, checksum);
+        
+        if ((flags & 0x0010) != 0) {
+            clearDelayedAck(conn, false);
+        }
+        writer.submit(packet);
+    }
+    
+    private void onRetransmitTimeout(TcpConnection conn, long now) {
+        RetransmitQueue queue = conn.retransmit;
+        RetransmitQueue.Sent sent = queue.first();
+        if (sent == null) return;
+        
+        if (sent.retransmits >= MAX_RETRANSMITS) {
+            Log.d(TAG, "TCP retransmission limit reached: " + conn.key);
+            sendTcpReset(conn);
+            closeTcpConnection(conn);
+            tcpConnections.remove(conn.flowKey0, conn.flowKey1);
+            return;
+        }
+        
+        queue.onTimeout();
+        retransmitFirst(conn, now);
+        timers.schedule(queue.timer, now + queue.currentRto());
+    }
+    
+    private void sendTcpSynAck(TcpConnection conn) {
+        writer.submit(buildTcpPacket(conn, true, true, false, false));
+    }
+    
+    private void sendTcpAck(TcpConnection conn) {
+        writer.submit(buildTcpPacket(conn, false, true, false, false));
+    }
+    
+    // Hold back the ACK for in-order data until a second full segment's worth
+    // has arrived, a segment toward the app carries it, or the timer fires
+    private void delayAck(TcpConnection conn, int length, long now) {
+        conn.unackedBytes += length;
+        conn.unackedSegments++;
+        if (conn.unackedBytes >= 2 * conn.mss) {
+            sendTcpAck(conn);
+        } else if (!conn.ackTimer.isScheduled()) {
+            timers.schedule(conn.ackTimer, now + ACK_DELAY_MS);
+        }
+    }
+    
+    // Every segment toward the app acknowledges all data received so far
+    private void clearDelayedAck(TcpConnection conn, boolean pureAck) {
+        if (conn.unackedSegments == 0) return;
+        coalescedAcks.addAndGet(pureAck ? conn.unackedSegments - 1 : conn.unackedSegments);
+        conn.unackedBytes = 0;
+        conn.unackedSegments = 0;
+        timers.cancel(conn.ackTimer);
+    }
+    
+    private void sendTcpFinAck(TcpConnection conn) {
+        sendRetransmittable(conn, buildTcpPacket(conn, false, true, true, false), 1);
+        conn.localSeq++;
+    }
+    
+    private void sendTcpReset(TcpConnection conn) {
+        writer.submit(buildTcpPacket(conn, false, true, false, true));
+    }
+    
+    // Reset answering a packet that has no flow
+    private void sendTcpReset(ByteBuffer request, long seq, long ack) {
+        byte[] t = buildHeaderTemplate(request, 6, TCP_HEADER_LEN);
+        int ipHeaderLen = t.length - TCP_HEADER_LEN;
+        int totalSize = ipHeaderLen + TCP_HEADER_LEN;
+        ByteBuffer packet = pool.acquire(totalSize);
+        
+        packet.put(t, 0, ipHeaderLen + 4);
+        patchIpHeader(packet, ipHeaderLen, ipHeaderSum(t), totalSize);
+        packet.putInt((int) seq);
+        packet.putInt((int) ack);
+        packet.putShort((short) 0x5014);  // RST + ACK
+        packet.putShort((short) 0);
+        packet.putShort((short) 0);
+        packet.putShort((short) 0);
+        
+        long sum = PacketUtils.checksumAdd(packet, ipHeaderLen + 4, 16, pseudoHeaderSum(t, 6) + TCP_HEADER_LEN);
+        packet.putShort(ipHeaderLen + 16, PacketUtils.checksumFinish(sum));
+        packet.position(0);
+        writer.submit(packet);
+    }
+    
+    // Header fields that never change for the life of a flow
+    private static byte[] buildHeaderTemplate(int protocol, int transportLen, int fromAddr, int fromPort,
+                                              int toAddr, int toPort) {
+        ByteBuffer header = ByteBuffer.allocate(IP_HEADER_LEN + transportLen);
+        header.put((byte) 0x45);
+        header.put((byte) 0x00);
+        header.putShort((short) 0);       // Total length (patched)
+        header.putShort((short) 0);
+        header.putShort((short) 0x4000);
+        header.put((byte) 64);
+        header.put((byte) protocol);
+        header.putShort((short) 0);       // Checksum (patched)
+        header.putInt(fromAddr);
+        header.putInt(toAddr);
+        header.putShort((short) fromPort);
+        header.putShort((short) toPort);
+        return header.array();
+    }
+    
+    // Reply header toward the app for either IP version: the request's
+    // addresses and ports swapped
+    private static byte[] buildHeaderTemplate(ByteBuffer request, int protocol, int transportLen) {
+        if (!isIpv6(request)) {
+            int ihl = (request.get(0) & 0xF) * 4;
+            return buildHeaderTemplate(protocol, transportLen, request.getInt(16), request.getShort(ihl + 2) & 0xFFFF,
+                                       request.getInt(12), request.getShort(ihl) & 0xFFFF);
+        }
+        ByteBuffer header = ByteBuffer.allocate(IPV6_HEADER_LEN + transportLen);
+        header.putInt(0x60000000);        // Version, no traffic class or flow label
+        header.putShort((short) 0);       // Payload length (patched)
+        header.put((byte) protocol);
+        header.put((byte) 64);            // Hop limit
+        header.putLong(request.getLong(24));
+        header.putLong(request.getLong(32));
+        header.putLong(request.getLong(8));
+        header.putLong(request.getLong(16));
+        header.putShort(request.getShort(IPV6_HEADER_LEN + 2));
+        header.putShort(request.getShort(IPV6_HEADER_LEN));
+        return header.array();
+    }
+    
+    private static int templateIpHeaderLen(byte[] t) {
+        return (t[0] & 0xF0) == 0x60 ? IPV6_HEADER_LEN : IP_HEADER_LEN;
+    }
+    
+    // IPv4 header sum without total length; IPv6 has no header checksum
+    private static long ipHeaderSum(byte[] t) {
+        return (t[0] & 0xF0) == 0x60 ? 0 : PacketUtils.checksumAdd(t, 0, IP_HEADER_LEN, 0);
+    }
+    
+    // Pseudo-header addresses + protocol, then the two ports; lengths are per packet
+    private static long pseudoHeaderSum(byte[] t, int protocol) {
+        int ipHeaderLen = templateIpHeaderLen(t);
+        long sum = ipHeaderLen == IPV6_HEADER_LEN
+            ? PacketUtils.checksumAdd(t, 8, 32, protocol)
+            : PacketUtils.checksumAdd(t, 12, 8, protocol);
+        return PacketUtils.checksumAdd(t, ipHeaderLen, 4, sum);
+    }
+    
+    // Total length and header checksum for IPv4, payload length for IPv6
+    private static void patchIpHeader(ByteBuffer packet, int ipHeaderLen, long ipHeaderSum, int totalSize) {
+        if (ipHeaderLen == IPV6_HEADER_LEN) {
+            packet.putShort(4, (short) (totalSize - IPV6_HEADER_LEN));
+        } else {
+            packet.putShort(2, (short) totalSize);
+            packet.putShort(10, PacketUtils.checksumFinish(ipHeaderSum + totalSize));
+        }
+    }
+    
+    private void initTcpTemplate(TcpConnection conn, ByteBuffer request) {
+        byte[] t = buildHeaderTemplate(request, 6, TCP_HEADER_LEN);
+        conn.headerTemplate = t;
+        conn.ipHeaderLen = templateIpHeaderLen(t);
+        conn.ipHeaderSum = ipHeaderSum(t);
+        conn.tcpPseudoSum = pseudoHeaderSum(t, 6);
+    }
+    
+    private void initUdpTemplate(UdpConnection conn, ByteBuffer request) {
+        byte[] t = buildHeaderTemplate(request, 17, UDP_HEADER_LEN);
+        conn.headerTemplate = t;
+        conn.ipHeaderLen = templateIpHeaderLen(t);
+        conn.ipHeaderSum = ipHeaderSum(t);
+        conn.udpPseudoSum = pseudoHeaderSum(t, 17);
+    }
+    
+    private ByteBuffer buildTcpPacket(TcpConnection conn, boolean syn, boolean ack, boolean fin, boolean rst) {
+        
+        // SACK blocks ride on pure ACKs only, so data segments keep the full MSS
+        int sackBlocks = 0;
+        if (!syn && !rst && conn.sackPermitted && !conn.reassembly.isEmpty()) {
+            sackBlocks = conn.reassembly.sackBlocks(conn.sackScratch, MAX_SACK_BLOCKS);
+        }
+        
+        int optLen = syn ? (conn.sackPermitted ? 12 : 8) : (sackBlocks > 0 ? 4 + 8 * sackBlocks : 0);
+        ByteBuffer packet = pool.acquire(conn.ipHeaderLen + TCP_HEADER_LEN + optLen);
+        
+        int flags = 0;
+        if (syn) flags |= 0x0002;
+        if (ack) flags |= 0x0010;
+        if (fin) flags |= 0x0001;
+        if (rst) flags |= 0x0004;
+        writeTcpHeader(conn, packet, flags, optLen, sackBlocks, 0);
+        return packet;
+    }
+    
+    // Write the IP and TCP headers in front of a payload that is already in
+    // place after them, and leave the packet ready to submit
+    private void writeTcpHeader(TcpConnection conn, ByteBuffer packet, int flags, int optLen,
+                                int sackBlocks, int payloadSize) {
+        int tcpLen = TCP_HEADER_LEN + optLen + payloadSize;
+        int totalSize = conn.ipHeaderLen + tcpLen;
+        packet.limit(totalSize);
+        packet.position(0);
+        
+        // IP header from template, patched with length and checksum
+        packet.put(conn.headerTemplate, 0, conn.ipHeaderLen + 4);
+        patchIpHeader(packet, conn.ipHeaderLen, conn.ipHeaderSum, totalSize);
+        
+        // TCP header: ports come from the template
+        int tcpStart = conn.ipHeaderLen;
+        int seq = (int) conn.localSeq;
+        int ackSeq = (int) conn.remoteSeq;
+        packet.putInt(seq);
+        packet.putInt(ackSeq);
+        
+        int dataOffset = (20 + optLen) / 4;
+        flags |= (dataOffset << 12);
+        if (payloadSize > 0) flags |= 0x0008;  
+        packet.putShort((short) flags);
+        
+        // Free buffer space, scaled except on the SYN (RFC 7323)
+        int window = receiveWindowAvailable(conn);
+        int scale = conn.windowScaleSupported && (flags & 0x0002) == 0 ? conn.recvScale : 0;
+        window = Math.min(window >> scale, 65535);
+        conn.lastAdvertised = window << scale;
+        packet.putShort((short) window);
+        packet.putShort((short) 0);  // Checksum (filled later)
+        packet.putShort((short) 0);  // Urgent pointer
+        
+        long sum = conn.tcpPseudoSum + tcpLen
+            + (seq >>> 16) + (seq & 0xFFFF)
+            + (ackSeq >>> 16) + (ackSeq & 0xFFFF)
+            + flags + window;
+        
+        // TCP options
+        if ((flags & 0x0002) != 0) {
+            int optStart = packet.position();
+            // MSS option
+            packet.put((byte) 2);
+            packet.put((byte) 4);
+            packet.putShort((short) conn.mss);
+            
+            // Window scale option
+            packet.put((byte) 3);
+            packet.put((byte) 3);
+            packet.put((byte) conn.recvScale);
+            packet.put((byte) 1);  // NOP for alignment
+            
+            if (conn.sackPermitted) {
+                packet.put((byte) 1);
+                packet.put((byte) 1);
+                packet.put((byte) 4);  // SACK permitted
+                packet.put((byte) 2);
+            }
+            sum = PacketUtils.checksumAdd(packet, optStart, optLen, sum);
+        } else if (sackBlocks > 0) {
+            int optStart = packet.position();
+            packet.put((byte) 1);
+            packet.put((byte) 1);
+            packet.put((byte) 5);  // SACK
+            packet.put((byte) (2 + 8 * sackBlocks));
+            for (int i = 0; i < sackBlocks * 2; i++) {
+                packet.putInt((int) conn.sackScratch[i]);
+            }
+            sum = PacketUtils.checksumAdd(packet, optStart, optLen, sum);
+        }
+        
+        // Payload is summed where it lies
+        if (payloadSize > 0) {
+            sum = PacketUtils.checksumAdd(packet, totalSize - payloadSize, payloadSize, sum);
+        }
+        
+        packet.putShort(tcpStart + 16, PacketUtils.checksumFinish(sum));
+        packet.position(0);
+        
+        if ((flags & 0x0010) != 0) {
+            clearDelayedAck(conn, payloadSize == 0 && (flags & 0x0003) == 0);
+        }
+    }
+    
+    private void handleUdpPacket(ByteBuffer buffer, int ihl, int totalLength) {
+        try {
+            buffer.position(ihl);
+            int sourcePort = buffer.getShort() & 0xFFFF;
+            int destPort = buffer.getShort() & 0xFFFF;
+            int length = buffer.getShort() & 0xFFFF;
+            
+            long k0 = flowKey0(buffer);
+            long k1 = flowKey1(buffer, sourcePort, destPort, 17);
+            
+            UdpConnection conn = udpConnections.get(k0, k1);
+            if (conn != null && !isFlowPacket(conn.headerTemplate, buffer)) {
+                Log.w(TAG, "IPv6 flow key collision, dropping packet for " + conn.key);
+                return;
+            }
+            int blocklistGeneration = service.getBlocklistGeneration();
+            if (conn == null) {
+                if (service.isBlockedIp(destIp(buffer))) {
+                    Log.d(TAG, "Blocked UDP to: " + destIp(buffer));
+                    return;
+                }
+            } else if (conn.blocklistGeneration != blocklistGeneration) {
+                conn.blocklistGeneration = blocklistGeneration;
+                if (service.isBlockedIp(conn.destIp)) {
+                    Log.d(TAG, "Blocked UDP to: " + conn.destIp);
+                    closeUdpConnection(conn);
+                    udpConnections.remove(k0, k1);
+                    return;
+                }
+            }
+            
+            // The VPN's resolvers are IPv4, so the DNS stage is too
+            if (destPort == 53 && !isIpv6(buffer) && handleDnsQuery(conn, buffer, ihl, length, totalLength,
+                                                  buffer.getInt(12), sourcePort, buffer.getInt(16))) {
+                return;
+            }
+            
+            if (conn == null) {
+                int uid = service.getMostLikelyActiveUid();
+                conn = new UdpConnection(k0, k1, sourceIp(buffer), sourcePort, destIp(buffer), destPort, uid);
+                conn.blocklistGeneration = blocklistGeneration;
+                initUdpTemplate(conn, buffer);
+                
+                try {
+                    conn.channel = DatagramChannel.open();
+                    conn.channel.configureBlocking(false);
+                    conn.channel.socket().setSendBufferSize(65536);
+                    conn.channel.socket().setReceiveBufferSize(65536);
+                    service.protect(conn.channel.socket());
+                    // Connected: read/write need no address and replies come only from the peer
+                    conn.channel.connect(new InetSocketAddress(conn.destIp, destPort));
+                    conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                    
+                    udpConnections.put(k0, k1, conn);
+                    timers.schedule(conn.idleTimer, conn.lastActivity + udpTimeout(conn));
+                    resolveOwner(conn);
+                    Log.d(TAG, "New UDP connection: " + conn.key);
+                    
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to create UDP socket", e);
+                    return;
+                }
+            }
+            
+            conn.lastActivity = System.currentTimeMillis();
+            
+            int dataSize = length - 8;
+            if (dataSize > 0) {
+                // The payload goes out straight from the TUN packet
+                buffer.limit(Math.min(buffer.limit(), ihl + length));
+                buffer.position(ihl + 8);
+                conn.channel.write(buffer);
+                
+                service.notifyPacketOptimized(buffer.array(), totalLength, "outgoing", conn.uid, 
+                    conn.sourceIp, sourcePort, conn.destIp, destPort, 17);
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error handling UDP packet", e);
+        }
+    }
+    
+    // Datagrams are read straight into pooled packets behind a gap for the
+    // headers, like TCP segments; the connected channel needs no sender address
+    private void handleUdpRead(UdpConnection conn) {
+        int gap = conn.ipHeaderLen + UDP_HEADER_LEN;
+        boolean ipv6 = conn.ipHeaderLen == IPV6_HEADER_LEN;
+        // Most datagrams fit a standard packet, so reads start in one whatever the MTU
+        int maxDatagram = DEFAULT_MTU - gap;
+        try {
+            for (int i = 0; i < UDP_READ_BUDGET; i++) {
+                ByteBuffer packet = pool.acquire(gap + maxDatagram);
+                packet.position(gap);
+                datagramOverflow.clear();
+                datagramScatter[0] = packet;
+                datagramScatter[1] = datagramOverflow;
+                int length;
+                try {
+                    length = (int) conn.channel.read(datagramScatter);
+                } catch (IOException e) {
+                    pool.release(packet);
+                    throw e;
+                }
+                if (length <= 0) {
+                    pool.release(packet);
+                    break;
+                }
+                if (gap + length > mtu && ipv6) {
+                    // Would need a fragment extension header
+                    Log.w(TAG, "UDP datagram too large: " + conn.key);
+                    pool.release(packet);
+                    continue;
+                }
+                
+                conn.lastActivity = System.currentTimeMillis();
+                int preview = Math.min(previewScratch.length, length);
+                for (int j = 0; j < preview; j++) {
+                    previewScratch[j] = packet.get(gap + j);
+                }
+                if (length > maxDatagram) {
+                    datagramOverflow.flip();
+                }
+                if (length > maxDatagram && gap + length <= mtu) {
+                    packet = joinDatagram(packet, datagramOverflow, gap + length);
+                } else if (length > maxDatagram) {
+                    packet = fillFirstFragment(packet, datagramOverflow);
+                    sendUdpFragments(conn.headerTemplate, conn.udpPseudoSum, packet, datagramOverflow);
+                    service.notifyPacketOptimized(previewScratch, length, "incoming", conn.uid,
+                        conn.destIp, conn.destPort, conn.sourceIp, conn.sourcePort, 17);
+                    continue;
+                }
+                if (conn.destPort == 53 && length <= DnsCache.MAX_MESSAGE) {
+                    // Answers from resolvers other than ours still feed the cache
+                    byte[] data = udpReadBuffer.array();
+                    packet.position(gap);
+                    packet.get(data, 0, length);
+                    dnsCache.store(data, 0, length, conn.lastActivity);
+                }
+                
+                writeUdpHeader(conn.headerTemplate, conn.ipHeaderLen, conn.ipHeaderSum, conn.udpPseudoSum, packet, length);
+                writer.submit(packet);
+                
+                service.notifyPacketOptimized(previewScratch, length, "incoming", conn.uid,
+                    conn.destIp, conn.destPort, conn.sourceIp, conn.sourcePort, 17);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading from UDP socket", e);
+            closeUdpConnection(conn);
+            udpConnections.remove(conn.flowKey0, conn.flowKey1);
+        }
+    }
+    
+    // Repeat lookups are answered from the cache, without a socket or a round
+    // trip; misses for the VPN's resolvers go out through the shard's shared
+    // upstream sockets. False leaves the query to an ordinary UDP flow.
+    private boolean handleDnsQuery(UdpConnection conn, ByteBuffer buffer, int ihl, int udpLength,
+                                   int totalLength, int sourceAddr, int sourcePort, int destAddr) {
+        byte[] data = buffer.array();
+        int queryStart = ihl + UDP_HEADER_LEN;
+        int queryLength = Math.min(udpLength, totalLength - ihl) - UDP_HEADER_LEN;
+        String key = DnsCache.queryKey(data, queryStart, queryLength);
+        if (key == null) return false;
+        
+        long now = System.currentTimeMillis();
+        int uid = conn != null ? conn.uid : service.getMostLikelyActiveUid();
+        String sourceIp = ipToString(sourceAddr);
+        String destIp = ipToString(destAddr);
+        
+        int answerLength = dnsCache.answer(key, data, queryStart, dnsScratch, now);
+        if (answerLength >= 0) {
+            if (!sendDnsReply(sourceAddr, sourcePort, destAddr, dnsScratch, answerLength)) return false;
+            service.notifyPacketOptimized(data, totalLength, "outgoing", uid, sourceIp, sourcePort, destIp, 53, 17);
+            service.notifyPacketOptimized(dnsScratch, answerLength, "incoming", uid, destIp, 53, sourceIp, sourcePort, 17);
+            return true;
+        }
+        
+        if (!dnsForwarder.handles(destAddr)) return false;
+        DnsForwarder.Pending query = dnsForwarder.send(data, queryStart, queryLength,
+                                                       sourceAddr, sourcePort, destAddr, uid);
+        if (query == null) return false;
+        timers.schedule(query.timer, now + DnsForwarder.QUERY_TIMEOUT_MS);
+        service.notifyPacketOptimized(data, totalLength, "outgoing", uid, sourceIp, sourcePort, destIp, 53, 17);
+        return true;
+    }
+    
+    // The channel is the upstream's current socket or the one it replaced
+    private void handleDnsUpstreamRead(DnsForwarder.Upstream upstream, DatagramChannel channel) {
+        try {
+            ByteBuffer buffer = udpReadBuffer;
+            buffer.clear();
+            int length = channel.read(buffer);
+            if (length <= 0) return;
+            
+            byte[] data = buffer.array();
+            DnsForwarder.Pending query = dnsForwarder.onResponse(upstream, data, length);
+            if (query == null) return;
+            timers.cancel(query.timer);
+            dnsCache.store(data, 0, length, System.currentTimeMillis());
+            
+            if (sendDnsReply(query.sourceAddr, query.sourcePort, query.destAddr, data, length)) {
+                service.notifyPacketOptimized(data, length, "incoming", query.uid, ipToString(query.destAddr), 53,
+                    ipToString(query.sourceAddr), query.sourcePort, 17);
+            }
+        } catch (IOException e) {
+            // Connected sockets report ICMP errors here; reopen on next use
+            Log.w(TAG, "Error reading from DNS upstream: " + upstream.server, e);
+            dnsForwarder.close(upstream, channel);
+        }
+    }
+    
+    // No flow needed: the reply comes from the resolver the app asked
+    private boolean sendDnsReply(int sourceAddr, int sourcePort, int destAddr, byte[] data, int length) {
+        byte[] t = buildHeaderTemplate(17, UDP_HEADER_LEN, destAddr, 53, sourceAddr, sourcePort);
+        if (length > mtu - IP_HEADER_LEN - UDP_HEADER_LEN) {
+            // Large EDNS answers
+            ByteBuffer first = pool.acquire(IP_HEADER_LEN + UDP_HEADER_LEN + firstFragmentPayload);
+            first.position(IP_HEADER_LEN + UDP_HEADER_LEN);
+            first.put(data, 0, firstFragmentPayload);
+            sendUdpFragments(t, pseudoHeaderSum(t, 17), first,
+                             ByteBuffer.wrap(data, firstFragmentPayload, length - firstFragmentPayload));
+            return true;
+        }
+        ByteBuffer response = buildUdpPacket(t, IP_HEADER_LEN, ipHeaderSum(t), pseudoHeaderSum(t, 17), data, length);
+        if (response == null) return false;
+        writer.submit(response);
+        return true;
+    }
+    
+    // A datagram that overflowed the first read buffer but fits the jumbo MTU,
+    // moved into one packet of its full size
+    private ByteBuffer joinDatagram(ByteBuffer first, ByteBuffer rest, int totalSize) {
+        ByteBuffer packet = pool.acquire(totalSize);
+        first.flip();
+        packet.put(first);
+        packet.put(rest);
+        pool.release(first);
+        return packet;
+    }
+    
+    // Above the standard MTU the first fragment takes more than the first
+    // read holds, so it is topped up from the overflow
+    private ByteBuffer fillFirstFragment(ByteBuffer first, ByteBuffer rest) {
+        int size = IP_HEADER_LEN + UDP_HEADER_LEN + firstFragmentPayload;
+        if (first.position() >= size) return first;
+        ByteBuffer packet = pool.acquire(size);
+        first.flip();
+        packet.put(first);
+        pool.release(first);
+        int limit = rest.limit();
+        rest.limit(rest.position() + packet.remaining());
+        packet.put(rest);
+        rest.limit(limit);
+        return packet;
+    }
+    
+    // An IPv4 datagram too large for the MTU, sent as fragments. first is a
+    // full pooled packet holding the start of the payload behind the headers;
+    // rest holds the remainder between position and limit. The UDP header and
+    // checksum in the first fragment cover the whole datagram.
+    private void sendUdpFragments(byte[] headerTemplate, long udpPseudoSum, ByteBuffer first, ByteBuffer rest) {
+        int firstPayload = first.limit() - IP_HEADER_LEN - UDP_HEADER_LEN;
+        int restLength = rest.remaining();
+        int udpLen = UDP_HEADER_LEN + firstPayload + restLength;
+        int id = fragmentIds.getAndIncrement() & 0xFFFF;
+        
+        long sum = udpPseudoSum + udpLen + udpLen;
+        sum = PacketUtils.checksumAdd(first, IP_HEADER_LEN + UDP_HEADER_LEN, firstPayload, sum);
+        sum = PacketUtils.checksumAdd(rest, rest.position(), restLength, sum);
+        short checksum = PacketUtils.checksumFinish(sum);
+        
+        first.position(0);
+        first.put(headerTemplate, 0, IP_HEADER_LEN + 4);
+        first.putShort((short) udpLen);
+        first.putShort(checksum == 0 ? (short) 0xFFFF : checksum);
+        writeFragmentHeader(first, id, 0, true);
+        writer.submit(first);
+        fragmentsSent.incrementAndGet();
+        
+        // Fragment offsets count 8-byte units of IP payload
+        int offset = UDP_HEADER_LEN + firstPayload;
+        int maxChunk = (mtu - IP_HEADER_LEN) & ~7;
+        while (rest.hasRemaining()) {
+            int chunk = Math.min(maxChunk, rest.remaining());
+            ByteBuffer fragment = pool.acquire(IP_HEADER_LEN + chunk);
+            fragment.put(headerTemplate, 0, IP_HEADER_LEN);
+            int end = rest.position() + chunk;
+            int limit = rest.limit();
+            rest.limit(end);
+            fragment.put(rest);
+            rest.limit(limit);
+            writeFragmentHeader(fragment, id, offset, rest.hasRemaining());
+            writer.submit(fragment);
+            fragmentsSent.incrementAndGet();
+            offset += chunk;
+        }
+    }
+    
+    // Length, ID and fragment field of an IPv4 fragment; the header checksum
+    // is summed fresh since the template's sum assumes DF and no offset
+    private static void writeFragmentHeader(ByteBuffer packet, int id, int offset, boolean more) {
+        packet.putShort(2, (short) packet.limit());
+        packet.putShort(4, (short) id);
+        packet.putShort(6, (short) ((more ? 0x2000 : 0) | (offset >> 3)));
+        packet.putShort(10, (short) 0);
+        packet.putShort(10, PacketUtils.checksumFinish(PacketUtils.checksumAdd(packet, 0, IP_HEADER_LEN, 0)));
+        packet.position(0);
+    }
+    
+    private ByteBuffer buildUdpPacket(byte[] headerTemplate, int ipHeaderLen, long ipHeaderSum, long udpPseudoSum,
+                                      byte[] payload, int payloadSize) {
+        int gap = ipHeaderLen + UDP_HEADER_LEN;
+        if (gap + payloadSize > mtu) {
+            Log.w(TAG, "UDP packet too large: " + (gap + payloadSize));
+            return null;
+        }
+        
+        ByteBuffer packet = pool.acquire(gap + payloadSize);
+        packet.position(gap);
+        packet.put(payload, 0, payloadSize);
+        writeUdpHeader(headerTemplate, ipHeaderLen, ipHeaderSum, udpPseudoSum, packet, payloadSize);
+        return packet;
+    }
+    
+    // Write the IP and UDP headers in front of a payload already in place
+    // after them, and leave the packet ready to submit
+    private static void writeUdpHeader(byte[] headerTemplate, int ipHeaderLen, long ipHeaderSum, long udpPseudoSum,
+                                       ByteBuffer packet, int payloadSize) {
+        int udpLen = UDP_HEADER_LEN + payloadSize;
+        int totalSize = ipHeaderLen + udpLen;
+        packet.limit(totalSize);
+        packet.position(0);
+        
+        // IP header and ports from template
+        packet.put(headerTemplate, 0, ipHeaderLen + 4);
+        patchIpHeader(packet, ipHeaderLen, ipHeaderSum, totalSize);
+        
+        // UDP header
+        int udpStart = ipHeaderLen;
+        packet.putShort((short) udpLen);
+        packet.putShort((short) 0);
+        
+        // Length counts twice: pseudo-header and UDP header; the payload is summed where it lies
+        long sum = udpPseudoSum + udpLen + udpLen;
+        if (payloadSize > 0) {
+            sum = PacketUtils.checksumAdd(packet, totalSize - payloadSize, payloadSize, sum);
+        }
+        
+        short checksum = PacketUtils.checksumFinish(sum);
+        // UDP checksum of 0 means no checksum
+        packet.putShort(udpStart + 6, checksum == 0 ? (short) 0xFFFF : checksum);
+        packet.position(0);
+    }
+    
+    private static long tcpTimeout(int state) {
+        switch (state) {
+            case TCP_SYN_SENT:
+            case TCP_SYN_RECEIVED:
+                return TCP_HANDSHAKE_TIMEOUT_MS;
+            case TCP_CLOSE_WAIT:
+                return TCP_CLOSE_WAIT_TIMEOUT_MS;
+            case TCP_FIN_WAIT:
+            case TCP_CLOSING:
+                return TCP_FIN_WAIT_TIMEOUT_MS;
+            default:
+                return TCP_ESTABLISHED_TIMEOUT_MS;
+        }
+    }
+    
+    private static long udpTimeout(UdpConnection conn) {
+        if (conn.destPort == 53) return UDP_DNS_TIMEOUT_MS;
+        if (conn.destPort == 443) return UDP_QUIC_TIMEOUT_MS;
+        return UDP_DEFAULT_TIMEOUT_MS;
+    }
+    
+    // The SYN went out under the guessed uid; the resolver thread swaps in
+    // the socket's real owner, which later packets of the flow report
+    private void resolveOwner(TcpConnection conn) {
+        uidResolver.resolve(6, conn.sourceIp, conn.sourcePort, conn.destIp, conn.destPort,
+                            conn.uid, uid -> conn.uid = uid);
+    }
+    
+    private void resolveOwner(UdpConnection conn) {
+        uidResolver.resolve(17, conn.sourceIp, conn.sourcePort, conn.destIp, conn.destPort,
+                            conn.uid, uid -> conn.uid = uid);
+    }
+    
+    // Called on every state change so the deadline follows the new state's timeout
+    private void scheduleTcpTimeout(TcpConnection conn) {
+        timers.schedule(conn.idleTimer, conn.lastActivity + tcpTimeout(conn.state));
+    }
+    
+    // Packets only bump lastActivity; a timer that fires early for a flow that
+    // has seen traffic since is simply re-armed from its last activity
+    private void expireFlows(long now) {
+        timers.advance(now, expiredTimers);
+        if (expiredTimers.isEmpty()) return;
+        
+        for (int i = 0; i < expiredTimers.size(); i++) {
+            Object owner = expiredTimers.get(i).owner;
+            
+            if (owner instanceof TcpConnection) {
+                TcpConnection conn = (TcpConnection) owner;
+                // An earlier timer in this batch may have closed the flow
+                if (conn.state == TCP_CLOSED) continue;
+                if (expiredTimers.get(i) == conn.ackTimer) {
+                    sendTcpAck(conn);
+                    continue;
+                }
+                
+                long deadline = conn.lastActivity + tcpTimeout(conn.state);
+                if (deadline > now) {
+                    timers.schedule(conn.idleTimer, deadline);
+                } else {
+                    Log.d(TAG, "TCP flow expired in state " + conn.state + ": " + conn.key);
+                    closeTcpConnection(conn);
+                    tcpConnections.remove(conn.flowKey0, conn.flowKey1);
+                    flowsExpired.incrementAndGet();
+                }
+                
+            } else if (owner instanceof RetransmitQueue) {
+                TcpConnection conn = ((RetransmitQueue) owner).conn;
+                if (conn.state != TCP_CLOSED) onRetransmitTimeout(conn, now);
+                
+            } else if (owner instanceof FragmentReassembler.Datagram) {
+                reassembler.expire((FragmentReassembler.Datagram) owner);
+                
+            } else if (owner instanceof DnsForwarder.Pending) {
+                DnsForwarder.Pending query = (DnsForwarder.Pending) owner;
+                if (dnsForwarder.retry(query)) {
+                    timers.schedule(query.timer, now + DnsForwarder.QUERY_TIMEOUT_MS);
+                }
+                
+            } else if (owner instanceof UdpConnection) {
+                UdpConnection conn = (UdpConnection) owner;
+                long deadline = conn.lastActivity + udpTimeout(conn);
+                if (deadline > now) {
+                    timers.schedule(conn.idleTimer, deadline);
+                } else {
+                    closeUdpConnection(conn);
+                    udpConnections.remove(conn.flowKey0, conn.flowKey1);
+                    flowsExpired.incrementAndGet();
+                }
+            }
+        }
+        expiredTimers.clear();
+    }
+    
+    private void closeTcpConnection(TcpConnection conn) {
+        conn.state = TCP_CLOSED;
+        memory.release(conn.charged);
+        conn.charged = 0;
+        timers.cancel(conn.idleTimer);
+        timers.cancel(conn.retransmit.timer);
+        timers.cancel(conn.ackTimer);
+        conn.retransmit.clear();
+        if (conn.tuner.hasGrown()) {
+            String history = conn.key + " " + conn.tuner.history();
+            Log.d(TAG, "Window history " + history);
+            synchronized (windowHistory) {
+                if (windowHistory.size() == WINDOW_HISTORY_FLOWS) windowHistory.pollFirst();
+                windowHistory.addLast(history);
+            }
+        }
+        conn.reassembly.clear();
+        ByteBuffer chunk;
+        while ((chunk = conn.forwardQueue.pollFirst()) != null) {
+            pool.releasePacket(chunk);
+        }
+        conn.forwardHeld = 0;
+        try {
+            if (conn.channel != null) {
+                SelectionKey key = conn.channel.keyFor(selector);
+                if (key != null) {
+                    key.cancel();
+                }
+                conn.channel.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing TCP connection", e);
+        }
+    }
+    
+    private void closeUdpConnection(UdpConnection conn) {
+        timers.cancel(conn.idleTimer);
+        try {
+            if (conn.channel != null) {
+                SelectionKey key = conn.channel.keyFor(selector);
+                if (key != null) {
+                    key.cancel();
+                }
+                conn.channel.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing UDP connection", e);
+        }
+    }
+    
+    private static boolean isIpv6(ByteBuffer packet) {
+        return (packet.get(0) & 0xF0) == 0x60;
+    }
+    
+    private static long flowKey0(ByteBuffer packet) {
+        if (!isIpv6(packet)) return FlowTable.key0(packet.getInt(12), packet.getInt(16));
+        return FlowTable.key0(packet.getLong(8), packet.getLong(16), packet.getLong(24), packet.getLong(32));
+    }
+    
+    private static long flowKey1(ByteBuffer packet, int sourcePort, int destPort, int protocol) {
+        return FlowTable.key1(sourcePort, destPort, isIpv6(packet) ? protocol | FlowTable.IPV6 : protocol);
+    }
+    
+    // IPv6 keys are folded, so a hit is confirmed against the flow's template,
+    // which holds the same addresses swapped
+    private static boolean isFlowPacket(byte[] t, ByteBuffer packet) {
+        if (!isIpv6(packet)) return true;
+        ByteBuffer template = ByteBuffer.wrap(t);
+        return template.getLong(24) == packet.getLong(8) && template.getLong(32) == packet.getLong(16)
+            && template.getLong(8) == packet.getLong(24) && template.getLong(16) == packet.getLong(32);
+    }
+    
+    private static String sourceIp(ByteBuffer packet) {
+        return isIpv6(packet) ? ip6ToString(packet, 8) : ipToString(packet.getInt(12));
+    }
+    
+    private static String destIp(ByteBuffer packet) {
+        return isIpv6(packet) ? ip6ToString(packet, 24) : ipToString(packet.getInt(16));
+    }
+    
+    // Same text form as InetAddress.getHostAddress(), which the blocklist is built from
+    static String ip6ToString(ByteBuffer packet, int offset) {
+        byte[] addr = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            addr[i] = packet.get(offset + i);
+        }
+        try {
+            return InetAddress.getByAddress(addr).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+    
+    static String ipToString(int addr) {
+        return new StringBuilder(15)
+            .append((addr >>> 24) & 0xFF).append('.')
+            .append((addr >>> 16) & 0xFF).append('.')
+            .append((addr >>> 8) & 0xFF).append('.')
+            .append(addr & 0xFF)
+            .toString();
+    }
+}
@@ -0,0 +1,177 @@
+package com.netsniff.app;
+
+import java.util.List;
+
+// Open-addressing hash table from a packed 5-tuple to a flow. Keys are two
+// primitive longs, so lookups on the packet path never build strings or box.
+// Linear probing with backward-shift deletion keeps probe chains short
+// without tombstones. Not thread-safe: each shard owns its own tables.
+public class FlowTable<V> {
+    private static final int MIN_CAPACITY = 64;
+    private static final float MAX_LOAD = 0.6f;
+    // Or'd into the protocol of IPv6 flows so they never share a key with IPv4
+    public static final int IPV6 = 0x100;
+
+    private long[] keys0;
+    private long[] keys1;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public FlowTable() {
+        this(MIN_CAPACITY);
+    }
+
+    public FlowTable(int expectedFlows) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < expectedFlows) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    // IPv4 source and destination address
+    public static long key0(int sourceAddr, int destAddr) {
+        return ((long) sourceAddr << 32) | (destAddr & 0xFFFFFFFFL);
+    }
+
+    // IPv6 source and destination address, folded to 64 bits. Unlike the IPv4
+    // key this is not exact: callers confirm a hit against the flow's addresses.
+    public static long key0(long source0, long source1, long dest0, long dest1) {
+        long h = source0 * 0x9E3779B97F4A7C15L;
+        h = (h ^ source1) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ dest0) * 0x94D049BB133111EBL;
+        h = (h ^ dest1) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 31);
+    }
+
+    // Ports and protocol
+    public static long key1(int sourcePort, int destPort, int protocol) {
+        return ((long) protocol << 32) | ((long) (sourcePort & 0xFFFF) << 16) | (destPort & 0xFFFF);
+    }
+
+    private static int hash(long k0, long k1) {
+        long h = k0 * 0x9E3779B97F4A7C15L + k1;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private void allocate(int capacity) {
+        keys0 = new long[capacity];
+        keys1 = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * MAX_LOAD);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long k0, long k1) {
+        int i = hash(k0, k1) & mask;
+        Object value;
+        while ((value = values[i]) != null) {
+            if (keys0[i] == k0 && keys1[i] == k1) {
+                return (V) value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long k0, long k1, V value) {
+        if (value == null) throw new IllegalArgumentException("null flow");
+
+        int i = hash(k0, k1) & mask;
+        while (values[i] != null) {
+            if (keys0[i] == k0 && keys1[i] == k1) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys0[i] = k0;
+        keys1[i] = k1;
+        values[i] = value;
+        if (++size > resizeAt) {
+            resize(values.length << 1);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long k0, long k1) {
+        int i = hash(k0, k1) & mask;
+        while (values[i] != null) {
+            if (keys0[i] == k0 && keys1[i] == k1) {
+                V removed = (V) values[i];
+                deleteAt(i);
+                return removed;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    // Shift later members of the probe chain back into the hole
+    private void deleteAt(int gap) {
+        values[gap] = null;
+        size--;
+
+        int i = (gap + 1) & mask;
+        while (values[i] != null) {
+            int home = hash(keys0[i], keys1[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys0[gap] = keys0[i];
+                keys1[gap] = keys1[i];
+                values[gap] = values[i];
+                values[i] = null;
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys0 = keys0;
+        long[] oldKeys1 = keys1;
+        Object[] oldValues = values;
+        allocate(capacity);
+
+        for (int i = 0; i < oldValues.length; i++) {
+            Object value = oldValues[i];
+            if (value == null) continue;
+
+            int j = hash(oldKeys0[i], oldKeys1[i]) & mask;
+            while (values[j] != null) {
+                j = (j + 1) & mask;
+            }
+            keys0[j] = oldKeys0[i];
+            keys1[j] = oldKeys1[i];
+            values[j] = value;
+        }
+    }
+
+    // Snapshot of all flows, for sweeps that may remove entries as they go
+    @SuppressWarnings("unchecked")
+    public void values(List<V> out) {
+        for (Object value : values) {
+            if (value != null) out.add((V) value);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+}
@@ -0,0 +1,185 @@
+package com.netsniff.app;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// IPv4 datagrams that apps send in fragments, put back together before the
+// shard handles them. Fragments are keyed by addresses, protocol and IP ID.
+// What is held is capped per shard: when a new datagram does not fit, the
+// oldest incomplete one is dropped, and any datagram still incomplete after
+// TIMEOUT_MS is dropped by its timer. Overlapping fragments drop the whole
+// datagram rather than pick which copy of the bytes to believe.
+// Owned by a single shard thread.
+public class FragmentReassembler {
+    static final long TIMEOUT_MS = 15000;  // RFC 791's lower bound
+    private static final int MAX_BYTES = 512 * 1024;
+    private static final int MAX_DATAGRAMS = 64;
+    private static final int MAX_TOTAL_LENGTH = 65535;
+
+    static class Datagram {
+        final TimerWheel.Timer timer = new TimerWheel.Timer(this);
+        final long key0;
+        final long key1;
+        final TreeMap<Integer, byte[]> pieces = new TreeMap<>();
+        byte[] header;       // from the first fragment, options included
+        int payloadLength = -1;  // known once the last fragment is in
+        int bytes;
+
+        Datagram(long key0, long key1) {
+            this.key0 = key0;
+            this.key1 = key1;
+        }
+    }
+
+    private final TimerWheel timers;
+    private final FlowTable<Datagram> datagrams = new FlowTable<>(MAX_DATAGRAMS);
+    private final ArrayDeque<Datagram> oldestFirst = new ArrayDeque<>();
+    private int bytes;
+
+    private final AtomicLong fragments = new AtomicLong(0);
+    private final AtomicLong reassembled = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    FragmentReassembler(TimerWheel timers) {
+        this.timers = timers;
+    }
+
+    static boolean isFragment(byte[] packet) {
+        // More-fragments flag or a non-zero offset
+        return ((packet[6] & 0x3F) | (packet[7] & 0xFF)) != 0;
+    }
+
+    // Add one fragment; returns the whole datagram with an unfragmented
+    // header once its last piece is in, otherwise null
+    byte[] add(byte[] packet, int length, long now) {
+        fragments.incrementAndGet();
+        int ihl = (packet[0] & 0xF) * 4;
+        int totalLength = Math.min(length, ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF));
+        int flags = ((packet[6] & 0xFF) << 8) | (packet[7] & 0xFF);
+        boolean more = (flags & 0x2000) != 0;
+        int offset = (flags & 0x1FFF) * 8;
+        int size = totalLength - ihl;
+        // Every fragment but the last carries a multiple of 8 bytes
+        if (size <= 0 || ihl + offset + size > MAX_TOTAL_LENGTH || (more && (size & 7) != 0)) {
+            dropped.incrementAndGet();
+            return null;
+        }
+
+        long key0 = FlowTable.key0(readInt(packet, 12), readInt(packet, 16));
+        long key1 = FlowTable.key1((packet[4] & 0xFF) << 8 | (packet[5] & 0xFF), 0, packet[9] & 0xFF);
+        Datagram datagram = datagrams.get(key0, key1);
+        if (datagram == null) {
+            while (!oldestFirst.isEmpty() && (oldestFirst.size() >= MAX_DATAGRAMS || bytes + size > MAX_BYTES)) {
+                drop(oldestFirst.peekFirst());
+            }
+            if (size > MAX_BYTES) {
+                dropped.incrementAndGet();
+                return null;
+            }
+            datagram = new Datagram(key0, key1);
+            datagrams.put(key0, key1, datagram);
+            oldestFirst.addLast(datagram);
+            timers.schedule(datagram.timer, now + TIMEOUT_MS);
+        } else if (bytes + size > MAX_BYTES) {
+            drop(datagram);
+            return null;
+        }
+
+        if (overlaps(datagram, offset, size, more)) {
+            drop(datagram);
+            return null;
+        }
+        byte[] piece = new byte[size];
+        System.arraycopy(packet, ihl, piece, 0, size);
+        datagram.pieces.put(offset, piece);
+        datagram.bytes += size;
+        bytes += size;
+        if (offset == 0) {
+            datagram.header = new byte[ihl];
+            System.arraycopy(packet, 0, datagram.header, 0, ihl);
+        }
+        if (!more) {
+            datagram.payloadLength = offset + size;
+        }
+
+        // Pieces never overlap, so the byte count says when the holes are gone
+        if (datagram.header == null || datagram.bytes != datagram.payloadLength) return null;
+        remove(datagram);
+        reassembled.incrementAndGet();
+        return assemble(datagram);
+    }
+
+    private static boolean overlaps(Datagram datagram, int offset, int size, boolean more) {
+        Map.Entry<Integer, byte[]> before = datagram.pieces.floorEntry(offset);
+        if (before != null && before.getKey() + before.getValue().length > offset) return true;
+        Map.Entry<Integer, byte[]> after = datagram.pieces.higherEntry(offset);
+        if (after != null && after.getKey() < offset + size) return true;
+        // Nothing may lie beyond the last fragment
+        if (datagram.payloadLength >= 0 && offset + size > datagram.payloadLength) return true;
+        Map.Entry<Integer, byte[]> last = datagram.pieces.lastEntry();
+        return !more && last != null && last.getKey() > offset;
+    }
+
+    private static byte[] assemble(Datagram datagram) {
+        int ihl = datagram.header.length;
+        int totalLength = ihl + datagram.payloadLength;
+        byte[] packet = new byte[totalLength];
+        System.arraycopy(datagram.header, 0, packet, 0, ihl);
+        for (Map.Entry<Integer, byte[]> piece : datagram.pieces.entrySet()) {
+            byte[] data = piece.getValue();
+            System.arraycopy(data, 0, packet, ihl + piece.getKey(), data.length);
+        }
+        packet[2] = (byte) (totalLength >>> 8);
+        packet[3] = (byte) totalLength;
+        packet[6] = 0;
+        packet[7] = 0;
+        packet[10] = 0;
+        packet[11] = 0;
+        short checksum = PacketUtils.checksumFinish(PacketUtils.checksumAdd(packet, 0, ihl, 0));
+        packet[10] = (byte) (checksum >>> 8);
+        packet[11] = (byte) checksum;
+        return packet;
+    }
+
+    // Timer fired before the datagram completed
+    void expire(Datagram datagram) {
+        drop(datagram);
+    }
+
+    private void drop(Datagram datagram) {
+        remove(datagram);
+        dropped.incrementAndGet();
+    }
+
+    private void remove(Datagram datagram) {
+        timers.cancel(datagram.timer);
+        datagrams.remove(datagram.key0, datagram.key1);
+        oldestFirst.remove(datagram);
+        bytes -= datagram.bytes;
+    }
+
+    void clear() {
+        while (!oldestFirst.isEmpty()) {
+            remove(oldestFirst.peekFirst());
+        }
+    }
+
+    long getFragments() {
+        return fragments.get();
+    }
+
+    long getReassembled() {
+        return reassembled.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16)
+            | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+}
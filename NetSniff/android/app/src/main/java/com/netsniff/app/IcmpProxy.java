@@ -0,0 +1,444 @@
+package com.netsniff.app;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ping through the VPN. Echo requests from the TUN go out through one
+// unprivileged ping socket per IP version (SOCK_DGRAM + IPPROTO_ICMP), so no
+// root is needed; the kernel owns the echo ID, and requests are told apart
+// by a sequence number of our own. Replies are relayed back to the app with
+// its ID and sequence restored, and every round trip lands in a histogram
+// for its destination: a latency probe through the real forwarding path.
+//
+// The dispatcher thread sends; the proxy's own thread sleeps in poll() on
+// both sockets and a wakeup pipe.
+public class IcmpProxy implements Runnable {
+    private static final String TAG = "IcmpProxy";
+    private static final long TIMEOUT_MS = 5000;
+    private static final int MAX_PENDING = 1024;
+    private static final int MAX_DESTINATIONS = 64;
+    private static final int ECHO_HEADER_LEN = 8;
+    // Upper bounds of the RTT buckets; one more bucket takes the rest
+    static final int[] BUCKET_LIMITS_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+    private static class Pending {
+        final byte[] addresses;  // the request's source and destination, for the reply
+        final InetAddress dest;
+        final int id;
+        final int sequence;
+        final int uid;
+        final long sentAt;
+
+        Pending(byte[] addresses, InetAddress dest, int id, int sequence, int uid, long sentAt) {
+            this.addresses = addresses;
+            this.dest = dest;
+            this.id = id;
+            this.sequence = sequence;
+            this.uid = uid;
+            this.sentAt = sentAt;
+        }
+    }
+
+    static class RttStats {
+        long sent;
+        long replies;
+        long lost;
+        long minMicros = Long.MAX_VALUE;
+        long maxMicros;
+        long totalMicros;
+        final long[] buckets = new long[BUCKET_LIMITS_MS.length + 1];
+
+        void add(long micros) {
+            replies++;
+            minMicros = Math.min(minMicros, micros);
+            maxMicros = Math.max(maxMicros, micros);
+            totalMicros += micros;
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_MS.length && micros > BUCKET_LIMITS_MS[bucket] * 1000L) {
+                bucket++;
+            }
+            buckets[bucket]++;
+        }
+    }
+
+    private final ToyVpnService service;
+    private final TunWriter writer;
+    private final BufferPool pool;
+    private FileDescriptor socket4;
+    private FileDescriptor socket6;
+    private ParcelFileDescriptor[] wakeup;
+    private volatile boolean running;
+    private Thread thread;
+
+    private final HashMap<Integer, Pending> pending = new HashMap<>();
+    private int nextSequence;
+    private final Map<String, RttStats> destinations = new LinkedHashMap<String, RttStats>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RttStats> eldest) {
+            return size() > MAX_DESTINATIONS;
+        }
+    };
+
+    private final AtomicLong sent = new AtomicLong(0);
+    private final AtomicLong replies = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    // Reply payloads are read here; larger echoes than the MTU are not relayed
+    private final byte[] readBuffer = new byte[65536];
+
+    IcmpProxy(ToyVpnService service, TunWriter writer, BufferPool pool) {
+        this.service = service;
+        this.writer = writer;
+        this.pool = pool;
+    }
+
+    void start() throws IOException {
+        socket4 = openSocket(OsConstants.AF_INET, OsConstants.IPPROTO_ICMP);
+        socket6 = openSocket(OsConstants.AF_INET6, OsConstants.IPPROTO_ICMPV6);
+        wakeup = ParcelFileDescriptor.createPipe();
+        running = true;
+        thread = new Thread(this, "ICMP-Proxy");
+        thread.start();
+    }
+
+    // Null where the device does not allow ping sockets; pings of that
+    // version are dropped
+    private FileDescriptor openSocket(int family, int protocol) {
+        try {
+            FileDescriptor fd = Os.socket(family, OsConstants.SOCK_DGRAM, protocol);
+            Os.fcntlInt(fd, OsConstants.F_SETFL, OsConstants.O_NONBLOCK);
+            ParcelFileDescriptor dup = ParcelFileDescriptor.dup(fd);
+            try {
+                service.protect(dup.getFd());
+            } finally {
+                dup.close();
+            }
+            return fd;
+        } catch (ErrnoException | IOException e) {
+            Log.w(TAG, "Ping sockets unavailable for family " + family, e);
+            return null;
+        }
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+        if (wakeup != null) {
+            try { wakeup[1].close(); } catch (IOException ignored) {}
+        }
+        if (thread != null) thread.join(1000);
+        closeQuietly(socket4);
+        closeQuietly(socket6);
+        if (wakeup != null) {
+            try { wakeup[0].close(); } catch (IOException ignored) {}
+        }
+        synchronized (pending) {
+            pending.clear();
+        }
+    }
+
+    private static void closeQuietly(FileDescriptor fd) {
+        if (fd == null) return;
+        try {
+            Os.close(fd);
+        } catch (ErrnoException ignored) {
+        }
+    }
+
+    // ICMP echo request or ICMPv6 echo request with nothing in between. A
+    // fragment is not one yet: it is reassembled by a shard first.
+    static boolean isEchoRequest(byte[] packet, int length) {
+        int version = (packet[0] >> 4) & 0xF;
+        if (version == 4) {
+            int ihl = (packet[0] & 0xF) * 4;
+            return (packet[9] & 0xFF) == 1 && !FragmentReassembler.isFragment(packet)
+                && length >= ihl + ECHO_HEADER_LEN && (packet[ihl] & 0xFF) == 8;
+        }
+        return version == 6 && length >= 40 + ECHO_HEADER_LEN
+            && (packet[6] & 0xFF) == 58 && (packet[40] & 0xFF) == 128;
+    }
+
+    // Called from the dispatcher with an echo request, or from a shard with one
+    // it reassembled; the packet array is not kept
+    void send(byte[] packet, int length) {
+        boolean ipv6 = (packet[0] & 0xF0) == 0x60;
+        int ihl = ipv6 ? 40 : (packet[0] & 0xF) * 4;
+        if (!ipv6) {
+            length = Math.min(length, ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF));
+        } else {
+            length = Math.min(length, 40 + (((packet[4] & 0xFF) << 8) | (packet[5] & 0xFF)));
+        }
+        FileDescriptor socket = ipv6 ? socket6 : socket4;
+        if (socket == null || length < ihl + ECHO_HEADER_LEN) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        byte[] addresses = ipv6 ? new byte[32] : new byte[8];
+        System.arraycopy(packet, ipv6 ? 8 : 12, addresses, 0, addresses.length);
+        byte[] destBytes = new byte[addresses.length / 2];
+        System.arraycopy(addresses, destBytes.length, destBytes, 0, destBytes.length);
+        InetAddress dest;
+        try {
+            dest = InetAddress.getByAddress(destBytes);
+        } catch (UnknownHostException e) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (service.isBlockedIp(dest.getHostAddress())) {
+            Log.d(TAG, "Blocked ping to: " + dest.getHostAddress());
+            return;
+        }
+
+        int id = ((packet[ihl + 4] & 0xFF) << 8) | (packet[ihl + 5] & 0xFF);
+        int appSequence = ((packet[ihl + 6] & 0xFF) << 8) | (packet[ihl + 7] & 0xFF);
+        int uid = service.getMostLikelyActiveUid();
+        int sequence;
+        synchronized (pending) {
+            if (pending.size() >= MAX_PENDING) {
+                dropped.incrementAndGet();
+                return;
+            }
+            do {
+                sequence = nextSequence++ & 0xFFFF;
+            } while (pending.containsKey(sequence));
+            pending.put(sequence, new Pending(addresses, dest, id, appSequence, uid, System.nanoTime()));
+        }
+
+        // The kernel fills in its own echo ID and the checksum
+        packet[ihl + 2] = 0;
+        packet[ihl + 3] = 0;
+        packet[ihl + 6] = (byte) (sequence >>> 8);
+        packet[ihl + 7] = (byte) sequence;
+        try {
+            Os.sendto(socket, packet, ihl, length - ihl, 0, dest, 0);
+        } catch (ErrnoException | IOException e) {
+            Log.w(TAG, "Ping to " + dest.getHostAddress() + " failed", e);
+            synchronized (pending) {
+                pending.remove(sequence);
+            }
+            dropped.incrementAndGet();
+            return;
+        }
+        sent.incrementAndGet();
+        synchronized (destinations) {
+            statsFor(dest.getHostAddress()).sent++;
+        }
+        service.notifyPacketOptimized(packet, length, "outgoing", uid,
+            ipToString(addresses, 0, destBytes.length), 0, dest.getHostAddress(), 0, ipv6 ? 58 : 1);
+    }
+
+    @Override
+    public void run() {
+        StructPollfd[] fds = new StructPollfd[3];
+        fds[0] = pollFd(socket4);
+        fds[1] = pollFd(socket6);
+        fds[2] = pollFd(wakeup[0].getFileDescriptor());
+        long nextSweep = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (running) {
+            try {
+                for (StructPollfd fd : fds) {
+                    fd.revents = 0;
+                }
+                Os.poll(fds, (int) TIMEOUT_MS);
+                if (fds[2].revents != 0) break;
+                if (fds[0].revents != 0) drain(socket4, false);
+                if (fds[1].revents != 0) drain(socket6, true);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR) continue;
+                Log.e(TAG, "Poll failed", e);
+                break;
+            }
+            long now = System.currentTimeMillis();
+            if (now >= nextSweep) {
+                expire();
+                nextSweep = now + TIMEOUT_MS;
+            }
+        }
+        Log.d(TAG, "ICMP proxy stopped");
+    }
+
+    // A socket that failed to open gets an fd poll() ignores
+    private static StructPollfd pollFd(FileDescriptor fd) {
+        StructPollfd pollFd = new StructPollfd();
+        pollFd.fd = fd != null ? fd : new FileDescriptor();
+        pollFd.events = fd != null ? (short) OsConstants.POLLIN : 0;
+        return pollFd;
+    }
+
+    private void drain(FileDescriptor socket, boolean ipv6) {
+        InetSocketAddress from = new InetSocketAddress(0);
+        while (true) {
+            int length;
+            try {
+                length = Os.recvfrom(socket, readBuffer, 0, readBuffer.length, OsConstants.MSG_DONTWAIT, from);
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EAGAIN) Log.w(TAG, "Ping socket read failed", e);
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "Ping socket read failed", e);
+                return;
+            }
+            if (length < ECHO_HEADER_LEN) return;
+            relay(readBuffer, length, from.getAddress(), ipv6);
+        }
+    }
+
+    private void relay(byte[] reply, int length, InetAddress from, boolean ipv6) {
+        int sequence = ((reply[6] & 0xFF) << 8) | (reply[7] & 0xFF);
+        Pending request;
+        synchronized (pending) {
+            request = pending.get(sequence);
+            if (request == null || !request.dest.equals(from)) return;
+            pending.remove(sequence);
+        }
+        long micros = (System.nanoTime() - request.sentAt) / 1000;
+        replies.incrementAndGet();
+        String dest = request.dest.getHostAddress();
+        synchronized (destinations) {
+            statsFor(dest).add(micros);
+        }
+
+        int ipHeaderLen = ipv6 ? 40 : 20;
+        int totalSize = ipHeaderLen + length;
+        if (totalSize > service.getMtu()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        ByteBuffer packet = pool.acquire(totalSize);
+        byte[] addresses = request.addresses;
+        int half = addresses.length / 2;
+        if (ipv6) {
+            packet.putInt(0x60000000);
+            packet.putShort((short) length);
+            packet.put((byte) 58);
+            packet.put((byte) 64);
+        } else {
+            packet.put((byte) 0x45);
+            packet.put((byte) 0);
+            packet.putShort((short) totalSize);
+            packet.putInt(0);
+            packet.put((byte) 64);
+            packet.put((byte) 1);
+            packet.putShort((short) 0);
+        }
+        // Source and destination swapped
+        packet.put(addresses, half, half);
+        packet.put(addresses, 0, half);
+        packet.put((byte) (ipv6 ? 129 : 0));
+        packet.put((byte) 0);
+        packet.putShort((short) 0);
+        packet.putShort((short) request.id);
+        packet.putShort((short) request.sequence);
+        packet.put(reply, ECHO_HEADER_LEN, length - ECHO_HEADER_LEN);
+
+        long sum = 0;
+        if (ipv6) {
+            // ICMPv6 covers a pseudo-header; plain ICMP only its own message
+            sum = PacketUtils.checksumAdd(packet, 8, 32, 58 + length);
+        } else {
+            packet.putShort(10, PacketUtils.checksumFinish(PacketUtils.checksumAdd(packet, 0, 20, 0)));
+        }
+        sum = PacketUtils.checksumAdd(packet, ipHeaderLen, length, sum);
+        packet.putShort(ipHeaderLen + 2, PacketUtils.checksumFinish(sum));
+        packet.position(0);
+        writer.submit(packet);
+
+        service.notifyPacketOptimized(reply, length, "incoming", request.uid,
+            dest, 0, ipToString(addresses, 0, half), 0, ipv6 ? 58 : 1);
+    }
+
+    // Requests that never got a reply count as lost for their destination
+    private void expire() {
+        long deadline = System.nanoTime() - TIMEOUT_MS * 1000000L;
+        synchronized (pending) {
+            Iterator<Pending> it = pending.values().iterator();
+            while (it.hasNext()) {
+                Pending request = it.next();
+                if (request.sentAt - deadline > 0) continue;
+                it.remove();
+                timeouts.incrementAndGet();
+                synchronized (destinations) {
+                    statsFor(request.dest.getHostAddress()).lost++;
+                }
+            }
+        }
+    }
+
+    // Caller holds the destinations lock
+    private RttStats statsFor(String dest) {
+        RttStats stats = destinations.get(dest);
+        if (stats == null) {
+            stats = new RttStats();
+            destinations.put(dest, stats);
+        }
+        return stats;
+    }
+
+    private static String ipToString(byte[] addresses, int offset, int length) {
+        byte[] addr = new byte[length];
+        System.arraycopy(addresses, offset, addr, 0, length);
+        try {
+            return InetAddress.getByAddress(addr).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    JSObject getStats() {
+        JSObject stats = new JSObject();
+        stats.put("sent", sent.get());
+        stats.put("replies", replies.get());
+        stats.put("timeouts", timeouts.get());
+        stats.put("dropped", dropped.get());
+        JSArray bucketLimits = new JSArray();
+        for (int limit : BUCKET_LIMITS_MS) {
+            bucketLimits.put(limit);
+        }
+        stats.put("bucketLimitsMs", bucketLimits);
+
+        JSArray list = new JSArray();
+        synchronized (destinations) {
+            for (Map.Entry<String, RttStats> entry : destinations.entrySet()) {
+                RttStats rtt = entry.getValue();
+                JSObject o = new JSObject();
+                o.put("address", entry.getKey());
+                o.put("sent", rtt.sent);
+                o.put("replies", rtt.replies);
+                o.put("lost", rtt.lost);
+                if (rtt.replies > 0) {
+                    o.put("minMs", rtt.minMicros / 1000.0);
+                    o.put("avgMs", rtt.totalMicros / rtt.replies / 1000.0);
+                    o.put("maxMs", rtt.maxMicros / 1000.0);
+                }
+                JSArray buckets = new JSArray();
+                for (long count : rtt.buckets) {
+                    buckets.put(count);
+                }
+                o.put("histogram", buckets);
+                list.put(o);
+            }
+        }
+        stats.put("destinations", list);
+        return stats;
+    }
+}
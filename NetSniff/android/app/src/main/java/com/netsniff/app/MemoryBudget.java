@@ -0,0 +1,48 @@
+package com.netsniff.app;
+
+import com.getcapacitor.JSObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Engine-wide cap on bytes held per flow: upload data waiting for the remote
+// socket, out-of-order data, segments kept for retransmission and socket
+// buffers the window tuner grew past their initial size. Shards
+// charge what they hold and stop reading sockets or accepting data while the
+// budget is spent, so memory follows active bytes rather than flow count.
+public class MemoryBudget {
+    static final long DEFAULT_LIMIT = 32L * 1024 * 1024;
+
+    private final long limit;
+    private final AtomicLong used = new AtomicLong(0);
+    private volatile long peak = 0;
+
+    MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    void charge(long bytes) {
+        long now = used.addAndGet(bytes);
+        if (now > peak) peak = now;
+    }
+
+    void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    boolean isExhausted() {
+        return used.get() >= limit;
+    }
+
+    // What is left, for sizing reads and windows
+    long available() {
+        return Math.max(0, limit - used.get());
+    }
+
+    JSObject getStats() {
+        JSObject stats = new JSObject();
+        stats.put("used", used.get());
+        stats.put("peak", peak);
+        stats.put("limit", limit);
+        return stats;
+    }
+}
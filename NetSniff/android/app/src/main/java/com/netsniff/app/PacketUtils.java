@@ -1,117 +1,134 @@
 package com.netsniff.app;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 public class PacketUtils {
     
-   // Calculate IP header checksum
+    // Checksum engine. Sums are kept as unfolded longs: each 64-bit step adds
+    // its two 32-bit halves, which is equivalent to adding the four 16-bit
+    // words it contains once everything is folded back to 16 bits at the end.
+    // Nothing here moves the buffer position.
+    
+    // Calculate IP header checksum
     public static short calculateIPChecksum(ByteBuffer buffer, int start) {
-        int sum = 0;
-        buffer.position(start);
-        
         // IP header is always 20 bytes minimum
-        for (int i = 0; i < 10; i++) {
-            int word = buffer.getShort() & 0xFFFF;
-            sum += word;
-        }
-        
-        // Add overflow back
-        while ((sum >> 16) != 0) {
-            sum = (sum & 0xFFFF) + (sum >> 16);
-        }
-        
-        return (short) ~sum;
+        return checksumFinish(checksumAdd(buffer, start, 20, 0));
     }
     
     // Calculate TCP checksum including pseudo-header
     public static short calculateTCPChecksum(ByteBuffer buffer, int ipStart, int tcpStart, int tcpLength) {
-        long sum = 0;
-        
-        // Pseudo-header: source IP
-        buffer.position(ipStart + 12);
-        sum += (buffer.get() & 0xFF) << 8;
-        sum += buffer.get() & 0xFF;
-        sum += (buffer.get() & 0xFF) << 8;
-        sum += buffer.get() & 0xFF;
-        
-        // Pseudo-header: destination IP
-        sum += (buffer.get() & 0xFF) << 8;
-        sum += buffer.get() & 0xFF;
-        sum += (buffer.get() & 0xFF) << 8;
-        sum += buffer.get() & 0xFF;
-        
-        // Pseudo-header: protocol (TCP = 6)
-        sum += 6;
-        
-        // Pseudo-header: TCP length
-        sum += tcpLength;
+        // Pseudo-header: source + destination IP, protocol (TCP = 6), TCP length
+        long sum = checksumAdd(buffer, ipStart + 12, 8, 6 + tcpLength);
         
         // TCP header and data
-        buffer.position(tcpStart);
-        int words = tcpLength / 2;
-        for (int i = 0; i < words; i++) {
-            sum += buffer.getShort() & 0xFFFF;
-        }
-        
-        // Handle odd byte
-        if (tcpLength % 2 != 0) {
-            sum += (buffer.get() & 0xFF) << 8;
-        }
-        
-        // Add overflow back
-        while ((sum >> 16) != 0) {
-            sum = (sum & 0xFFFF) + (sum >> 16);
-        }
-        
-        return (short) ~sum;
+        return checksumFinish(checksumAdd(buffer, tcpStart, tcpLength, sum));
     }
     
     
     // Calculate UDP checksum including pseudo-header
 
     public static short calculateUDPChecksum(ByteBuffer buffer, int ipStart, int udpStart, int udpLength) {
-        long sum = 0;
-        
-        // Pseudo-header: source IP
-        buffer.position(ipStart + 12);
-        sum += (buffer.get() & 0xFF) << 8;
-        sum += buffer.get() & 0xFF;
-        sum += (buffer.get() & 0xFF) << 8;
-        sum += buffer.get() & 0xFF;
-        
-        // Pseudo-header: destination IP
-        sum += (buffer.get() & 0xFF) << 8;
-        sum += buffer.get() & 0xFF;
-        sum += (buffer.get() & 0xFF) << 8;
-        sum += buffer.get() & 0xFF;
-        
-        // Pseudo-header: protocol UDP = 17
-        sum += 17;
-        
-        // Pseudo-header: UDP length
-        sum += udpLength;
+        // Pseudo-header: source + destination IP, protocol (UDP = 17), UDP length
+        long sum = checksumAdd(buffer, ipStart + 12, 8, 17 + udpLength);
         
         // UDP header and data
-        buffer.position(udpStart);
-        int words = udpLength / 2;
-        for (int i = 0; i < words; i++) {
-            sum += buffer.getShort() & 0xFFFF;
+        short checksum = checksumFinish(checksumAdd(buffer, udpStart, udpLength, sum));
+        // UDP checksum of 0 means no checksum
+        return checksum == 0 ? (short) 0xFFFF : checksum;
+    }
+    
+    // Add len bytes starting at offset to a running one's complement sum.
+    // Works on heap and direct buffers. Regions that start on an odd offset
+    // of the checksummed data must be summed separately and merged with
+    // checksumCombine().
+    public static long checksumAdd(ByteBuffer buffer, int offset, int len, long sum) {
+        if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+            // Sum in the buffer's order, then swap into network order
+            return sum + swap16(checksumFold(sumWords(buffer, offset, len, true)));
         }
+        return sum + sumWords(buffer, offset, len, false);
+    }
+    
+    private static long sumWords(ByteBuffer buffer, int offset, int len, boolean littleEndian) {
+        long sum = 0;
+        int i = offset;
+        int end = offset + len;
         
-        // Handle odd byte
-        if (udpLength % 2 != 0) {
-            sum += (buffer.get() & 0xFF) << 8;
+        for (; i + 8 <= end; i += 8) {
+            long w = buffer.getLong(i);
+            sum += (w >>> 32) + (w & 0xFFFFFFFFL);
         }
-        
-        // Add overflow back
-        while ((sum >> 16) != 0) {
-            sum = (sum & 0xFFFF) + (sum >> 16);
+        for (; i + 2 <= end; i += 2) {
+            sum += buffer.getShort(i) & 0xFFFF;
         }
-        
-        short checksum = (short) ~sum;
-        // UDP checksum of 0 means no checksum
-        return checksum == 0 ? (short) 0xFFFF : checksum;
+        if (i < end) {
+            int last = buffer.get(i) & 0xFF;
+            sum += littleEndian ? last : last << 8;
+        }
+        return sum;
+    }
+    
+    public static long checksumAdd(byte[] data, int offset, int len, long sum) {
+        int i = offset;
+        int end = offset + len;
+        
+        for (; i + 8 <= end; i += 8) {
+            long hi = ((data[i] & 0xFF) << 24) | ((data[i + 1] & 0xFF) << 16)
+                    | ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+            long lo = ((data[i + 4] & 0xFF) << 24) | ((data[i + 5] & 0xFF) << 16)
+                    | ((data[i + 6] & 0xFF) << 8) | (data[i + 7] & 0xFF);
+            sum += (hi & 0xFFFFFFFFL) + (lo & 0xFFFFFFFFL);
+        }
+        for (; i + 2 <= end; i += 2) {
+            sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+        }
+        if (i < end) {
+            sum += (data[i] & 0xFF) << 8;
+        }
+        return sum;
+    }
+    
+    // Merge a partial sum computed over a region that starts partialOffset
+    // bytes into the checksummed data. Odd offsets put the region's bytes in
+    // the other half of each 16-bit word, so its folded sum is byte-swapped.
+    public static long checksumCombine(long sum, long partial, int partialOffset) {
+        if ((partialOffset & 1) != 0) {
+            return sum + swap16(checksumFold(partial));
+        }
+        return sum + partial;
+    }
+    
+    // Fold a running sum to 16 bits without complementing it
+    public static int checksumFold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+    
+    // Fold a running sum to 16 bits and complement it
+    public static short checksumFinish(long sum) {
+        return (short) ~checksumFold(sum);
+    }
+    
+    // RFC 1624 eqn. 3: HC' = ~(~HC + ~m + m') when a 16-bit field changes from m to m'
+    public static short checksumUpdate(short checksum, int oldWord, int newWord) {
+        long sum = (~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+        return checksumFinish(sum);
+    }
+    
+    // Same for a 32-bit field such as a sequence number or an IPv4 address
+    public static short checksumUpdate32(short checksum, int oldValue, int newValue) {
+        long sum = (~checksum & 0xFFFF)
+            + (~(oldValue >>> 16) & 0xFFFF) + (~oldValue & 0xFFFF)
+            + (newValue >>> 16) + (newValue & 0xFFFF);
+        return checksumFinish(sum);
+    }
+    
+    private static int swap16(int value) {
+        return ((value & 0xFF) << 8) | ((value >>> 8) & 0xFF);
     }
     
     // Extract IP addresses from packet
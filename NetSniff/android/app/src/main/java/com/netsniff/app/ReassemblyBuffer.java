@@ -0,0 +1,144 @@
+package com.netsniff.app;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Out-of-order TCP data from the app, held until the hole in front of it
+// fills. Pieces are keyed by unwrapped 64-bit sequence number and never
+// overlap: new data is trimmed against what is already stored, so every
+// byte is kept once. Owned by a single shard thread.
+public class ReassemblyBuffer {
+    private final TreeMap<Long, byte[]> pieces = new TreeMap<>();
+    private int bytes;
+    private long lastStart = -1;  // piece most recently added, reported first in SACK
+
+    // Store [seq, seq + length) beyond nextExpected; returns the bytes actually kept
+    int insert(long seq, byte[] data, int offset, int length, long nextExpected) {
+        long start = seq;
+        long end = seq + length;
+        if (start < nextExpected) {
+            offset += (int) (nextExpected - start);
+            start = nextExpected;
+        }
+        if (end <= start) return 0;
+
+        // Trim the front against the piece that starts at or before us
+        Map.Entry<Long, byte[]> before = pieces.floorEntry(start);
+        if (before != null) {
+            long beforeEnd = before.getKey() + before.getValue().length;
+            if (beforeEnd >= end) return 0;
+            if (beforeEnd > start) {
+                offset += (int) (beforeEnd - start);
+                start = beforeEnd;
+            }
+        }
+
+        // Drop pieces we cover completely, stop short of one we only overlap
+        Map.Entry<Long, byte[]> after;
+        while ((after = pieces.ceilingEntry(start)) != null && after.getKey() < end) {
+            long afterEnd = after.getKey() + after.getValue().length;
+            if (afterEnd <= end) {
+                pieces.remove(after.getKey());
+                bytes -= after.getValue().length;
+            } else {
+                end = after.getKey();
+                break;
+            }
+        }
+        if (end <= start) return 0;
+
+        int kept = (int) (end - start);
+        byte[] piece = new byte[kept];
+        System.arraycopy(data, offset, piece, 0, kept);
+        pieces.put(start, piece);
+        bytes += kept;
+        lastStart = start;
+        return kept;
+    }
+
+    // Remove and return the data at nextExpected, if the hole in front of it is gone.
+    // An in-order segment may have overrun stored pieces; their stale part is dropped.
+    byte[] pollContiguous(long nextExpected) {
+        Map.Entry<Long, byte[]> first;
+        while ((first = pieces.firstEntry()) != null && first.getKey() <= nextExpected) {
+            pieces.pollFirstEntry();
+            byte[] piece = first.getValue();
+            bytes -= piece.length;
+
+            long start = first.getKey();
+            if (start + piece.length <= nextExpected) continue;
+            if (start == nextExpected) return piece;
+            return Arrays.copyOfRange(piece, (int) (nextExpected - start), piece.length);
+        }
+        return null;
+    }
+
+    // Merge adjacent pieces into at most maxBlocks SACK blocks, written to out
+    // as start/end pairs. The block holding the latest arrival goes first
+    // (RFC 2018), the rest follow in sequence order.
+    int sackBlocks(long[] out, int maxBlocks) {
+        if (pieces.isEmpty() || maxBlocks <= 0) return 0;
+
+        int count = 0;
+        long latestStart = -1;
+        long blockStart = -1;
+        long blockEnd = -1;
+        for (Map.Entry<Long, byte[]> piece : pieces.entrySet()) {
+            long start = piece.getKey();
+            if (start != blockEnd) blockStart = start;
+            blockEnd = start + piece.getValue().length;
+            if (start == lastStart) latestStart = blockStart;
+        }
+        if (latestStart >= 0) {
+            out[0] = latestStart;
+            out[1] = blockEndFrom(latestStart);
+            count = 1;
+        }
+
+        blockStart = -1;
+        blockEnd = -1;
+        for (Map.Entry<Long, byte[]> piece : pieces.entrySet()) {
+            long start = piece.getKey();
+            if (start != blockEnd) {
+                if (blockStart >= 0 && blockStart != latestStart) {
+                    if (count == maxBlocks) return count;
+                    out[count * 2] = blockStart;
+                    out[count * 2 + 1] = blockEnd;
+                    count++;
+                }
+                blockStart = start;
+            }
+            blockEnd = start + piece.getValue().length;
+        }
+        if (blockStart >= 0 && blockStart != latestStart && count < maxBlocks) {
+            out[count * 2] = blockStart;
+            out[count * 2 + 1] = blockEnd;
+            count++;
+        }
+        return count;
+    }
+
+    private long blockEndFrom(long start) {
+        long end = start;
+        Map.Entry<Long, byte[]> piece;
+        while ((piece = pieces.ceilingEntry(end)) != null && piece.getKey() == end) {
+            end += piece.getValue().length;
+        }
+        return end;
+    }
+
+    int bytes() {
+        return bytes;
+    }
+
+    boolean isEmpty() {
+        return pieces.isEmpty();
+    }
+
+    void clear() {
+        pieces.clear();
+        bytes = 0;
+        lastStart = -1;
+    }
+}
@@ -0,0 +1,131 @@
+package com.netsniff.app;
+
+import java.util.ArrayDeque;
+
+// Segments sent toward the app that it has not acknowledged yet, with the
+// RTT estimator and retransmission timeout of RFC 6298. Segments hold a
+// reference to the pooled packet that went to the TunWriter, so keeping them
+// for retransmission costs no extra copy; the buffer returns to the pool once
+// both the writer and this queue have let go of it.
+// Owned by a single shard thread.
+public class RetransmitQueue {
+    static final long INITIAL_RTO_MS = 1000;
+    static final long MIN_RTO_MS = 200;
+    static final long MAX_RTO_MS = 60000;
+    static final int DUP_ACK_THRESHOLD = 3;
+    private static final int MAX_BACKOFF = 8;
+    private static final long SEQ_MASK = 0xFFFFFFFFL;
+
+    public static class Sent {
+        final long seq;
+        final int length;  // sequence space, FIN counts as 1
+        final BufferPool.Shared packet;
+        long sentAt;
+        int retransmits;
+
+        Sent(long seq, int length, BufferPool.Shared packet, long sentAt) {
+            this.seq = seq;
+            this.length = length;
+            this.packet = packet;
+            this.sentAt = sentAt;
+        }
+    }
+
+    final FlowShard.TcpConnection conn;
+    final TimerWheel.Timer timer = new TimerWheel.Timer(this);
+    private final ArrayDeque<Sent> unacked = new ArrayDeque<>();
+    private long bytes;
+
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = INITIAL_RTO_MS;
+    private int backoff;
+    private int dupAcks;
+
+    RetransmitQueue(FlowShard.TcpConnection conn) {
+        this.conn = conn;
+    }
+
+    // Takes over the caller's reference to the packet
+    void add(long seq, int length, BufferPool.Shared packet, long now) {
+        unacked.addLast(new Sent(seq & SEQ_MASK, length, packet, now));
+        bytes += length;
+    }
+
+    // Drop everything the cumulative ACK covers; returns the segments freed
+    int onAck(long ackSeq, long now) {
+        int freed = 0;
+        long rttSample = -1;
+        Sent sent;
+        while ((sent = unacked.peekFirst()) != null) {
+            long covered = (ackSeq - sent.seq) & SEQ_MASK;
+            if (covered < sent.length || covered >= 0x80000000L) break;
+
+            unacked.pollFirst();
+            bytes -= sent.length;
+            // Karn: retransmitted segments give ambiguous samples
+            if (sent.retransmits == 0) rttSample = now - sent.sentAt;
+            sent.packet.release();
+            freed++;
+        }
+
+        if (freed > 0) {
+            dupAcks = 0;
+            backoff = 0;
+            if (rttSample >= 0) updateRto(rttSample);
+        }
+        return freed;
+    }
+
+    // True when this duplicate ACK should trigger a fast retransmit
+    boolean onDuplicateAck() {
+        return !unacked.isEmpty() && ++dupAcks == DUP_ACK_THRESHOLD;
+    }
+
+    void onTimeout() {
+        if (backoff < MAX_BACKOFF) backoff++;
+        dupAcks = 0;
+    }
+
+    private void updateRto(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS,
+            srtt + Math.max(TimerWheel.TICK_MS, 4 * rttvar)));
+    }
+
+    long currentRto() {
+        return Math.min(MAX_RTO_MS, rto << backoff);
+    }
+
+    // Smoothed RTT in ms, or -1 before the first sample
+    long getSrtt() {
+        return srtt;
+    }
+
+    Sent first() {
+        return unacked.peekFirst();
+    }
+
+    // Sequence space held, which is what the memory budget is charged for
+    long bytes() {
+        return bytes;
+    }
+
+    boolean isEmpty() {
+        return unacked.isEmpty();
+    }
+
+    void clear() {
+        Sent sent;
+        while ((sent = unacked.pollFirst()) != null) {
+            sent.packet.release();
+        }
+        bytes = 0;
+    }
+}
@@ -0,0 +1,167 @@
+package com.netsniff.app;
+
+import java.util.List;
+
+// Hierarchical timing wheel for flow expiry. Four levels of 64 slots at a
+// 10 ms tick cover about 46 hours; timers far in the future sit in a coarse
+// level and cascade down as their slot comes round. Scheduling, cancelling
+// and expiring a timer are all O(1): timers are intrusive list nodes owned by
+// the flow, so nothing is allocated after a flow's timer is created.
+// Not thread-safe: each shard owns its own wheel.
+public class TimerWheel {
+    static final long TICK_MS = 10;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    public static class Timer {
+        final Object owner;
+        long deadlineTick;
+        Timer prev;
+        Timer next;
+
+        Timer(Object owner) {
+            this.owner = owner;
+        }
+
+        boolean isScheduled() {
+            return next != null;
+        }
+    }
+
+    // Slot heads are sentinels of circular doubly linked lists
+    private final Timer[][] wheels = new Timer[LEVELS][SLOTS];
+    private long currentTick;
+    private int size;
+
+    public TimerWheel(long nowMs) {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer head = new Timer(null);
+                head.prev = head;
+                head.next = head;
+                wheels[level][slot] = head;
+            }
+        }
+        currentTick = nowMs / TICK_MS;
+    }
+
+    // (Re)arm a timer; an already scheduled timer is moved
+    public void schedule(Timer timer, long deadlineMs) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+        } else {
+            size++;
+        }
+
+        long tick = deadlineMs / TICK_MS;
+        // The current slot has already been expired, so the earliest is the next tick
+        timer.deadlineTick = Math.min(Math.max(tick, currentTick + 1), currentTick + MAX_DELTA);
+        insert(timer);
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    // Move the wheel up to nowMs and collect every timer that fell due
+    public void advance(long nowMs, List<Timer> expired) {
+        long target = nowMs / TICK_MS;
+        if (size == 0) {
+            if (target > currentTick) currentTick = target;
+            return;
+        }
+
+        while (currentTick < target) {
+            currentTick++;
+            cascade();
+
+            Timer head = wheels[0][(int) (currentTick & SLOT_MASK)];
+            while (head.next != head) {
+                Timer timer = head.next;
+                unlink(timer);
+                size--;
+                expired.add(timer);
+            }
+            if (size == 0) {
+                currentTick = target;
+                break;
+            }
+        }
+    }
+
+    // Time until advance() has work to do, for the selector timeout. Looks no
+    // further than the next level-0 wrap, where a cascade may bring timers down.
+    public long millisUntilNext(long nowMs) {
+        if (size == 0) return Long.MAX_VALUE;
+
+        long wrapTick = (currentTick | SLOT_MASK) + 1;
+        long tick = currentTick + 1;
+        while (tick < wrapTick) {
+            Timer head = wheels[0][(int) (tick & SLOT_MASK)];
+            if (head.next != head) break;
+            tick++;
+        }
+        return Math.max(0, tick * TICK_MS - nowMs);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (Timer[] wheel : wheels) {
+            for (Timer head : wheel) {
+                while (head.next != head) {
+                    unlink(head.next);
+                }
+            }
+        }
+        size = 0;
+    }
+
+    private void insert(Timer timer) {
+        long delta = timer.deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((timer.deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+
+        Timer head = wheels[level][slot];
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private static void unlink(Timer timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    // When a lower level wraps, redistribute the matching slot of the level
+    // above; highest level first so its timers can fall through every level
+    private void cascade() {
+        int top = 0;
+        while (top < LEVELS - 1 && (currentTick & ((1L << (SLOT_BITS * (top + 1))) - 1)) == 0) {
+            top++;
+        }
+
+        for (int level = top; level >= 1; level--) {
+            Timer head = wheels[level][(int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+            while (head.next != head) {
+                Timer timer = head.next;
+                unlink(timer);
+                insert(timer);
+            }
+        }
+    }
+}
@@ -86,6 +86,9 @@ public class ToyVpnPlugin extends Plugin {
         try {
             Intent vpnIntent = new Intent(getContext(), ToyVpnService.class);
             vpnIntent.setAction(ToyVpnService.ACTION_CONNECT);
+            vpnIntent.putExtra(ToyVpnService.EXTRA_SHARDS, call.getInt("shards", 0));
+            vpnIntent.putExtra(ToyVpnService.EXTRA_RACE_DNS, call.getBoolean("raceDns", true));
+            vpnIntent.putExtra(ToyVpnService.EXTRA_MTU, call.getInt("mtu", ToyVpnService.DEFAULT_MTU));
             
             if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
                 getContext().startForegroundService(vpnIntent);
@@ -154,6 +157,16 @@ public class ToyVpnPlugin extends Plugin {
         }
     }
 
+    @PluginMethod
+    public void getEngineStats(PluginCall call) {
+        try {
+            call.resolve(ToyVpnService.getEngineStats());
+        } catch (Exception e) {
+            Log.e(TAG, "Error in getEngineStats", e);
+            call.reject("Failed to get engine stats: " + e.getMessage());
+        }
+    }
+
     @PluginMethod
     public void getTraffic(PluginCall call) {
         try {
@@ -7,55 +7,69 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.usage.UsageEvents;
 import android.app.usage.UsageStatsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
 import androidx.core.app.NotificationCompat;
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class ToyVpnService extends VpnService {
     private static final String TAG = "ToyVpnService";
-    private static final int MAX_PACKET_SIZE = 32767;
+    static final int MAX_PACKET_SIZE = 32767;
     private static final String VPN_ADDRESS = "10.0.0.2";
     private static final String VPN_ROUTE = "0.0.0.0";
+    // Unique local address, so IPv6 traffic is routed through the tunnel too
+    private static final String VPN_ADDRESS_V6 = "fd00:4e53::2";
+    private static final String VPN_ROUTE_V6 = "::";
     private static final long DNS_REFRESH_INTERVAL_MS = 300000;
-    private static final int MTU = 1500; // Standard MTU
+    private static final long USAGE_POLL_INTERVAL_MS = 2000;
+    // Apps last seen longer ago than this no longer count as recent
+    private static final long FOREGROUND_WINDOW_MS = 5 * 60 * 1000;
+    // Usage events can be recorded this long after their timestamp
+    private static final long USAGE_EVENT_OVERLAP_MS = 2000;
+    static final int DEFAULT_MTU = 1500; // Standard MTU
+    // The TUN never touches a wire, so its MTU can go up to the IP limit
+    static final int MAX_MTU = 65535;
+    private static final int MAX_SHARDS = 8;
     
     private static final int NOTIFICATION_ID = 1234;
     private static final String CHANNEL_ID = "NetSniffVpnChannel";
     
     public static final String ACTION_CONNECT = "com.netsniff.app.START";
     public static final String ACTION_DISCONNECT = "com.netsniff.app.STOP";
+    public static final String EXTRA_SHARDS = "com.netsniff.app.SHARDS";
+    public static final String EXTRA_RACE_DNS = "com.netsniff.app.RACE_DNS";
+    public static final String EXTRA_MTU = "com.netsniff.app.MTU";
     
-    public static final int TCP_IDLE = 0;
-    public static final int TCP_SYN_SENT = 1;
-    public static final int TCP_SYN_RECEIVED = 2;
-    public static final int TCP_ESTABLISHED = 3;
-    public static final int TCP_FIN_WAIT = 4;
-    public static final int TCP_CLOSE_WAIT = 5;
-    public static final int TCP_CLOSING = 6;
-    public static final int TCP_CLOSED = 7;
+    // Resolvers handed to apps; queries to them are forwarded by the shards
+    static final String[] DNS_SERVERS = { "8.8.8.8", "1.1.1.1" };
+    
+    private static volatile ToyVpnService instance;
     
     private ParcelFileDescriptor vpnInterface = null;
     private AtomicBoolean running = new AtomicBoolean(false);
@@ -64,21 +78,34 @@ public class ToyVpnService extends VpnService {
     private Thread vpnThread;
     private Thread writeThread;
     private Thread dnsResolverThread;
-    private Selector selector;
+    private ParcelFileDescriptor[] tunPollWakeup;
+    
+    private volatile FlowShard[] shards = new FlowShard[0];
+    private int requestedShards = 0;
+    private boolean raceDns = true;
+    private int mtu = DEFAULT_MTU;
     
-    private ConcurrentHashMap<String, TcpConnection> tcpConnections;
-    private ConcurrentHashMap<String, UdpConnection> udpConnections;
+    // Bytes moved through the TUN against process CPU time, to compare MTUs
+    private final AtomicLong tunBytesRead = new AtomicLong(0);
+    private long cpuAtStart;
     private Set<Integer> allowedUids;
     
-    private BlockingQueue<ByteBuffer> writeQueue;
+    private TunWriter tunWriter;
+    private BufferPool bufferPool;
+    private IcmpProxy icmpProxy;
+    private UidResolver uidResolver;
+    private MemoryBudget memoryBudget;
+    private DnsCache dnsCache;
     private AtomicLong packetCounter = new AtomicLong(0);
     
     private PackageManager packageManager;
     private UsageStatsManager usageStatsManager;
+    private ConnectivityManager connectivityManager;
     private Map<Integer, List<String>> uidToPackagesMap;
     private Map<Integer, String> uidToAppNameMap;
-    private Map<String, Long> recentForegroundApps;
+    private volatile ForegroundApps recentForegroundApps = ForegroundApps.EMPTY;
     private final Object uidCacheLock = new Object();
+    private volatile int mostLikelyUid = -1;
     
     private PacketAggregator packetAggregator;
     
@@ -86,91 +113,39 @@ public class ToyVpnService extends VpnService {
     private Set<String> blockedIps;
     private ConcurrentHashMap<String, Set<String>> domainToIpsMap;
     private final Object blockingLock = new Object();
+    // Moves whenever the blocklist may have changed. Flows remember the value
+    // they were last checked at, so the per-packet check is one read.
+    private static final AtomicInteger blocklistGeneration = new AtomicInteger(0);
     
+    private PowerManager powerManager;
     private PowerManager.WakeLock wakeLock;
-
-    public static class TcpConnection {
-        SocketChannel channel;
-        String key;
-        String sourceIp;
-        int sourcePort;
-        String destIp;
-        int destPort;
-        long lastActivity;
-        int uid;
-        
-        int state;
-        long localSeq;
-        long remoteSeq;
-        long localSeqStart;
-        long remoteSeqStart;
-        long remoteAck;  // tracking remote ACK 
-        int sendWindow;
-        int recvWindow;
-        int mss;
-        boolean windowScaleSupported;
-        int recvScale;
-        int sendScale;
-        
-        ByteBuffer readBuffer;
-        LinkedList<Segment> forwardQueue;
-        ByteBuffer pendingWrite;
-
-        TcpConnection(String key, String sourceIp, int sourcePort, String destIp, int destPort, int uid) {
-            this.key = key;
-            this.sourceIp = sourceIp;
-            this.sourcePort = sourcePort;
-            this.destIp = destIp;
-            this.destPort = destPort;
-            this.uid = uid;
-            this.lastActivity = System.currentTimeMillis();
-            this.readBuffer = ByteBuffer.allocate(65536);
-            this.forwardQueue = new LinkedList<>();
-            this.state = TCP_IDLE;
-            this.localSeq = (long) (Math.random() * 0xFFFFFFFFL);
-            this.localSeqStart = this.localSeq;
-            this.remoteSeq = 0;
-            this.remoteSeqStart = 0;
-            this.remoteAck = 0;
-            this.sendWindow = 65535;
-            this.recvWindow = 65535;
-            this.mss = 1460;
-            this.windowScaleSupported = false;
-            this.recvScale = 0;
-            this.sendScale = 0;
-        }
-    }
     
-    public static class Segment {
-        long seq;
-        byte[] data;
-        boolean psh;
-        
-        Segment(long seq, byte[] data, boolean psh) {
-            this.seq = seq;
-            this.data = data;
-            this.psh = psh;
-        }
-    }
+    // The usage tracker only polls while the screen is on
+    private Thread usageStatsThread;
+    private BroadcastReceiver screenReceiver;
+    private volatile boolean screenOn = true;
+    private final Object screenLock = new Object();
     
-    public static class UdpConnection {
-        DatagramChannel channel;
-        String key;
-        String sourceIp;
-        int sourcePort;
-        String destIp;
-        int destPort;
-        long lastActivity;
-        int uid;
+    // Last foreground or background event time per package, within
+    // FOREGROUND_WINDOW_MS. Immutable: the usage tracker publishes a new
+    // one when something changed, and readers take it without locking.
+    private static class ForegroundApps {
+        static final ForegroundApps EMPTY = new ForegroundApps(Collections.<String, Long>emptyMap());
         
-        UdpConnection(String key, String sourceIp, int sourcePort, String destIp, int destPort, int uid) {
-            this.key = key;
-            this.sourceIp = sourceIp;
-            this.sourcePort = sourcePort;
-            this.destIp = destIp;
-            this.destPort = destPort;
-            this.uid = uid;
-            this.lastActivity = System.currentTimeMillis();
+        final Map<String, Long> lastSeen;
+        final String mostRecentPackage;
+        
+        ForegroundApps(Map<String, Long> lastSeen) {
+            this.lastSeen = Collections.unmodifiableMap(lastSeen);
+            String mostRecent = null;
+            long mostRecentTime = 0;
+            for (Map.Entry<String, Long> entry : lastSeen.entrySet()) {
+                if (entry.getValue() > mostRecentTime) {
+                    mostRecentTime = entry.getValue();
+                    mostRecent = entry.getKey();
+                }
+            }
+            this.mostRecentPackage = mostRecent;
         }
     }
 
@@ -181,14 +156,11 @@ public class ToyVpnService extends VpnService {
         createNotificationChannel();
         packageManager = getPackageManager();
         usageStatsManager = (UsageStatsManager) getSystemService(Context.USAGE_STATS_SERVICE);
+        connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
         
-        tcpConnections = new ConcurrentHashMap<>();
-        udpConnections = new ConcurrentHashMap<>();
         allowedUids = new HashSet<>();
         uidToPackagesMap = new HashMap<>();
         uidToAppNameMap = new HashMap<>();
-        recentForegroundApps = new HashMap<>();
-        writeQueue = new LinkedBlockingQueue<>(5000);
         
         packetAggregator = new PacketAggregator();
         
@@ -196,12 +168,13 @@ public class ToyVpnService extends VpnService {
         blockedIps = ConcurrentHashMap.newKeySet();
         domainToIpsMap = new ConcurrentHashMap<>();
         
-        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "NetSniff::VpnWakeLock");
         
         Allowed.loadBlacklist(getApplicationContext());
         
         buildUidCache();
+        instance = this;
     }
     
     private void buildUidCache() {
@@ -275,27 +248,28 @@ public class ToyVpnService extends VpnService {
         return "Unknown";
     }
     
-    private int getMostLikelyActiveUid() {
-        synchronized (uidCacheLock) {
-            String mostRecentPackage = null;
-            long mostRecentTime = 0;
-            
-            for (Map.Entry<String, Long> entry : recentForegroundApps.entrySet()) {
-                if (entry.getValue() > mostRecentTime) {
-                    mostRecentTime = entry.getValue();
-                    mostRecentPackage = entry.getKey();
-                }
-            }
-            
-            if (mostRecentPackage != null) {
-                try {
-                    ApplicationInfo ai = packageManager.getApplicationInfo(mostRecentPackage, 0);
-                    return ai.uid;
-                } catch (PackageManager.NameNotFoundException e) {
-                }
+    int getMtu() {
+        return mtu;
+    }
+    
+    // A new flow's first guess, read on the shard threads; UidResolver
+    // replaces it with the socket's real owner
+    int getMostLikelyActiveUid() {
+        return mostLikelyUid;
+    }
+    
+    // Run by the usage tracker when the most recent app changes, so the
+    // package lookup (a binder call) stays off the packet path
+    private void updateMostLikelyUid(String mostRecentPackage) {
+        int uid = -1;
+        if (mostRecentPackage != null) {
+            try {
+                ApplicationInfo ai = packageManager.getApplicationInfo(mostRecentPackage, 0);
+                uid = ai.uid;
+            } catch (PackageManager.NameNotFoundException e) {
             }
         }
-        return -1;
+        mostLikelyUid = uid;
     }
     
     private void createNotificationChannel() {
@@ -350,6 +324,12 @@ public class ToyVpnService extends VpnService {
             return START_STICKY;
         }
         
+        if (intent != null) {
+            requestedShards = intent.getIntExtra(EXTRA_SHARDS, 0);
+            raceDns = intent.getBooleanExtra(EXTRA_RACE_DNS, true);
+            mtu = Math.max(DEFAULT_MTU, Math.min(MAX_MTU, intent.getIntExtra(EXTRA_MTU, DEFAULT_MTU)));
+        }
+        
         startForeground(NOTIFICATION_ID, createNotification());
         
         if (!wakeLock.isHeld()) {
@@ -366,12 +346,15 @@ public class ToyVpnService extends VpnService {
             Builder builder = new Builder()
                 .addAddress(VPN_ADDRESS, 32)
                 .addRoute(VPN_ROUTE, 0)
+                .addAddress(VPN_ADDRESS_V6, 128)
+                .addRoute(VPN_ROUTE_V6, 0)
                 .setSession("NetSniff-VPN")
-                .setMtu(MTU)
+                .setMtu(mtu)
                 .setBlocking(false);
 
-            builder.addDnsServer("8.8.8.8");
-            builder.addDnsServer("1.1.1.1");
+            for (String server : DNS_SERVERS) {
+                builder.addDnsServer(server);
+            }
 
             vpnInterface = builder.establish();
             if (vpnInterface == null) {
@@ -380,23 +363,57 @@ public class ToyVpnService extends VpnService {
                 return;
             }
 
-            selector = Selector.open();
+            tunPollWakeup = ParcelFileDescriptor.createPipe();
             running.set(true);
+            tunBytesRead.set(0);
+            cpuAtStart = Process.getElapsedCpuTime();
             
             resolveDomains();
             
+            bufferPool = new BufferPool(mtu, BuildConfig.DEBUG);
+            memoryBudget = new MemoryBudget(MemoryBudget.DEFAULT_LIMIT);
+            dnsCache = new DnsCache();
+            tunWriter = new TunWriter(vpnInterface.getFileDescriptor(), bufferPool);
+            writeThread = new Thread(tunWriter, "Write-Thread");
+            writeThread.start();
+            
+            icmpProxy = new IcmpProxy(this, tunWriter, bufferPool);
+            icmpProxy.start();
+            
+            uidResolver = new UidResolver(connectivityManager);
+            
+            int shardCount = resolveShardCount(requestedShards);
+            shards = new FlowShard[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new FlowShard(this, i, tunWriter, bufferPool, memoryBudget, dnsCache, uidResolver,
+                                          mtu, raceDns);
+                shards[i].start();
+            }
+            
             vpnThread = new Thread(new VPNRunnable(), "VPN-Thread");
             vpnThread.start();
             
-            writeThread = new Thread(new WriteRunnable(), "Write-Thread");
-            writeThread.start();
-            
             dnsResolverThread = new Thread(new DnsResolverRunnable(), "DNS-Resolver");
             dnsResolverThread.start();
             
-            new Thread(new UsageStatsRunnable(), "UsageStats-Tracker").start();
+            screenOn = powerManager.isInteractive();
+            screenReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    synchronized (screenLock) {
+                        screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+                        screenLock.notifyAll();
+                    }
+                }
+            };
+            IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+            screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+            registerReceiver(screenReceiver, screenFilter);
+            
+            usageStatsThread = new Thread(new UsageStatsRunnable(), "UsageStats-Tracker");
+            usageStatsThread.start();
             
-            Log.d(TAG, "VPN established with domain blocking");
+            Log.d(TAG, "VPN established with domain blocking, " + shards.length + " shards");
             
         } catch (Exception e) {
             Log.e(TAG, "Error establishing VPN", e);
@@ -439,16 +456,18 @@ public class ToyVpnService extends VpnService {
         try {
             InetAddress[] addresses = InetAddress.getAllByName(domain);
             Set<String> ips = new HashSet<>();
+            boolean added = false;
             
             for (InetAddress addr : addresses) {
                 String ip = addr.getHostAddress();
-                if (ip != null && !ip.contains(":")) {
+                if (ip != null) {
                     ips.add(ip);
                     synchronized (blockingLock) {
-                        blockedIps.add(ip);
+                        added |= blockedIps.add(ip);
                     }
                 }
             }
+            if (added) blocklistChanged();
             
             if (!ips.isEmpty()) {
                 domainToIpsMap.put(domain, ips);
@@ -486,7 +505,15 @@ public class ToyVpnService extends VpnService {
         }
     }
     
-    private boolean isBlockedIp(String ip) {
+    static void blocklistChanged() {
+        blocklistGeneration.incrementAndGet();
+    }
+    
+    int getBlocklistGeneration() {
+        return blocklistGeneration.get();
+    }
+    
+    boolean isBlockedIp(String ip) {
         if (Allowed.isDomainBlacklisted(ip)) return true;
         
         synchronized (blockingLock) {
@@ -494,777 +521,289 @@ public class ToyVpnService extends VpnService {
         }
     }
 
+    // 0 means "pick for this device": one shard per core, capped
+    private static int resolveShardCount(int requested) {
+        int count = requested > 0 ? requested : Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(count, MAX_SHARDS));
+    }
+    
+    // Dispatcher: sleeps in poll() on the TUN fd, drains it when readable and
+    // hands each packet to the shard owning its 5-tuple
     private class VPNRunnable implements Runnable {
         @Override
         public void run() {
             Log.d(TAG, "VPN thread started");
             FileInputStream in = new FileInputStream(vpnInterface.getFileDescriptor());
-            byte[] packet = new byte[MAX_PACKET_SIZE];
+            BufferPool pool = bufferPool;
+            // Read straight into a pooled packet, which goes to its shard as it is;
+            // the TUN never hands over more than its MTU at once
+            ByteBuffer packet = pool.acquirePacket();
+            
+            StructPollfd tunFd = new StructPollfd();
+            tunFd.fd = vpnInterface.getFileDescriptor();
+            tunFd.events = (short) OsConstants.POLLIN;
+            
+            StructPollfd wakeFd = new StructPollfd();
+            wakeFd.fd = tunPollWakeup[0].getFileDescriptor();
+            wakeFd.events = (short) OsConstants.POLLIN;
+            
+            StructPollfd[] fds = { tunFd, wakeFd };
 
             try {
                 while (running.get() && !Thread.interrupted()) {
-                    int length = in.read(packet);
+                    int length = in.read(packet.array(), 0, packet.capacity());
                     
                     if (length > 0) {
-                        handlePacket(packet, length);
+                        tunBytesRead.addAndGet(length);
+                        packet.limit(length);
+                        dispatchPacket(packet);
+                        packet = pool.acquirePacket();
+                        continue;
                     } else if (length < 0) {
                         break;
                     }
                     
-                    processSocketEvents();
-                    cleanupConnections();
+                    // TUN drained, wait for it to become readable again
+                    tunFd.revents = 0;
+                    wakeFd.revents = 0;
+                    try {
+                        Os.poll(fds, -1);
+                    } catch (ErrnoException e) {
+                        if (e.errno == OsConstants.EINTR) continue;
+                        throw e;
+                    }
+                    
+                    if (wakeFd.revents != 0) break;
                 }
             } catch (Exception e) {
                 if (running.get()) {
                     Log.e(TAG, "Error in VPN thread", e);
                 }
             } finally {
+                pool.releasePacket(packet);
                 try { in.close(); } catch (IOException ignored) {}
                 Log.d(TAG, "VPN thread stopped");
             }
         }
     }
     
-    private void handlePacket(byte[] packet, int length) {
-        try {
-            ByteBuffer buffer = ByteBuffer.wrap(packet, 0, length);
-            int versionAndIHL = buffer.get(0) & 0xFF;
-            int version = (versionAndIHL >> 4) & 0xF;
-            
-            if (version != 4) return;
-            
-            int ihl = (versionAndIHL & 0xF) * 4;
-            int protocol = buffer.get(9) & 0xFF;
-            
-            byte[] sourceAddr = new byte[4];
-            byte[] destAddr = new byte[4];
-            buffer.position(12);
-            buffer.get(sourceAddr);
-            buffer.get(destAddr);
-            
-            String sourceIp = ipToString(sourceAddr);
-            String destIp = ipToString(destAddr);
-            
-            if (protocol == 6) {
-                handleTcpPacket(buffer, ihl, sourceIp, destIp, length);
-            } else if (protocol == 17) {
-                handleUdpPacket(buffer, ihl, sourceIp, destIp, length);
-            }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling packet", e);
+    // Takes ownership of the pooled packet: the shard it goes to releases it
+    private void dispatchPacket(ByteBuffer packet) {
+        byte[] data = packet.array();
+        int length = packet.limit();
+        if (length >= 20 && IcmpProxy.isEchoRequest(data, length)) {
+            IcmpProxy icmp = icmpProxy;
+            if (icmp != null) icmp.send(data, length);
+            bufferPool.releasePacket(packet);
+            return;
         }
-    }
-    
-    private void handleTcpPacket(ByteBuffer buffer, int ihl, String sourceIp, String destIp, int totalLength) {
-        try {
-            if (isBlockedIp(destIp)) {
-                Log.d(TAG, "Blocked TCP to: " + destIp);
-                return;
-            }
-            
-            buffer.position(ihl);
-            int sourcePort = buffer.getShort() & 0xFFFF;
-            int destPort = buffer.getShort() & 0xFFFF;
-            long seq = buffer.getInt() & 0xFFFFFFFFL;
-            long ackSeq = buffer.getInt() & 0xFFFFFFFFL;
-            
-            int dataOffsetAndFlags = buffer.getShort() & 0xFFFF;
-            int tcpHeaderLen = ((dataOffsetAndFlags >> 12) & 0xF) * 4;
-            
-            byte flags = buffer.get(ihl + 13);
-            boolean syn = (flags & 0x02) != 0;
-            boolean ack = (flags & 0x10) != 0;
-            boolean fin = (flags & 0x01) != 0;
-            boolean rst = (flags & 0x04) != 0;
-            boolean psh = (flags & 0x08) != 0;
-            
-            int window = buffer.getShort(ihl + 14) & 0xFFFF;
-            
-            int headerSize = ihl + tcpHeaderLen;
-            int dataSize = totalLength - headerSize;
-            
-            String key = sourceIp + ":" + sourcePort + "-" + destIp + ":" + destPort;
-            TcpConnection conn = tcpConnections.get(key);
-
-            if (rst) {
-                if (conn != null) {
-                    closeTcpConnection(conn);
-                    tcpConnections.remove(key);
-                }
-                return;
-            }
-            
-            if (syn && !ack) {
-                int uid = getMostLikelyActiveUid();
-                
-                int mss = 1460;
-                int ws = 0;
-                boolean wsSupported = false;
-                int optLen = tcpHeaderLen - 20;
-                int optPos = ihl + 20;
-                
-                while (optLen > 0 && optPos < buffer.limit()) {
-                    int kind = buffer.get(optPos) & 0xFF;
-                    if (kind == 0) break;
-                    if (kind == 1) {
-                        optLen--;
-                        optPos++;
-                        continue;
-                    }
-                    
-                    int len = buffer.get(optPos + 1) & 0xFF;
-                    if (kind == 2 && len == 4) {
-                        mss = buffer.getShort(optPos + 2) & 0xFFFF;
-                    } else if (kind == 3 && len == 3) {
-                        ws = buffer.get(optPos + 2) & 0xFF;
-                        wsSupported = true;
-                    }
-                    
-                    optLen -= len;
-                    optPos += len;
-                }
-                
-                conn = new TcpConnection(key, sourceIp, sourcePort, destIp, destPort, uid);
-                conn.remoteSeq = seq + 1;  // SYN consumes 1 sequence number
-                conn.remoteSeqStart = seq;
-                conn.sendWindow = window;
-                conn.mss = Math.min(mss, MTU - 40);  // Account for IP + TCP headers
-                conn.windowScaleSupported = wsSupported;
-                conn.sendScale = wsSupported ? ws : 0;
-                conn.recvScale = wsSupported ? 7 : 0;  // cale factor
-                
-                try {
-                    conn.channel = SocketChannel.open();
-                    conn.channel.configureBlocking(false);
-                    conn.channel.socket().setTcpNoDelay(true);
-                    conn.channel.socket().setSendBufferSize(65536);
-                    conn.channel.socket().setReceiveBufferSize(65536);
-                    protect(conn.channel.socket());
-                    
-                    InetSocketAddress remote = new InetSocketAddress(destIp, destPort);
-                    conn.channel.connect(remote);
-                    
-                    conn.state = TCP_SYN_SENT;
-                    
-                    conn.channel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ, conn);
-                    tcpConnections.put(key, conn);
-                    
-                    Log.d(TAG, "New TCP connection: " + key + " MSS=" + conn.mss);
-                    
-                    notifyPacketOptimized(buffer.array(), totalLength, "outgoing", uid, 
-                                        sourceIp, sourcePort, destIp, destPort, 6);
-                    
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to create TCP socket", e);
-                    sendTcpReset(sourceIp, sourcePort, destIp, destPort, 0, seq + 1);
-                }
-                return;
-            }
-            
-            if (conn == null) {
-                Log.w(TAG, "No connection for packet: " + key);
-                if (!syn) {
-                    sendTcpReset(sourceIp, sourcePort, destIp, destPort, ackSeq, seq + dataSize + (fin ? 1 : 0));
-                }
-                return;
-            }
-            
-            conn.lastActivity = System.currentTimeMillis();
-            
-            // Update window
-            if (conn.windowScaleSupported) {
-                conn.sendWindow = window << conn.sendScale;
-            } else {
-                conn.sendWindow = window;
-            }
-            
-            // Handle ACK
-            if (ack) {
-                conn.remoteAck = ackSeq;
-                
-                if (conn.state == TCP_SYN_RECEIVED && ackSeq == conn.localSeq) {
-                    conn.state = TCP_ESTABLISHED;
-                    Log.d(TAG, "TCP established: " + key);
-                    
-                    // forward any queued data
-                    if (!conn.forwardQueue.isEmpty()) {
-                        try {
-                            SelectionKey selKey = conn.channel.keyFor(selector);
-                            if (selKey != null && selKey.isValid()) {
-                                selKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error updating interest ops", e);
-                        }
-                    }
-                }
-            }
-            
-            // Handle data
-            if (dataSize > 0) {
-                if (conn.state == TCP_ESTABLISHED || conn.state == TCP_CLOSE_WAIT) {
-                    // Check if this is the expected sequence number
-                    if (seq == conn.remoteSeq) {
-                        // In order segment
-                        byte[] data = new byte[dataSize];
-                        buffer.position(headerSize);
-                        buffer.get(data);
-                        
-                        Segment segment = new Segment(seq, data, psh);
-                        synchronized (conn.forwardQueue) {
-                            conn.forwardQueue.add(segment);
-                        }
-                        
-                        conn.remoteSeq += dataSize;
-                        
-                        // Send ACK
-                        sendTcpAck(conn);
-                        
-                        // Enable writing
-                        try {
-                            SelectionKey selKey = conn.channel.keyFor(selector);
-                            if (selKey != null && selKey.isValid()) {
-                                selKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error enabling write", e);
-                        }
-                        
-                    } else if (seq > conn.remoteSeq) {
-                        // if Out-of-order segment - queue it
-                        byte[] data = new byte[dataSize];
-                        buffer.position(headerSize);
-                        buffer.get(data);
-                        
-                        Segment segment = new Segment(seq, data, psh);
-                        synchronized (conn.forwardQueue) {
-                            // Ensure Insert in order only
-                            boolean inserted = false;
-                            for (int i = 0; i < conn.forwardQueue.size(); i++) {
-                                if (conn.forwardQueue.get(i).seq > seq) {
-                                    conn.forwardQueue.add(i, segment);
-                                    inserted = true;
-                                    break;
-                                }
-                            }
-                            if (!inserted) {
-                                conn.forwardQueue.add(segment);
-                            }
-                        }
-                        
-                        // Send duplicate ACK
-                        sendTcpAck(conn);
-                        
-                    } else {
-                        // Old segment, just ACK it
-                        sendTcpAck(conn);
-                    }
-                }
-            }
-            
-            // Handle FIN
-            if (fin) {
-                if (conn.state == TCP_ESTABLISHED) {
-                    conn.state = TCP_CLOSE_WAIT;
-                    conn.remoteSeq++;  // FIN consumes 1 sequence number
-                    sendTcpAck(conn);
-                    
-                    // Try to close our side too
-                    try {
-                        conn.channel.shutdownInput();
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error shutting down input", e);
-                    }
-                    
-                    Log.d(TAG, "TCP FIN received: " + key);
-                } else if (conn.state == TCP_FIN_WAIT) {
-                    conn.remoteSeq++;
-                    sendTcpAck(conn);
-                    closeTcpConnection(conn);
-                    tcpConnections.remove(key);
-                }
-            }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling TCP packet", e);
-        }
-    }
-    
-    private void processSocketEvents() {
-        try {
-            if (selector.selectNow() > 0) {
-                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-                while (keys.hasNext()) {
-                    SelectionKey key = keys.next();
-                    keys.remove();
-                    
-                    if (!key.isValid()) continue;
-                    
-                    Object attachment = key.attachment();
-                    
-                    if (attachment instanceof TcpConnection) {
-                        TcpConnection conn = (TcpConnection) attachment;
-                        
-                        try {
-                            if (key.isValid() && key.isConnectable()) {
-                                handleTcpConnect(conn, key);
-                            }
-                            if (key.isValid() && key.isReadable()) {
-                                handleTcpRead(conn);
-                            }
-                            if (key.isValid() && key.isWritable()) {
-                                handleTcpWrite(conn, key);
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error processing TCP key: " + conn.key, e);
-                            closeTcpConnection(conn);
-                            tcpConnections.remove(conn.key);
-                        }
-                        
-                    } else if (attachment instanceof UdpConnection) {
-                        UdpConnection conn = (UdpConnection) attachment;
-                        
-                        try {
-                            if (key.isValid() && key.isReadable()) {
-                                handleUdpRead(conn);
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error processing UDP key: " + conn.key, e);
-                            closeUdpConnection(conn);
-                            udpConnections.remove(conn.key);
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error processing socket events", e);
-        }
-    }
-    
-    private void handleTcpConnect(TcpConnection conn, SelectionKey key) {
-        try {
-            if (conn.channel.finishConnect()) {
-                Log.d(TAG, "TCP connected: " + conn.key);
-                
-                conn.state = TCP_SYN_RECEIVED;
-                
-                // Send SYN-ACK
-                sendTcpSynAck(conn);
-                conn.localSeq++;
-                
-                key.interestOps(SelectionKey.OP_READ);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to complete connection: " + conn.key, e);
-            sendTcpReset(conn.sourceIp, conn.sourcePort, conn.destIp, conn.destPort, 
-                        conn.localSeq, conn.remoteSeq);
-            closeTcpConnection(conn);
-            tcpConnections.remove(conn.key);
+        FlowShard[] current = shards;
+        int index = shardFor(current, data, length);
+        if (index < 0) {
+            bufferPool.releasePacket(packet);
+            return;
         }
+        current[index].enqueue(packet);
     }
     
-    private void handleTcpRead(TcpConnection conn) {
-        try {
-            conn.readBuffer.clear();
-            int bytesRead = conn.channel.read(conn.readBuffer);
-            
-            if (bytesRead > 0) {
-                conn.readBuffer.flip();
-                byte[] data = new byte[conn.readBuffer.remaining()];
-                conn.readBuffer.get(data);
-                
-                // Send data back to client
-                sendTcpData(conn, data, data.length);
-                
-                notifyPacketOptimized(data, data.length, "incoming", conn.uid, 
-                    conn.destIp, conn.destPort, conn.sourceIp, conn.sourcePort, 6);
-                    
-            } else if (bytesRead < 0) {
-                Log.d(TAG, "TCP remote closed: " + conn.key);
-                
-                if (conn.state == TCP_ESTABLISHED) {
-                    conn.state = TCP_FIN_WAIT;
-                    sendTcpFinAck(conn);
-                } else {
-                    closeTcpConnection(conn);
-                    tcpConnections.remove(conn.key);
-                }
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading from TCP socket: " + conn.key, e);
-            closeTcpConnection(conn);
-            tcpConnections.remove(conn.key);
+    // A datagram a shard put back together from fragments; it may belong to
+    // a flow on another shard. One that fits a TUN packet is moved into one
+    // so it is handled like any other. Large pings go to the ICMP proxy.
+    void dispatchReassembled(byte[] datagram) {
+        if (IcmpProxy.isEchoRequest(datagram, datagram.length)) {
+            IcmpProxy icmp = icmpProxy;
+            if (icmp != null) icmp.send(datagram, datagram.length);
+            return;
         }
-    }
-    
-    private void handleTcpWrite(TcpConnection conn, SelectionKey key) {
-        try {
-            synchronized (conn.forwardQueue) {
-                while (!conn.forwardQueue.isEmpty()) {
-                    Segment segment = conn.forwardQueue.peek();
-                    
-                    // Only process if this is the next expected segment
-                    if (segment == null) break;
-                    
-                    // Check if we have window space
-                    if (conn.sendWindow <= 0) {
-                        Log.d(TAG, "Send window full for " + conn.key);
-                        break;
-                    }
-                    
-                    ByteBuffer buf = ByteBuffer.wrap(segment.data);
-                    int written = conn.channel.write(buf);
-                    
-                    if (written > 0) {
-                        if (written == segment.data.length) {
-                            // Entire segment written
-                            conn.forwardQueue.poll();
-                        } else {
-                            // Partial write - update segment
-                            byte[] remaining = new byte[segment.data.length - written];
-                            System.arraycopy(segment.data, written, remaining, 0, remaining.length);
-                            segment.data = remaining;
-                            break;
-                        }
-                    } else {
-                        // Can't write anymore
-                        break;
-                    }
-                }
-                
-                // Update interest ops
-                if (conn.forwardQueue.isEmpty()) {
-                    key.interestOps(SelectionKey.OP_READ);
-                } else {
-                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                }
-            }
-            
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing to TCP socket: " + conn.key, e);
-            closeTcpConnection(conn);
-            tcpConnections.remove(conn.key);
-        }
-    }
-    
-    private void sendTcpSynAck(TcpConnection conn) {
-        ByteBuffer packet = buildTcpPacket(conn, null, 0, true, true, false, false);
-        if (packet != null) {
-            writeQueue.offer(packet);
-        }
-    }
-    
-    private void sendTcpAck(TcpConnection conn) {
-        ByteBuffer packet = buildTcpPacket(conn, null, 0, false, true, false, false);
-        if (packet != null) {
-            writeQueue.offer(packet);
-        }
-    }
-    
-    private void sendTcpFinAck(TcpConnection conn) {
-        ByteBuffer packet = buildTcpPacket(conn, null, 0, false, true, true, false);
-        if (packet != null) {
-            writeQueue.offer(packet);
-            conn.localSeq++;
-        }
-    }
-    
-    private void sendTcpReset(String sourceIp, int sourcePort, String destIp, int destPort, long seq, long ack) {
-        try {
-            int totalSize = 20 + 20;
-            ByteBuffer packet = ByteBuffer.allocate(totalSize);
-            
-            // IP header
-            packet.put((byte) 0x45);
-            packet.put((byte) 0x00);
-            packet.putShort((short) totalSize);
-            packet.putShort((short) 0);
-            packet.putShort((short) 0x4000);
-            packet.put((byte) 64);
-            packet.put((byte) 6);
-            packet.putShort((short) 0);
-            
-            packet.put(ipToBytes(destIp));
-            packet.put(ipToBytes(sourceIp));
-            
-            packet.putShort(10, PacketUtils.calculateIPChecksum(packet, 0));
-            
-            // TCP header
-            int tcpStart = packet.position();
-            packet.putShort((short) destPort);
-            packet.putShort((short) sourcePort);
-            packet.putInt((int) seq);
-            packet.putInt((int) ack);
-            packet.putShort((short) 0x5014);  // RST + ACK
-            packet.putShort((short) 0);
-            packet.putShort((short) 0);
-            packet.putShort((short) 0);
-            
-            packet.putShort(tcpStart + 16, PacketUtils.calculateTCPChecksum(packet, 0, tcpStart, 20));
-            
+        FlowShard[] current = shards;
+        int index = shardFor(current, datagram, datagram.length);
+        if (index < 0) return;
+        ByteBuffer packet;
+        if (datagram.length <= bufferPool.getPacketSize()) {
+            packet = bufferPool.acquirePacket();
+            packet.put(datagram);
             packet.flip();
-            writeQueue.offer(packet);
-        } catch (Exception e) {
-            Log.e(TAG, "Error sending RST", e);
-        }
-    }
-    
-    private void sendTcpData(TcpConnection conn, byte[] data, int length) {
-        // Split into MSS-sized chunks if necessary
-        int offset = 0;
-        while (offset < length) {
-            int chunkSize = Math.min(conn.mss, length - offset);
-            byte[] chunk = new byte[chunkSize];
-            System.arraycopy(data, offset, chunk, 0, chunkSize);
-            
-            ByteBuffer packet = buildTcpPacket(conn, chunk, chunkSize, false, true, false, false);
-            if (packet != null) {
-                writeQueue.offer(packet);
-                conn.localSeq += chunkSize;
-            }
-            
-            offset += chunkSize;
-        }
-    }
-    
-    private ByteBuffer buildTcpPacket(TcpConnection conn, byte[] payload, int payloadSize,
-                                     boolean syn, boolean ack, boolean fin, boolean rst) {
-        
-        int optLen = syn ? 8 : 0;
-        int totalSize = 20 + 20 + optLen + payloadSize;
-        
-        if (totalSize > MTU) {
-            Log.w(TAG, "Packet too large: " + totalSize + " > " + MTU);
-            return null;
-        }
-        
-        ByteBuffer packet = ByteBuffer.allocate(totalSize);
-        
-        // IP header
-        packet.put((byte) 0x45);
-        packet.put((byte) 0x00);
-        packet.putShort((short) totalSize);
-        packet.putShort((short) 0);
-        packet.putShort((short) 0x4000);
-        packet.put((byte) 64);
-        packet.put((byte) 6);
-        packet.putShort((short) 0);
-        
-        packet.put(ipToBytes(conn.destIp));
-        packet.put(ipToBytes(conn.sourceIp));
-        
-        int ipChecksumPos = 10;
-        packet.putShort(ipChecksumPos, PacketUtils.calculateIPChecksum(packet, 0));
-        
-        // TCP header
-        int tcpStart = packet.position();
-        packet.putShort((short) conn.destPort);
-        packet.putShort((short) conn.sourcePort);
-        packet.putInt((int) conn.localSeq);
-        packet.putInt((int) conn.remoteSeq);
-        
-        int dataOffset = (20 + optLen) / 4;
-        int flags = (dataOffset << 12);
-        if (syn) flags |= 0x0002;
-        if (ack) flags |= 0x0010;
-        if (fin) flags |= 0x0001;
-        if (rst) flags |= 0x0004;
-        if (payloadSize > 0) flags |= 0x0008;  
-        packet.putShort((short) flags);
-        
-        // Calculate window size with scaling
-        int window = conn.recvWindow;
-        if (conn.windowScaleSupported) {
-            window = window >> conn.recvScale;
-        }
-        packet.putShort((short) Math.min(window, 65535));
-        packet.putShort((short) 0);  // Checksum (filled later)
-        packet.putShort((short) 0);  // Urgent pointer
-        
-        // TCP options
-        if (syn) {
-            // MSS option
-            packet.put((byte) 2);
-            packet.put((byte) 4);
-            packet.putShort((short) conn.mss);
-            
-            // Window scale option
-            packet.put((byte) 3);
-            packet.put((byte) 3);
-            packet.put((byte) conn.recvScale);
-            packet.put((byte) 1);  // NOP for alignment
-        }
-        
-        // Payload
-        if (payload != null && payloadSize > 0) {
-            packet.put(payload, 0, payloadSize);
-        }
-        
-        // Calculate TCP checksum
-        int tcpChecksumPos = tcpStart + 16;
-        packet.putShort(tcpChecksumPos, 
-            PacketUtils.calculateTCPChecksum(packet, 0, tcpStart, 20 + optLen + payloadSize));
-        
-        packet.flip();
-        return packet;
-    }
-    
-    private void handleUdpPacket(ByteBuffer buffer, int ihl, String sourceIp, String destIp, int totalLength) {
-        try {
-            if (isBlockedIp(destIp)) {
-                Log.d(TAG, "Blocked UDP to: " + destIp);
-                return;
-            }
-            
-            buffer.position(ihl);
-            int sourcePort = buffer.getShort() & 0xFFFF;
-            int destPort = buffer.getShort() & 0xFFFF;
-            int length = buffer.getShort() & 0xFFFF;
-            
-            String key = sourceIp + ":" + sourcePort + "-" + destIp + ":" + destPort;
-            
-            UdpConnection conn = udpConnections.get(key);
-            if (conn == null) {
-                int uid = getMostLikelyActiveUid();
-                conn = new UdpConnection(key, sourceIp, sourcePort, destIp, destPort, uid);
-                
-                try {
-                    conn.channel = DatagramChannel.open();
-                    conn.channel.configureBlocking(false);
-                    conn.channel.socket().setSendBufferSize(65536);
-                    conn.channel.socket().setReceiveBufferSize(65536);
-                    protect(conn.channel.socket());
-                    conn.channel.register(selector, SelectionKey.OP_READ, conn);
-                    
-                    udpConnections.put(key, conn);
-                    Log.d(TAG, "New UDP connection: " + key);
-                    
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to create UDP socket", e);
-                    return;
-                }
-            }
-            
-            conn.lastActivity = System.currentTimeMillis();
-            
-            int dataSize = length - 8;
-            if (dataSize > 0) {
-                buffer.position(ihl + 8);
-                byte[] data = new byte[dataSize];
-                buffer.get(data);
-                
-                InetSocketAddress dest = new InetSocketAddress(destIp, destPort);
-                conn.channel.send(ByteBuffer.wrap(data), dest);
-                
-                notifyPacketOptimized(buffer.array(), totalLength, "outgoing", conn.uid, 
-                    sourceIp, sourcePort, destIp, destPort, 17);
-            }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling UDP packet", e);
-        }
-    }
-    
-    private void handleUdpRead(UdpConnection conn) {
-        try {
-            ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
-            InetSocketAddress sender = (InetSocketAddress) conn.channel.receive(buffer);
-            
-            if (sender != null) {
-                buffer.flip();
-                byte[] data = new byte[buffer.remaining()];
-                buffer.get(data);
-                
-                ByteBuffer response = buildUdpPacket(conn, data, data.length);
-                if (response != null) {
-                    writeQueue.offer(response);
-                }
-                
-                notifyPacketOptimized(data, data.length, "incoming", conn.uid,
-                    conn.destIp, conn.destPort, conn.sourceIp, conn.sourcePort, 17);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading from UDP socket", e);
-            closeUdpConnection(conn);
-            udpConnections.remove(conn.key);
-        }
-    }
-    
-    private ByteBuffer buildUdpPacket(UdpConnection conn, byte[] payload, int payloadSize) {
-        int totalSize = 20 + 8 + payloadSize;
-        
-        if (totalSize > MTU) {
-            Log.w(TAG, "UDP packet too large: " + totalSize);
-            return null;
-        }
-        
-        ByteBuffer packet = ByteBuffer.allocate(totalSize);
-        
-        // IP header
-        packet.put((byte) 0x45);
-        packet.put((byte) 0x00);
-        packet.putShort((short) totalSize);
-        packet.putShort((short) 0);
-        packet.putShort((short) 0x4000);
-        packet.put((byte) 64);
-        packet.put((byte) 17);
-        packet.putShort((short) 0);
-        packet.put(ipToBytes(conn.destIp));
-        packet.put(ipToBytes(conn.sourceIp));
-        
-        packet.putShort(10, PacketUtils.calculateIPChecksum(packet, 0));
-        
-        // UDP header
-        int udpStart = packet.position();
-        packet.putShort((short) conn.destPort);
-        packet.putShort((short) conn.sourcePort);
-        packet.putShort((short) (8 + payloadSize));
-        packet.putShort((short) 0);
-        
-        // Payload
-        if (payload != null && payloadSize > 0) {
-            packet.put(payload);
-        }
-        
-        packet.putShort(udpStart + 6, 
-            PacketUtils.calculateUDPChecksum(packet, 0, udpStart, 8 + payloadSize));
-        
-        packet.flip();
-        return packet;
-    }
-    
-    private class WriteRunnable implements Runnable {
-        @Override
-        public void run() {
-            Log.d(TAG, "Write thread started");
-            FileOutputStream out = new FileOutputStream(vpnInterface.getFileDescriptor());
-            
-            try {
-                while (running.get() && !Thread.interrupted()) {
-                    ByteBuffer packet = writeQueue.poll(100, TimeUnit.MILLISECONDS);
-                    if (packet != null) {
-                        out.write(packet.array(), 0, packet.limit());
-                    }
-                }
-            } catch (Exception e) {
-                if (running.get()) {
-                    Log.e(TAG, "Error in write thread", e);
-                }
-            } finally {
-                try { out.close(); } catch (IOException ignored) {}
-                Log.d(TAG, "Write thread stopped");
-            }
-        }
-    }
-    
+        } else {
+            packet = ByteBuffer.wrap(datagram);
+        }
+        current[index].enqueue(packet);
+    }
+    
+    private static int shardFor(FlowShard[] current, byte[] packet, int length) {
+        return shardIndex(packet, length, current.length);
+    }
+    
+    // Shard for a packet, -1 if no shard handles it. Symmetric in the
+    // endpoints: both directions of a 5-tuple land on the same shard.
+    static int shardIndex(byte[] packet, int length, int shardCount) {
+        if (length < 20) return -1;
+        
+        int version = (packet[0] >> 4) & 0xF;
+        int ihl;
+        int protocol;
+        int addrStart;
+        int addrLen;
+        if (version == 4) {
+            ihl = (packet[0] & 0xF) * 4;
+            protocol = packet[9] & 0xFF;
+            addrStart = 12;
+            addrLen = 4;
+        } else if (version == 6) {
+            if (length < 40) return -1;
+            ihl = 40;
+            protocol = packet[6] & 0xFF;
+            addrStart = 8;
+            addrLen = 16;
+        } else {
+            return -1;
+        }
+        // Only the first fragment has the ports; all fragments of a datagram
+        // go to one shard by address, which reassembles and dispatches again.
+        // That includes ICMP, for the proxy to get whole echo requests.
+        boolean fragment = version == 4 && FragmentReassembler.isFragment(packet);
+        if (protocol != 6 && protocol != 17 && !(fragment && protocol == 1)) return -1;
+        if (!fragment && length < ihl + 4) return -1;
+        
+        int index = 0;
+        if (shardCount > 1) {
+            int source = 0;
+            int dest = 0;
+            for (int i = 0; i < addrLen; i += 4) {
+                source = source * 31 + readInt(packet, addrStart + i);
+                dest = dest * 31 + readInt(packet, addrStart + addrLen + i);
+            }
+            if (!fragment) {
+                int ports = readInt(packet, ihl);
+                source = source * 31 + (ports >>> 16);
+                dest = dest * 31 + (ports & 0xFFFF);
+            }
+            // Adding the two halves makes the order of the endpoints irrelevant
+            int hash = (source + dest) * 31 + protocol;
+            hash ^= (hash >>> 16);
+            index = (hash & 0x7FFFFFFF) % shardCount;
+        }
+        return index;
+    }
+    
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+            | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+    
+    // Per-shard counters, read by the plugin to measure how throughput scales
+    static JSObject getEngineStats() {
+        JSObject stats = new JSObject();
+        ToyVpnService service = instance;
+        FlowShard[] current = service != null ? service.shards : new FlowShard[0];
+        
+        JSArray shardStats = new JSArray();
+        long totalPackets = 0;
+        for (FlowShard shard : current) {
+            JSObject o = new JSObject();
+            o.put("index", shard.getIndex());
+            o.put("packets", shard.getPacketsProcessed());
+            o.put("inboxDrops", shard.getInboxDrops());
+            o.put("tcpFlows", shard.getTcpFlowCount());
+            o.put("udpFlows", shard.getUdpFlowCount());
+            o.put("expiredFlows", shard.getFlowsExpired());
+            o.put("windowStalls", shard.getWindowStalls());
+            o.put("writerStalls", shard.getWriterStalls());
+            o.put("memoryStalls", shard.getMemoryStalls());
+            o.put("memoryDrops", shard.getMemoryDrops());
+            o.put("retransmits", shard.getRetransmits());
+            o.put("fastRetransmits", shard.getFastRetransmits());
+            o.put("outOfOrderSegments", shard.getOutOfOrderSegments());
+            o.put("cutThroughBytes", shard.getCutThroughBytes());
+            o.put("coalescedAcks", shard.getCoalescedAcks());
+            o.put("windowGrowths", shard.getWindowGrowths());
+            o.put("dnsForwarded", shard.getDnsForwarded());
+            o.put("dnsRetries", shard.getDnsRetries());
+            o.put("dnsTimeouts", shard.getDnsTimeouts());
+            o.put("dnsMismatched", shard.getDnsMismatched());
+            o.put("dnsRotations", shard.getDnsRotations());
+            o.put("fragmentsSent", shard.getFragmentsSent());
+            o.put("fragmentsReceived", shard.getFragmentsReceived());
+            o.put("datagramsReassembled", shard.getDatagramsReassembled());
+            o.put("fragmentDrops", shard.getFragmentDrops());
+            JSArray dnsWins = new JSArray();
+            for (long wins : shard.getDnsWins()) {
+                dnsWins.put(wins);
+            }
+            o.put("dnsWins", dnsWins);
+            JSArray windows = new JSArray();
+            for (String flow : shard.getWindowHistory()) {
+                windows.put(flow);
+            }
+            o.put("windowHistory", windows);
+            shardStats.put(o);
+            totalPackets += shard.getPacketsProcessed();
+        }
+        
+        stats.put("running", service != null && service.running.get());
+        stats.put("shardCount", current.length);
+        stats.put("packets", totalPackets);
+        stats.put("shards", shardStats);
+        
+        TunWriter writer = service != null ? service.tunWriter : null;
+        if (writer != null) {
+            stats.put("writer", writer.getStats());
+            stats.put("throughput", service.getThroughputStats(writer));
+        }
+        
+        BufferPool pool = service != null ? service.bufferPool : null;
+        if (pool != null) {
+            stats.put("pool", pool.getStats());
+        }
+        
+        MemoryBudget memory = service != null ? service.memoryBudget : null;
+        if (memory != null) {
+            stats.put("memory", memory.getStats());
+        }
+        
+        DnsCache dns = service != null ? service.dnsCache : null;
+        if (dns != null) {
+            stats.put("dns", dns.getStats());
+        }
+        
+        IcmpProxy icmp = service != null ? service.icmpProxy : null;
+        if (icmp != null) {
+            stats.put("icmp", icmp.getStats());
+        }
+        
+        UidResolver owners = service != null ? service.uidResolver : null;
+        if (owners != null) {
+            stats.put("uid", owners.getStats());
+        }
+        return stats;
+    }
+    
+    // TUN bytes both ways per second of process CPU since the VPN started;
+    // the figure a larger MTU should raise
+    private JSObject getThroughputStats(TunWriter writer) {
+        long bytes = tunBytesRead.get() + writer.getBytesWritten();
+        long cpuMillis = Process.getElapsedCpuTime() - cpuAtStart;
+        JSObject stats = new JSObject();
+        stats.put("mtu", mtu);
+        stats.put("bytes", bytes);
+        stats.put("cpuMillis", cpuMillis);
+        stats.put("bytesPerCpuSecond", cpuMillis > 0 ? bytes * 1000 / cpuMillis : 0);
+        return stats;
+    }
+    
+    // Reads each usage event once: every poll asks only for what happened
+    // since the previous one, and the snapshot is replaced only when an app
+    // moved or aged out of the window
     private class UsageStatsRunnable implements Runnable {
+        private final UsageEvents.Event event = new UsageEvents.Event();
+        private long cursor;  // end of the last query; the next one overlaps it
+        
         @Override
         public void run() {
             while (running.get() && !Thread.interrupted()) {
                 try {
+                    waitForScreenOn();
                     updateRecentForegroundApps();
-                    Thread.sleep(2000);
+                    Thread.sleep(USAGE_POLL_INTERVAL_MS);
                 } catch (InterruptedException e) {
                     break;
                 } catch (Exception e) {
@@ -1273,87 +812,68 @@ public class ToyVpnService extends VpnService {
             }
         }
         
+        // Nothing moves to the foreground with the screen off; the first
+        // poll after it comes back on catches up from the cursor
+        private void waitForScreenOn() throws InterruptedException {
+            synchronized (screenLock) {
+                while (!screenOn) {
+                    screenLock.wait();
+                }
+            }
+        }
+        
         private void updateRecentForegroundApps() {
             if (usageStatsManager == null) return;
             
             long now = System.currentTimeMillis();
-            long begin = now - (5 * 60 * 1000);
-            
-            UsageEvents events = usageStatsManager.queryEvents(begin, now);
-            UsageEvents.Event ev = new UsageEvents.Event();
-            Map<String, Long> lastSeen = new HashMap<>();
-            
+            long horizon = now - FOREGROUND_WINDOW_MS;
+            // Starting back a little catches events that were recorded after
+            // the last query but stamped before its end
+            long start = Math.max(cursor - USAGE_EVENT_OVERLAP_MS, horizon);
+            UsageEvents events = usageStatsManager.queryEvents(start, now);
+            cursor = now;
+            
+            ForegroundApps current = recentForegroundApps;
+            Map<String, Long> lastSeen = null;
             while (events.hasNextEvent()) {
-                events.getNextEvent(ev);
-                if (ev.getEventType() == UsageEvents.Event.MOVE_TO_FOREGROUND ||
-                    ev.getEventType() == UsageEvents.Event.MOVE_TO_BACKGROUND) {
-                    lastSeen.put(ev.getPackageName(), ev.getTimeStamp());
+                events.getNextEvent(event);
+                if (event.getEventType() == UsageEvents.Event.MOVE_TO_FOREGROUND ||
+                    event.getEventType() == UsageEvents.Event.MOVE_TO_BACKGROUND) {
+                    // Events seen by the previous query are no news
+                    Long known = (lastSeen != null ? lastSeen : current.lastSeen).get(event.getPackageName());
+                    if (known != null && known >= event.getTimeStamp()) continue;
+                    if (lastSeen == null) lastSeen = new HashMap<>(current.lastSeen);
+                    lastSeen.put(event.getPackageName(), event.getTimeStamp());
+                }
+            }
+            
+            for (Long seen : current.lastSeen.values()) {
+                if (seen < horizon) {
+                    if (lastSeen == null) lastSeen = new HashMap<>(current.lastSeen);
+                    Iterator<Long> it = lastSeen.values().iterator();
+                    while (it.hasNext()) {
+                        if (it.next() < horizon) it.remove();
+                    }
+                    break;
                 }
             }
+            if (lastSeen == null) return;
             
-            synchronized (uidCacheLock) {
-                recentForegroundApps.clear();
-                recentForegroundApps.putAll(lastSeen);
-            }
-        }
-    }
-    
-    private void cleanupConnections() {
-        long now = System.currentTimeMillis();
-        long timeout = 60000;
-        
-        tcpConnections.entrySet().removeIf(entry -> {
-            if (now - entry.getValue().lastActivity > timeout) {
-                closeTcpConnection(entry.getValue());
-                return true;
-            }
-            return false;
-        });
-        
-        udpConnections.entrySet().removeIf(entry -> {
-            if (now - entry.getValue().lastActivity > timeout) {
-                closeUdpConnection(entry.getValue());
-                return true;
-            }
-            return false;
-        });
-    }
-    
-    private void closeTcpConnection(TcpConnection conn) {
-        try {
-            if (conn.channel != null) {
-                SelectionKey key = conn.channel.keyFor(selector);
-                if (key != null) {
-                    key.cancel();
-                }
-                conn.channel.close();
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error closing TCP connection", e);
-        }
-    }
-    
-    private void closeUdpConnection(UdpConnection conn) {
-        try {
-            if (conn.channel != null) {
-                SelectionKey key = conn.channel.keyFor(selector);
-                if (key != null) {
-                    key.cancel();
-                }
-                conn.channel.close();
+            ForegroundApps updated = new ForegroundApps(lastSeen);
+            recentForegroundApps = updated;
+            if (!Objects.equals(updated.mostRecentPackage, current.mostRecentPackage)) {
+                updateMostLikelyUid(updated.mostRecentPackage);
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error closing UDP connection", e);
         }
     }
     
-    private void notifyPacketOptimized(byte[] data, int length, String direction, int uid,
+    void notifyPacketOptimized(byte[] data, int length, String direction, int uid,
                                       String sourceIp, int sourcePort, String destIp, int destPort, int protocol) {
         try {
             String appName = getAppNameForUid(uid);
             String packageName = getPackageNameForUid(uid);
             long pktNum = packetCounter.incrementAndGet();
-            String protocolName = protocol == 6 ? "TCP" : "UDP";
+            String protocolName = protocol == 6 ? "TCP" : protocol == 17 ? "UDP" : "ICMP";
             long timestamp = System.currentTimeMillis();
             
             Allowed.storeTraffic(
@@ -1389,20 +909,6 @@ public class ToyVpnService extends VpnService {
         }
     }
     
-    private String ipToString(byte[] addr) {
-        return String.format("%d.%d.%d.%d", 
-            addr[0] & 0xFF, addr[1] & 0xFF, addr[2] & 0xFF, addr[3] & 0xFF);
-    }
-    
-    private byte[] ipToBytes(String ip) {
-        String[] parts = ip.split("\\.");
-        byte[] bytes = new byte[4];
-        for (int i = 0; i < 4; i++) {
-            bytes[i] = (byte) Integer.parseInt(parts[i]);
-        }
-        return bytes;
-    }
-    
     public void stopVpnGracefully() {
         if (shuttingDown.getAndSet(true)) return;
         
@@ -1415,33 +921,45 @@ public class ToyVpnService extends VpnService {
                     packetAggregator.stop();
                 }
                 
+                // Closing the write end of the pipe wakes the dispatcher out of poll()
+                if (tunPollWakeup != null) {
+                    try { tunPollWakeup[1].close(); } catch (IOException ignored) {}
+                }
+                if (tunWriter != null) tunWriter.stop();
+                
                 if (vpnThread != null) vpnThread.interrupt();
                 if (writeThread != null) writeThread.interrupt();
                 if (dnsResolverThread != null) dnsResolverThread.interrupt();
+                if (usageStatsThread != null) usageStatsThread.interrupt();
+                if (screenReceiver != null) {
+                    try { unregisterReceiver(screenReceiver); } catch (IllegalArgumentException ignored) {}
+                    screenReceiver = null;
+                }
                 
                 if (vpnThread != null) vpnThread.join(1000);
                 if (writeThread != null) writeThread.join(1000);
                 if (dnsResolverThread != null) dnsResolverThread.join(1000);
                 
-                if (selector != null && selector.isOpen()) selector.close();
-                
-                for (TcpConnection conn : tcpConnections.values()) {
-                    closeTcpConnection(conn);
+                if (tunPollWakeup != null) {
+                    try { tunPollWakeup[0].close(); } catch (IOException ignored) {}
+                    tunPollWakeup = null;
                 }
-                tcpConnections.clear();
                 
-                for (UdpConnection conn : udpConnections.values()) {
-                    closeUdpConnection(conn);
+                if (icmpProxy != null) icmpProxy.stop();
+                if (uidResolver != null) uidResolver.stop();
+                
+                for (FlowShard shard : shards) {
+                    shard.stop();
                 }
-                udpConnections.clear();
+                shards = new FlowShard[0];
+                
+                if (bufferPool != null) bufferPool.clear();
                 
                 if (vpnInterface != null) {
                     try { vpnInterface.close(); } catch (IOException ignored) {}
                     vpnInterface = null;
                 }
                 
-                if (writeQueue != null) writeQueue.clear();
-                
                 if (wakeLock != null && wakeLock.isHeld()) {
                     wakeLock.release();
                 }
@@ -1461,6 +979,7 @@ public class ToyVpnService extends VpnService {
     @Override
     public void onDestroy() {
         if (!shuttingDown.get()) stopVpnGracefully();
+        if (instance == this) instance = null;
         super.onDestroy();
     }
     
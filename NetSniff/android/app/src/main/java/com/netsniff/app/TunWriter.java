@@ -0,0 +1,225 @@
+package com.netsniff.app;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single consumer that moves built packets from the shards into the TUN.
+// Shards borrow direct buffers from the BufferPool, fill them and submit them;
+// the writer drains whatever has queued up in one go, writes each packet
+// straight from native memory and returns the buffers to the pool.
+//
+// A TUN write carries exactly one packet, so batches are written back-to-back
+// rather than through writev(), which would merge them into a single packet.
+//
+// Shared packets (TCP segments kept for retransmission) are written without
+// moving their position and only drop the writer's reference afterwards.
+public class TunWriter implements Runnable {
+    private static final String TAG = "TunWriter";
+    private static final int QUEUE_CAPACITY = 5000;
+    // Shards stop reading sockets above this many queued packets
+    private static final int BACKLOG_THRESHOLD = QUEUE_CAPACITY / 2;
+    private static final int MAX_BATCH = 256;
+    private static final int EAGAIN_WAIT_MS = 50;
+
+    // Batch size histogram bucket upper bounds: 1, 2-4, 5-16, 17-64, 65+
+    private static final int[] BATCH_BUCKETS = { 1, 4, 16, 64, Integer.MAX_VALUE };
+
+    private final FileDescriptor tunFd;
+    private final BufferPool pool;
+    // ByteBuffer or BufferPool.Shared
+    private final ArrayBlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile boolean running = true;
+
+    private final AtomicLong packetsWritten = new AtomicLong(0);
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong flushNanosTotal = new AtomicLong(0);
+    private final AtomicLong[] batchHistogram = new AtomicLong[BATCH_BUCKETS.length];
+    private volatile long maxBatch = 0;
+    private volatile long maxFlushNanos = 0;
+
+    // Drain rate is reported over the interval since the previous getStats()
+    private long lastStatsPackets = 0;
+    private long lastStatsTime = System.nanoTime();
+
+    TunWriter(FileDescriptor tunFd, BufferPool pool) {
+        this.tunFd = tunFd;
+        this.pool = pool;
+        for (int i = 0; i < batchHistogram.length; i++) {
+            batchHistogram[i] = new AtomicLong(0);
+        }
+    }
+
+    // Hand a flipped packet to the writer; the buffer belongs to the writer afterwards
+    void submit(ByteBuffer packet) {
+        if (!queue.offer(packet)) {
+            dropped.incrementAndGet();
+            pool.release(packet);
+        }
+    }
+    
+    // Hand over one reference to a shared packet; the caller keeps its own
+    void submit(BufferPool.Shared packet) {
+        if (!queue.offer(packet)) {
+            dropped.incrementAndGet();
+            packet.release();
+        }
+    }
+
+    boolean isBacklogged() {
+        return queue.size() >= BACKLOG_THRESHOLD;
+    }
+    
+    void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "Write thread started");
+        ArrayList<Object> batch = new ArrayList<>(MAX_BATCH);
+
+        try {
+            while (running && !Thread.interrupted()) {
+                // Blocks until a shard submits, no periodic wakeups while idle
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                long start = System.nanoTime();
+                long bytes = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    Object item = batch.get(i);
+                    ByteBuffer packet = item instanceof BufferPool.Shared
+                        ? ((BufferPool.Shared) item).buffer : (ByteBuffer) item;
+                    int position = packet.position();
+                    bytes += packet.remaining();
+                    try {
+                        writePacket(packet);
+                    } catch (ErrnoException e) {
+                        dropped.incrementAndGet();
+                        if (running) Log.w(TAG, "TUN write failed: " + e.getMessage());
+                    }
+                    // Rewind so the packet can be written again on retransmit
+                    packet.position(position);
+                    release(item);
+                }
+                long elapsed = System.nanoTime() - start;
+
+                recordBatch(batch.size(), bytes, elapsed);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        } catch (Exception e) {
+            if (running) {
+                Log.e(TAG, "Error in write thread", e);
+            }
+        } finally {
+            Object item;
+            while ((item = queue.poll()) != null) {
+                release(item);
+            }
+            Log.d(TAG, "Write thread stopped");
+        }
+    }
+    
+    private void release(Object item) {
+        if (item instanceof BufferPool.Shared) {
+            ((BufferPool.Shared) item).release();
+        } else {
+            pool.release((ByteBuffer) item);
+        }
+    }
+
+    // Package-private so tests can stand in for the TUN
+    void writePacket(ByteBuffer packet) throws ErrnoException, InterruptedIOException {
+        while (true) {
+            try {
+                Os.write(tunFd, packet);
+                return;
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR) continue;
+                if (e.errno != OsConstants.EAGAIN) throw e;
+            }
+
+            // TUN queue full, wait for room once and drop if it stays full
+            StructPollfd pollFd = new StructPollfd();
+            pollFd.fd = tunFd;
+            pollFd.events = (short) OsConstants.POLLOUT;
+            if (Os.poll(new StructPollfd[] { pollFd }, EAGAIN_WAIT_MS) <= 0) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void recordBatch(int size, long bytes, long elapsedNanos) {
+        batches.incrementAndGet();
+        packetsWritten.addAndGet(size);
+        bytesWritten.addAndGet(bytes);
+        flushNanosTotal.addAndGet(elapsedNanos);
+        if (size > maxBatch) maxBatch = size;
+        if (elapsedNanos > maxFlushNanos) maxFlushNanos = elapsedNanos;
+
+        for (int i = 0; i < BATCH_BUCKETS.length; i++) {
+            if (size <= BATCH_BUCKETS[i]) {
+                batchHistogram[i].incrementAndGet();
+                break;
+            }
+        }
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    long getPacketsWritten() {
+        return packetsWritten.get();
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    synchronized JSObject getStats() {
+        long packets = packetsWritten.get();
+        long batchCount = batches.get();
+        long now = System.nanoTime();
+        double seconds = (now - lastStatsTime) / 1e9;
+        double drainRate = seconds > 0 ? (packets - lastStatsPackets) / seconds : 0;
+        lastStatsPackets = packets;
+        lastStatsTime = now;
+
+        JSArray histogram = new JSArray();
+        for (AtomicLong bucket : batchHistogram) {
+            histogram.put(bucket.get());
+        }
+
+        JSObject stats = new JSObject();
+        stats.put("packets", packets);
+        stats.put("bytes", bytesWritten.get());
+        stats.put("batches", batchCount);
+        stats.put("dropped", dropped.get());
+        stats.put("queued", queue.size());
+        stats.put("avgBatch", batchCount > 0 ? (double) packets / batchCount : 0);
+        stats.put("maxBatch", maxBatch);
+        stats.put("batchHistogram", histogram);
+        stats.put("avgFlushMicros", batchCount > 0 ? flushNanosTotal.get() / batchCount / 1000.0 : 0);
+        stats.put("maxFlushMicros", maxFlushNanos / 1000.0);
+        stats.put("drainRatePps", drainRate);
+        return stats;
+    }
+}
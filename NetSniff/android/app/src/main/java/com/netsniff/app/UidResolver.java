@@ -0,0 +1,153 @@
+package com.netsniff.app;
+
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.util.Log;
+import com.getcapacitor.JSObject;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Finds the app that owns each new flow from its 5-tuple, off the shard
+// threads: a flow starts with the foreground-app guess and its uid is
+// replaced when the lookup answers. The answer is kept on the connection
+// for the flow's lifetime, so each flow is looked up once.
+//
+// Android 10+ asks ConnectivityManager.getConnectionOwnerUid, which only the
+// active VPN app may call. Older releases read the owner from the
+// /proc/net socket tables, which newer ones no longer let apps read.
+public class UidResolver {
+    private static final String TAG = "UidResolver";
+    private static final int MAX_QUEUED = 1024;
+
+    interface Callback {
+        void onResolved(int uid);
+    }
+
+    private final ConnectivityManager connectivity;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong resolved = new AtomicLong(0);
+    private final AtomicLong corrected = new AtomicLong(0);
+    private final AtomicLong unresolved = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    UidResolver(ConnectivityManager connectivity) {
+        this.connectivity = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? connectivity : null;
+        // One thread is plenty, and lookups run in SYN order; a burst past
+        // the queue keeps its guesses rather than delay anything
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED),
+            r -> new Thread(r, "UID-Resolver"),
+            (r, e) -> dropped.incrementAndGet());
+    }
+
+    // Look up the owner of the app's socket sourceIp:sourcePort ->
+    // destIp:destPort; callback gets the uid only if it differs from guess
+    void resolve(int protocol, String sourceIp, int sourcePort, String destIp, int destPort,
+                 int guess, Callback callback) {
+        executor.execute(() -> {
+            int uid = lookup(protocol, sourceIp, sourcePort, destIp, destPort);
+            if (uid < 0) {
+                unresolved.incrementAndGet();
+                return;
+            }
+            resolved.incrementAndGet();
+            if (uid != guess) {
+                corrected.incrementAndGet();
+                callback.onResolved(uid);
+            }
+        });
+    }
+
+    private int lookup(int protocol, String sourceIp, int sourcePort, String destIp, int destPort) {
+        try {
+            if (connectivity != null) {
+                // Literal addresses, so no name lookup happens here
+                return connectivity.getConnectionOwnerUid(protocol,
+                    new InetSocketAddress(InetAddress.getByName(sourceIp), sourcePort),
+                    new InetSocketAddress(InetAddress.getByName(destIp), destPort));
+            }
+            return lookupProc(protocol, sourcePort, InetAddress.getByName(destIp).getAddress(), destPort);
+        } catch (SecurityException | IOException e) {
+            Log.w(TAG, "Owner lookup failed for " + destIp + ":" + destPort, e);
+            return -1;
+        }
+    }
+
+    // /proc/net/{tcp,udp}[6]: "sl local rem st queues timer retrnsmt uid ...",
+    // addresses as host-order 32-bit words in hex, then ":PORT"
+    private static int lookupProc(int protocol, int sourcePort, byte[] dest, int destPort) throws IOException {
+        String name = protocol == 6 ? "tcp" : "udp";
+        String local = String.format(":%04X", sourcePort);
+        String remote = procAddress(dest) + String.format(":%04X", destPort);
+        if (dest.length == 4) {
+            int uid = scanProc("/proc/net/" + name, local, remote, protocol == 17);
+            if (uid >= 0) return uid;
+            // A dual-stack socket shows the v4 peer as ::ffff:a.b.c.d
+            remote = "0000000000000000FFFF0000" + remote;
+        }
+        return scanProc("/proc/net/" + name + "6", local, remote, protocol == 17);
+    }
+
+    private static int scanProc(String path, String local, String remote, boolean unconnectedMatches)
+            throws IOException {
+        int unconnectedUid = -1;
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            reader.readLine();  // column titles
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 8 || !fields[1].endsWith(local)) continue;
+                if (fields[2].equals(remote)) {
+                    return Integer.parseInt(fields[7]);
+                }
+                // An unconnected UDP socket has no peer of its own
+                if (unconnectedMatches && unconnectedUid < 0 && isZeroAddress(fields[2])) {
+                    unconnectedUid = Integer.parseInt(fields[7]);
+                }
+            }
+        }
+        return unconnectedUid;
+    }
+
+    private static String procAddress(byte[] address) {
+        StringBuilder sb = new StringBuilder(address.length * 2);
+        for (int word = 0; word < address.length; word += 4) {
+            for (int i = word + 3; i >= word; i--) {
+                sb.append(String.format("%02X", address[i] & 0xFF));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isZeroAddress(String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c != '0' && c != ':') return false;
+        }
+        return true;
+    }
+
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    JSObject getStats() {
+        JSObject stats = new JSObject();
+        stats.put("source", connectivity != null ? "connectivity" : "proc");
+        stats.put("resolved", resolved.get());
+        stats.put("corrected", corrected.get());
+        stats.put("unresolved", unresolved.get());
+        stats.put("dropped", dropped.get());
+        stats.put("queued", executor.getQueue().size());
+        return stats;
+    }
+}
@@ -0,0 +1,118 @@
+package com.netsniff.app;
+
+// Per-flow buffer auto-tuning in the style of Linux's dynamic right-sizing:
+// once per round trip, look at how many bytes the flow moved each way and
+// size that direction's buffers to twice as much, so a window never limits a
+// flow that could go faster. Sizes only grow: a flow that slows down keeps
+// what it has, since an advertised window must not shrink. Growth is taken
+// from what the memory budget has left, and charged to it for as long as the
+// flow keeps it. Owned by a single shard thread.
+public class WindowTuner {
+    static final int INITIAL_BUFFER = 65536;
+    static final int MAX_BUFFER = 4 * 1024 * 1024;
+    private static final int HISTORY = 8;
+
+    private final long startedAt;
+    private long rtt = -1;
+    private long appRtt = -1;
+    private long roundStart;
+    private long uploaded;
+    private long downloaded;
+
+    // Upload: the app's receive window and the socket send buffer.
+    // Download: the socket receive buffer, i.e. the remote's window.
+    int uploadBuffer = INITIAL_BUFFER;
+    int downloadBuffer = INITIAL_BUFFER;
+
+    // Most recent sizes, oldest overwritten first
+    private final long[] historyTime = new long[HISTORY];
+    private final int[] historyUpload = new int[HISTORY];
+    private final int[] historyDownload = new int[HISTORY];
+    private int historyCount;
+
+    WindowTuner(long now) {
+        this.startedAt = now;
+        this.roundStart = now;
+    }
+
+    // Round trip to the remote, taken from the connect handshake
+    void setRtt(long rttMs) {
+        rtt = rttMs;
+    }
+
+    long getRtt() {
+        return rtt;
+    }
+
+    // Smoothed round trip to the app, from its ACKs of our segments. The
+    // upload buffer is also the app's window, which has to cover this leg.
+    void setAppRtt(long rttMs) {
+        appRtt = rttMs;
+    }
+
+    // Count bytes moved; true once a round trip has passed since the last tune
+    boolean addUploaded(long bytes, long now) {
+        uploaded += bytes;
+        return now - roundStart >= roundTrip();
+    }
+
+    boolean addDownloaded(long bytes, long now) {
+        downloaded += bytes;
+        return now - roundStart >= roundTrip();
+    }
+
+    private long roundTrip() {
+        return Math.max(TimerWheel.TICK_MS, Math.max(rtt, appRtt));
+    }
+
+    // Grow each direction toward twice the bytes it moved in the round trip
+    // just ended, spending at most budgetAvailable; true if either grew
+    boolean endRoundTrip(long now, long budgetAvailable) {
+        long elapsed = Math.max(1, now - roundStart);
+        // Scale to exactly one round trip, the tune may run late
+        long upTarget = 2 * uploaded * roundTrip() / elapsed;
+        long downTarget = 2 * downloaded * roundTrip() / elapsed;
+        uploaded = 0;
+        downloaded = 0;
+        roundStart = now;
+
+        int upload = grow(uploadBuffer, upTarget, budgetAvailable);
+        int download = grow(downloadBuffer, downTarget, budgetAvailable - (upload - uploadBuffer));
+        if (upload == uploadBuffer && download == downloadBuffer) return false;
+
+        uploadBuffer = upload;
+        downloadBuffer = download;
+        int slot = historyCount++ % HISTORY;
+        historyTime[slot] = now - startedAt;
+        historyUpload[slot] = upload;
+        historyDownload[slot] = download;
+        return true;
+    }
+
+    private static int grow(int current, long target, long budgetAvailable) {
+        if (target <= current || budgetAvailable <= 0) return current;
+        return (int) Math.min(MAX_BUFFER, Math.min(target, current + budgetAvailable));
+    }
+
+    boolean hasGrown() {
+        return historyCount > 0;
+    }
+
+    // Socket buffer space beyond the initial sizes, what the budget is charged for
+    long grownBytes() {
+        return (long) (uploadBuffer - INITIAL_BUFFER) + (downloadBuffer - INITIAL_BUFFER);
+    }
+
+    // "+<ms> up/down" per step, oldest first, for logs and engine stats
+    String history() {
+        StringBuilder sb = new StringBuilder("rtt=").append(rtt).append("ms app=").append(appRtt).append("ms");
+        int first = Math.max(0, historyCount - HISTORY);
+        for (int i = first; i < historyCount; i++) {
+            int slot = i % HISTORY;
+            sb.append(" +").append(historyTime[slot]).append("ms ")
+              .append(historyUpload[slot] / 1024).append('/')
+              .append(historyDownload[slot] / 1024).append("K");
+        }
+        return sb.toString();
+    }
+}
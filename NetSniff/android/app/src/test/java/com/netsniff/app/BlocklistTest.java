@@ -0,0 +1,75 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// A destination that joins the blocklist is cut off at the flow's next
+// packet, not when the flow next goes idle
+public class BlocklistTest {
+    private static final String REMOTE_IP = "127.0.0.1";
+
+    private ShardHarness harness;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new ShardHarness(1, ToyVpnService.DEFAULT_MTU);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.stop();
+    }
+
+    @Test
+    public void establishedTcpFlowIsResetOnceBlocked() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        int port = server.socket().getLocalPort();
+        FlowShard shard = harness.shards[0];
+        long seq = 7000;
+        shard.enqueue(harness.tcpPacket(40004, port, seq, 0, 0x02, 0));
+        byte[] synAck = harness.writer.awaitTcp(0x12);
+        long ack = ShardHarness.readUnsignedInt(synAck, 24) + 1;
+        seq++;
+        shard.enqueue(harness.tcpPacket(40004, port, seq, ack, 0x10, 0));
+        SocketChannel remote = server.accept();
+
+        harness.service.block(REMOTE_IP);
+        shard.enqueue(harness.tcpPacket(40004, port, seq, ack, 0x18, 100));
+        harness.writer.awaitTcp(0x04);
+        // The upload never reaches the remote, which sees the flow closed
+        ByteBuffer buffer = ByteBuffer.allocate(200);
+        assertEquals(-1, remote.read(buffer));
+        remote.close();
+        server.close();
+    }
+
+    @Test
+    public void udpFlowStopsForwardingOnceBlocked() throws Exception {
+        DatagramChannel server = DatagramChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        int port = server.socket().getLocalPort();
+        FlowShard shard = harness.shards[0];
+        shard.enqueue(harness.udpPacket(40005, port, 10));
+        SocketAddress app = server.receive(ByteBuffer.allocate(100));
+        assertNotNull(app);
+
+        harness.service.block(REMOTE_IP);
+        shard.enqueue(harness.udpPacket(40005, port, 10));
+        server.configureBlocking(false);
+        Thread.sleep(300);
+        assertNull(server.receive(ByteBuffer.allocate(100)));
+        server.close();
+    }
+}
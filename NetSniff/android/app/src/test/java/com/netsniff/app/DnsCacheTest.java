@@ -0,0 +1,169 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class DnsCacheTest {
+    private static final long NOW = 1_000_000;
+    private static final int ADDRESS = 0x5DB8D822;
+
+    @Test
+    public void queryKeyIgnoresCaseButNotTypeOrEdns() {
+        byte[] lower = DnsMessages.query(1, "example.com", DnsMessages.TYPE_A).bytes();
+        byte[] mixed = DnsMessages.query(2, "ExAmPlE.CoM", DnsMessages.TYPE_A).bytes();
+        byte[] aaaa = DnsMessages.query(3, "example.com", 28).bytes();
+        byte[] edns = DnsMessages.query(4, "example.com", DnsMessages.TYPE_A)
+            .opt(1232, false).additionalCount(1).bytes();
+
+        String key = DnsCache.queryKey(lower, 0, lower.length);
+        assertNotNull(key);
+        assertEquals(key, DnsCache.queryKey(mixed, 0, mixed.length));
+        assertNotEquals(key, DnsCache.queryKey(aaaa, 0, aaaa.length));
+        assertNotEquals(key, DnsCache.queryKey(edns, 0, edns.length));
+    }
+
+    @Test
+    public void dnssecOkAndCheckingDisabledGetTheirOwnEntries() {
+        byte[] edns = DnsMessages.query(1, "example.com", DnsMessages.TYPE_A)
+            .opt(1232, false).additionalCount(1).bytes();
+        byte[] dnssecOk = DnsMessages.query(2, "example.com", DnsMessages.TYPE_A)
+            .opt(1232, true).additionalCount(1).bytes();
+        byte[] checkingDisabled = DnsMessages.query(3, "example.com", DnsMessages.TYPE_A)
+            .opt(1232, false).additionalCount(1).flags(0x0110).bytes();
+        String[] keys = {
+            DnsCache.queryKey(edns, 0, edns.length),
+            DnsCache.queryKey(dnssecOk, 0, dnssecOk.length),
+            DnsCache.queryKey(checkingDisabled, 0, checkingDisabled.length),
+        };
+        for (int i = 0; i < keys.length; i++) {
+            assertNotNull(keys[i]);
+            for (int j = 0; j < i; j++) {
+                assertNotEquals(keys[j], keys[i]);
+            }
+        }
+
+        // The answer echoes DO after its records, and is found under the DO key
+        byte[] response = DnsMessages.response(2, 0x8180, "example.com", DnsMessages.TYPE_A, 1, 0, 1)
+            .a(300, ADDRESS).opt(1232, true).bytes();
+        assertEquals(keys[1], DnsCache.responseKey(response, 0, response.length));
+        DnsCache cache = new DnsCache();
+        cache.store(response, 0, response.length, NOW);
+        byte[] out = new byte[DnsCache.MAX_MESSAGE];
+        assertTrue(cache.answer(keys[1], dnssecOk, 0, out, NOW) > 0);
+        assertEquals(-1, cache.answer(keys[0], edns, 0, out, NOW));
+    }
+
+    @Test
+    public void onlyPlainQueriesAreCacheable() {
+        byte[] response = DnsMessages.response(1, 0x8180, "example.com", DnsMessages.TYPE_A, 1, 0, 0)
+            .a(300, ADDRESS).bytes();
+        assertNull(DnsCache.queryKey(response, 0, response.length));
+        byte[] notify = DnsMessages.query(1, "example.com", DnsMessages.TYPE_A).flags(0x2000).bytes();
+        assertNull(DnsCache.queryKey(notify, 0, notify.length));
+        assertNull(DnsCache.queryKey(new byte[8], 0, 8));
+        assertNotNull(DnsCache.responseKey(response, 0, response.length));
+    }
+
+    @Test
+    public void hitTakesTheQueryIdAndCaseAndCountsTtlDown() {
+        DnsCache cache = new DnsCache();
+        byte[] response = DnsMessages.response(0x1111, 0x8180, "example.com", DnsMessages.TYPE_A, 1, 0, 0)
+            .a(300, ADDRESS).bytes();
+        cache.store(response, 0, response.length, NOW);
+
+        byte[] query = DnsMessages.query(0x2222, "EXAMPLE.com", DnsMessages.TYPE_A).bytes();
+        String key = DnsCache.queryKey(query, 0, query.length);
+        byte[] out = new byte[DnsCache.MAX_MESSAGE];
+        int length = cache.answer(key, query, 0, out, NOW + 100_000);
+
+        assertEquals(response.length, length);
+        assertEquals(0x22, out[0]);
+        assertEquals(0x22, out[1]);
+        // Question echoed in the query's case
+        for (int i = 12; i < query.length; i++) {
+            assertEquals(query[i], out[i]);
+        }
+        int ttlOffset = query.length + 6;
+        assertEquals(200, DnsMessages.readInt(out, ttlOffset));
+        assertEquals(ADDRESS, DnsMessages.readInt(out, length - 4));
+    }
+
+    @Test
+    public void entryExpiresWithItsTtl() {
+        DnsCache cache = new DnsCache();
+        byte[] response = DnsMessages.response(1, 0x8180, "example.com", DnsMessages.TYPE_A, 1, 0, 0)
+            .a(60, ADDRESS).bytes();
+        cache.store(response, 0, response.length, NOW);
+        byte[] query = DnsMessages.query(2, "example.com", DnsMessages.TYPE_A).bytes();
+        String key = DnsCache.queryKey(query, 0, query.length);
+        byte[] out = new byte[DnsCache.MAX_MESSAGE];
+        assertTrue(cache.answer(key, query, 0, out, NOW + 59_000) > 0);
+        assertEquals(-1, cache.answer(key, query, 0, out, NOW + 60_000));
+    }
+
+    @Test
+    public void negativeTtlIsTheLesserOfSoaTtlAndMinimum() {
+        assertNegativeLifetime(3600, 60, 60);
+        assertNegativeLifetime(30, 900, 30);
+        // Capped like any negative answer
+        assertNegativeLifetime(86400, 86400, 300);
+    }
+
+    @Test
+    public void negativeAnswerWithoutSoaIsNotCached() {
+        DnsCache cache = new DnsCache();
+        byte[] response = DnsMessages.response(1, 0x8183, "nope.example.com", DnsMessages.TYPE_A, 0, 0, 1)
+            .opt(1232, false).bytes();
+        cache.store(response, 0, response.length, NOW);
+        byte[] query = DnsMessages.query(2, "nope.example.com", DnsMessages.TYPE_A)
+            .opt(1232, false).additionalCount(1).bytes();
+        String key = DnsCache.queryKey(query, 0, query.length);
+        assertEquals(-1, cache.answer(key, query, 0, new byte[DnsCache.MAX_MESSAGE], NOW));
+    }
+
+    private static void assertNegativeLifetime(int soaTtl, int minimum, int expectedSeconds) {
+        DnsCache cache = new DnsCache();
+        byte[] response = DnsMessages.response(1, 0x8183, "nope.example.com", DnsMessages.TYPE_A, 0, 1, 0)
+            .soa(soaTtl, minimum).bytes();
+        cache.store(response, 0, response.length, NOW);
+        byte[] query = DnsMessages.query(2, "nope.example.com", DnsMessages.TYPE_A).bytes();
+        String key = DnsCache.queryKey(query, 0, query.length);
+        byte[] out = new byte[DnsCache.MAX_MESSAGE];
+        assertTrue(cache.answer(key, query, 0, out, NOW + expectedSeconds * 1000L - 1000) > 0);
+        // The SOA handed out carries the negative TTL, counted down
+        long elapsed = expectedSeconds - 1;
+        assertEquals(Math.min(soaTtl, minimum) - elapsed, DnsMessages.readInt(out, query.length + 6));
+        assertEquals(-1, cache.answer(key, query, 0, out, NOW + expectedSeconds * 1000L));
+    }
+
+    @Test
+    public void negativeAnswerIsCachedFromItsSoa() {
+        DnsCache cache = new DnsCache();
+        byte[] response = DnsMessages.response(1, 0x8183, "nope.example.com", DnsMessages.TYPE_A, 0, 1, 0)
+            .soa(120, 120).bytes();
+        cache.store(response, 0, response.length, NOW);
+        byte[] query = DnsMessages.query(2, "nope.example.com", DnsMessages.TYPE_A).bytes();
+        String key = DnsCache.queryKey(query, 0, query.length);
+        byte[] out = new byte[DnsCache.MAX_MESSAGE];
+        assertTrue(cache.answer(key, query, 0, out, NOW + 119_000) > 0);
+        assertEquals(-1, cache.answer(key, query, 0, out, NOW + 120_000));
+    }
+
+    @Test
+    public void failuresAndTruncatedAnswersAreNotCached() {
+        DnsCache cache = new DnsCache();
+        byte[] servfail = DnsMessages.response(1, 0x8182, "example.com", DnsMessages.TYPE_A, 0, 0, 0).bytes();
+        byte[] truncated = DnsMessages.response(1, 0x8380, "example.com", DnsMessages.TYPE_A, 1, 0, 0)
+            .a(300, ADDRESS).bytes();
+        byte[] zeroTtl = DnsMessages.response(1, 0x8180, "example.com", DnsMessages.TYPE_A, 1, 0, 0)
+            .a(0, ADDRESS).bytes();
+        cache.store(servfail, 0, servfail.length, NOW);
+        cache.store(truncated, 0, truncated.length, NOW);
+        cache.store(zeroTtl, 0, zeroTtl.length, NOW);
+
+        byte[] query = DnsMessages.query(2, "example.com", DnsMessages.TYPE_A).bytes();
+        String key = DnsCache.queryKey(query, 0, query.length);
+        assertEquals(-1, cache.answer(key, query, 0, new byte[DnsCache.MAX_MESSAGE], NOW));
+    }
+}
@@ -0,0 +1,98 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+
+public class DnsForwarderTest {
+    private static final int APP_ADDR = 0x0A000002;
+    private static final int RESOLVER_ADDR = 0x7F000001;
+    private static final int ADDRESS = 0x5DB8D822;
+
+    private Selector selector;
+    private DnsForwarder forwarder;
+    private DnsForwarder.Upstream upstream;
+
+    @Before
+    public void setUp() throws Exception {
+        selector = Selector.open();
+        forwarder = new DnsForwarder(new ShardHarness.TestService(), selector, new String[] {"127.0.0.1"}, false);
+        upstream = new DnsForwarder.Upstream(0, new InetSocketAddress("127.0.0.1", 53));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        forwarder.closeAll();
+        selector.close();
+    }
+
+    @Test
+    public void replyMustRepeatTheQuestionsCase() {
+        DnsForwarder.Pending p = send(DnsMessages.query(0x1234, "ExAmPlE.com", DnsMessages.TYPE_A).bytes());
+        byte[] lowered = reply(p, "example.com");
+        assertNull(forwarder.onResponse(upstream, lowered, lowered.length));
+        assertEquals(1, forwarder.getMismatched());
+
+        byte[] exact = reply(p, "ExAmPlE.com");
+        assertSame(p, forwarder.onResponse(upstream, exact, exact.length));
+        assertEquals(0x12, exact[0]);
+        assertEquals(0x34, exact[1]);
+    }
+
+    @Test
+    public void replyWithoutOptAnswersAnEdnsQuery() {
+        DnsForwarder.Pending p = send(DnsMessages.query(1, "example.com", DnsMessages.TYPE_A)
+            .opt(1232, true).additionalCount(1).bytes());
+        byte[] plain = reply(p, "example.com");
+        assertSame(p, forwarder.onResponse(upstream, plain, plain.length));
+        assertEquals(0, forwarder.getMismatched());
+    }
+
+    @Test
+    public void queriesAreNotAnswers() {
+        DnsForwarder.Pending p = send(DnsMessages.query(1, "example.com", DnsMessages.TYPE_A).bytes());
+        byte[] echoed = p.query.clone();
+        assertNull(forwarder.onResponse(upstream, echoed, echoed.length));
+    }
+
+    @Test
+    public void wornOutSocketsAreReplaced() throws Exception {
+        // Without a listener the resolver's port unreachable errors would
+        // close the sockets before they wear out
+        DatagramChannel resolver = DatagramChannel.open();
+        try {
+            resolver.bind(new InetSocketAddress("127.0.0.1", 53));
+        } catch (IOException e) {
+            resolver.close();
+            Assume.assumeNoException(e);
+        }
+        byte[] query = DnsMessages.query(1, "example.com", DnsMessages.TYPE_A).bytes();
+        // Two sockets per resolver share the queries
+        for (int i = 0; i < 2 * DnsForwarder.QUERIES_PER_SOCKET; i++) {
+            send(query);
+        }
+        assertEquals(0, forwarder.getRotations());
+        send(query);
+        assertEquals(1, forwarder.getRotations());
+        resolver.close();
+    }
+
+    private DnsForwarder.Pending send(byte[] query) {
+        DnsForwarder.Pending p = forwarder.send(query, 0, query.length, APP_ADDR, 40000, RESOLVER_ADDR, -1);
+        assertNotNull(p);
+        return p;
+    }
+
+    private static byte[] reply(DnsForwarder.Pending p, String name) {
+        return DnsMessages.response(p.upstreamId, 0x8180, name, DnsMessages.TYPE_A, 1, 0, 0)
+            .a(300, ADDRESS).bytes();
+    }
+}
@@ -0,0 +1,83 @@
+package com.netsniff.app;
+
+import java.nio.ByteBuffer;
+
+// Builds the small DNS messages the cache and forwarder tests need
+class DnsMessages {
+    static final int TYPE_A = 1;
+    static final int TYPE_SOA = 6;
+
+    private final ByteBuffer msg = ByteBuffer.allocate(512);
+
+    static DnsMessages query(int id, String name, int type) {
+        DnsMessages m = new DnsMessages();
+        m.header(id, 0x0100, 0, 0, 0);
+        m.question(name, type);
+        return m;
+    }
+
+    // flags: 0x8180 for an answer, 0x8183 for NXDOMAIN
+    static DnsMessages response(int id, int flags, String name, int type, int answers, int authority, int additional) {
+        DnsMessages m = new DnsMessages();
+        m.header(id, flags, answers, authority, additional);
+        m.question(name, type);
+        return m;
+    }
+
+    private void header(int id, int flags, int answers, int authority, int additional) {
+        msg.putShort((short) id).putShort((short) flags);
+        msg.putShort((short) 1).putShort((short) answers).putShort((short) authority).putShort((short) additional);
+    }
+
+    private void question(String name, int type) {
+        for (String label : name.split("\\.")) {
+            msg.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++) {
+                msg.put((byte) label.charAt(i));
+            }
+        }
+        msg.put((byte) 0).putShort((short) type).putShort((short) 1);
+    }
+
+    // A record for the question's name, through a compression pointer
+    DnsMessages a(int ttl, int address) {
+        msg.putShort((short) 0xC00C).putShort((short) TYPE_A).putShort((short) 1).putInt(ttl);
+        msg.putShort((short) 4).putInt(address);
+        return this;
+    }
+
+    // SOA with root MNAME and RNAME; minimum is the negative caching TTL
+    DnsMessages soa(int ttl, int minimum) {
+        msg.putShort((short) 0xC00C).putShort((short) TYPE_SOA).putShort((short) 1).putInt(ttl);
+        msg.putShort((short) 22).put((byte) 0).put((byte) 0);
+        msg.putInt(1).putInt(7200).putInt(900).putInt(1209600).putInt(minimum);
+        return this;
+    }
+
+    // EDNS OPT pseudo-record; also bumps ARCOUNT for a query
+    DnsMessages opt(int payloadSize, boolean dnssecOk) {
+        msg.put((byte) 0).putShort((short) 41).putShort((short) payloadSize);
+        msg.putInt(dnssecOk ? 0x8000 : 0).putShort((short) 0);
+        return this;
+    }
+
+    DnsMessages additionalCount(int count) {
+        msg.putShort(10, (short) count);
+        return this;
+    }
+
+    DnsMessages flags(int flags) {
+        msg.putShort(2, (short) flags);
+        return this;
+    }
+
+    byte[] bytes() {
+        byte[] out = new byte[msg.position()];
+        System.arraycopy(msg.array(), 0, out, 0, out.length);
+        return out;
+    }
+
+    static int readInt(byte[] b, int pos) {
+        return ByteBuffer.wrap(b).getInt(pos);
+    }
+}
@@ -0,0 +1,174 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class FlowTableTest {
+    // Key pair as a map key for the reference HashMap
+    private static final class Key {
+        final long k0;
+        final long k1;
+
+        Key(long k0, long k1) {
+            this.k0 = k0;
+            this.k1 = k1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).k0 == k0 && ((Key) o).k1 == k1;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(k0 * 31 + k1);
+        }
+    }
+
+    @Test
+    public void randomOperationsMatchHashMap() {
+        Random random = new Random(1);
+        // Small key spaces make repeats and long probe chains likely; the
+        // large one grows the table through several resizes
+        for (int keySpace : new int[] {50, 1000, 40000}) {
+            FlowTable<Integer> table = new FlowTable<>();
+            Map<Key, Integer> reference = new HashMap<>();
+            for (int op = 0; op < 300_000; op++) {
+                Key key = randomKey(random, keySpace);
+                int action = random.nextInt(10);
+                if (action < 5) {
+                    Integer value = op;
+                    assertEquals(reference.put(key, value), table.put(key.k0, key.k1, value));
+                } else if (action < 8) {
+                    assertEquals(reference.remove(key), table.remove(key.k0, key.k1));
+                } else {
+                    assertEquals(reference.get(key), table.get(key.k0, key.k1));
+                }
+                assertEquals(reference.size(), table.size());
+            }
+            assertSameContents(reference, table);
+        }
+    }
+
+    @Test
+    public void growThenDrainThenGrowAgain() {
+        // Filling past every resize point, emptying by backward-shift
+        // deletes and refilling must never lose or resurrect a flow
+        Random random = new Random(2);
+        FlowTable<Integer> table = new FlowTable<>();
+        Map<Key, Integer> reference = new HashMap<>();
+        for (int cycle = 0; cycle < 3; cycle++) {
+            for (int i = 0; i < 20000; i++) {
+                Key key = randomKey(random, Integer.MAX_VALUE);
+                assertEquals(reference.put(key, i), table.put(key.k0, key.k1, i));
+            }
+            List<Key> keys = new ArrayList<>(reference.keySet());
+            for (int i = 0; i < keys.size(); i++) {
+                if (i % 8 == 0) continue;
+                Key key = keys.get(i);
+                assertEquals(reference.remove(key), table.remove(key.k0, key.k1));
+            }
+            assertSameContents(reference, table);
+        }
+        table.clear();
+        assertEquals(0, table.size());
+        for (Key key : reference.keySet()) {
+            assertNull(table.get(key.k0, key.k1));
+        }
+    }
+
+    @Test
+    public void flowsDifferingOnlyInPortOrProtocolAreDistinct() {
+        FlowTable<String> table = new FlowTable<>();
+        long k0 = FlowTable.key0(0x0A000002, 0x08080808);
+        for (int port = 1; port <= 5000; port++) {
+            table.put(k0, FlowTable.key1(port, 443, 6), "tcp" + port);
+            table.put(k0, FlowTable.key1(port, 443, 17), "udp" + port);
+            table.put(k0, FlowTable.key1(port, 443, 6 | FlowTable.IPV6), "tcp6-" + port);
+        }
+        assertEquals(15000, table.size());
+        assertEquals("tcp77", table.get(k0, FlowTable.key1(77, 443, 6)));
+        assertEquals("udp77", table.get(k0, FlowTable.key1(77, 443, 17)));
+        assertEquals("tcp6-77", table.get(k0, FlowTable.key1(77, 443, 6 | FlowTable.IPV6)));
+        assertNull(table.get(FlowTable.key0(0x08080808, 0x0A000002), FlowTable.key1(77, 443, 6)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullFlowIsRefused() {
+        new FlowTable<String>().put(1, 2, null);
+    }
+
+    // Run with -Dbenchmarks=true
+    @Test
+    public void benchmarkLookup() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+        for (int flows : new int[] {10_000, 100_000}) {
+            Random random = new Random(3);
+            FlowTable<Object> table = new FlowTable<>();
+            Map<String, Object> byString = new HashMap<>();
+            long[] keys0 = new long[flows];
+            long[] keys1 = new long[flows];
+            String[] strings = new String[flows];
+            for (int i = 0; i < flows; i++) {
+                int source = 0x0A000002;
+                int dest = random.nextInt();
+                int sourcePort = 1024 + random.nextInt(64000);
+                keys0[i] = FlowTable.key0(source, dest);
+                keys1[i] = FlowTable.key1(sourcePort, 443, 6);
+                strings[i] = "10.0.0.2:" + sourcePort + "-" + dest + ":443";
+                Object flow = new Object();
+                table.put(keys0[i], keys1[i], flow);
+                byString.put(strings[i], flow);
+            }
+            // Lookups in random order, as packets from many flows interleave
+            int[] order = new int[1 << 20];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = random.nextInt(flows);
+            }
+            int hits = 0;
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                for (int i : order) {
+                    if (table.get(keys0[i], keys1[i]) != null) hits++;
+                }
+                long tableTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i : order) {
+                    // The old path built the string key for every packet
+                    if (byString.get(new String(strings[i])) != null) hits++;
+                }
+                long stringTime = System.nanoTime() - start;
+                System.out.printf("%d flows: FlowTable %.1f ns/lookup, HashMap<String> %.1f ns/lookup%n",
+                                  flows, (double) tableTime / order.length, (double) stringTime / order.length);
+            }
+            assertEquals(10L * order.length, hits);
+        }
+    }
+
+    private static Key randomKey(Random random, int keySpace) {
+        int n = random.nextInt(keySpace);
+        // Spread a small key space over realistic looking tuples
+        return new Key(FlowTable.key0(0x0A000002, 0x08080000 + n / 64),
+                       FlowTable.key1(40000 + n % 64, 443, 6));
+    }
+
+    private static void assertSameContents(Map<Key, Integer> reference, FlowTable<Integer> table) {
+        assertEquals(reference.size(), table.size());
+        for (Map.Entry<Key, Integer> entry : reference.entrySet()) {
+            assertEquals(entry.getValue(), table.get(entry.getKey().k0, entry.getKey().k1));
+        }
+        List<Integer> values = new ArrayList<>();
+        table.values(values);
+        assertEquals(new HashSet<>(reference.values()), new HashSet<>(values));
+        assertEquals(reference.size(), values.size());
+    }
+}
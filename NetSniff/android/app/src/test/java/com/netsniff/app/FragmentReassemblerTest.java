@@ -0,0 +1,172 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class FragmentReassemblerTest {
+    private static final long START = 1_000_000;
+
+    private TimerWheel timers;
+    private FragmentReassembler reassembler;
+
+    @Before
+    public void setUp() {
+        timers = new TimerWheel(START);
+        reassembler = new FragmentReassembler(timers);
+    }
+
+    @Test
+    public void fragmentsInAnyOrderMakeTheDatagram() {
+        byte[] datagram = udpDatagram(3000, 0x1234, 1);
+        List<byte[]> fragments = fragment(datagram, 1280);
+        assertEquals(3, fragments.size());
+        for (byte[] fragment : fragments) {
+            assertTrue(FragmentReassembler.isFragment(fragment));
+        }
+        assertFalse(FragmentReassembler.isFragment(datagram));
+
+        assertNull(reassembler.add(fragments.get(2), fragments.get(2).length, START));
+        assertNull(reassembler.add(fragments.get(0), fragments.get(0).length, START));
+        byte[] whole = reassembler.add(fragments.get(1), fragments.get(1).length, START);
+
+        assertArrayEquals(datagram, whole);
+        assertFalse(FragmentReassembler.isFragment(whole));
+        assertEquals(0, PacketUtils.checksumFinish(PacketUtils.checksumAdd(whole, 0, 20, 0)));
+        assertEquals(1, reassembler.getReassembled());
+        assertEquals(3, reassembler.getFragments());
+        assertEquals(0, timers.size());
+    }
+
+    @Test
+    public void interleavedDatagramsAreKeptApart() {
+        byte[] a = udpDatagram(2500, 1, 2);
+        byte[] b = udpDatagram(2500, 2, 3);
+        List<byte[]> aFragments = fragment(a, 1000);
+        List<byte[]> bFragments = fragment(b, 1000);
+        List<byte[]> done = new ArrayList<>();
+        for (int i = 0; i < aFragments.size(); i++) {
+            byte[] whole = reassembler.add(bFragments.get(i), bFragments.get(i).length, START);
+            if (whole != null) done.add(whole);
+            whole = reassembler.add(aFragments.get(i), aFragments.get(i).length, START);
+            if (whole != null) done.add(whole);
+        }
+        assertEquals(2, done.size());
+        assertArrayEquals(b, done.get(0));
+        assertArrayEquals(a, done.get(1));
+    }
+
+    @Test
+    public void overlappingFragmentsDropTheDatagram() {
+        byte[] datagram = udpDatagram(2000, 7, 4);
+        List<byte[]> fragments = fragment(datagram, 1000);
+        reassembler.add(fragments.get(0), fragments.get(0).length, START);
+        // A second copy of the first fragment overlaps it
+        assertNull(reassembler.add(fragments.get(0), fragments.get(0).length, START));
+        assertEquals(1, reassembler.getDropped());
+        assertNull(reassembler.add(fragments.get(1), fragments.get(1).length, START));
+        assertEquals(0, reassembler.getReassembled());
+    }
+
+    @Test
+    public void unevenMiddleFragmentIsRefused() {
+        byte[] datagram = udpDatagram(2000, 8, 5);
+        byte[] fragment = fragment(datagram, 1000).get(0);
+        // More fragments follow, but the payload is not a multiple of 8
+        assertNull(reassembler.add(fragment, fragment.length - 3, START));
+        assertEquals(1, reassembler.getDropped());
+        assertEquals(0, timers.size());
+    }
+
+    @Test
+    public void incompleteDatagramTimesOut() {
+        byte[] datagram = udpDatagram(2000, 9, 6);
+        List<byte[]> fragments = fragment(datagram, 1000);
+        reassembler.add(fragments.get(0), fragments.get(0).length, START);
+        assertEquals(1, timers.size());
+
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+        timers.advance(START + FragmentReassembler.TIMEOUT_MS - TimerWheel.TICK_MS, expired);
+        assertTrue(expired.isEmpty());
+        timers.advance(START + FragmentReassembler.TIMEOUT_MS, expired);
+        assertEquals(1, expired.size());
+        reassembler.expire((FragmentReassembler.Datagram) expired.get(0).owner);
+        assertEquals(1, reassembler.getDropped());
+
+        // The rest arrives too late to complete anything
+        long later = START + FragmentReassembler.TIMEOUT_MS;
+        for (int i = 1; i < fragments.size(); i++) {
+            assertNull(reassembler.add(fragments.get(i), fragments.get(i).length, later));
+        }
+        reassembler.clear();
+        assertEquals(0, timers.size());
+    }
+
+    @Test
+    public void oldestDatagramMakesRoomForNewOnes() {
+        List<byte[]> firstPieces = new ArrayList<>();
+        for (int id = 0; id < 100; id++) {
+            List<byte[]> fragments = fragment(udpDatagram(2000, id, id), 1000);
+            reassembler.add(fragments.get(0), fragments.get(0).length, START);
+            firstPieces.add(fragments.get(fragments.size() - 1));
+        }
+        assertTrue(reassembler.getDropped() > 0);
+        // The newest still completes
+        byte[] last = firstPieces.get(firstPieces.size() - 1);
+        List<byte[]> fragments = fragment(udpDatagram(2000, 99, 99), 1000);
+        assertNull(reassembler.add(fragments.get(1), fragments.get(1).length, START));
+        assertNotNull(reassembler.add(last, last.length, START));
+    }
+
+    // IPv4 UDP datagram with a valid header checksum and random payload
+    static byte[] udpDatagram(int payloadSize, int id, int seed) {
+        int totalLength = 28 + payloadSize;
+        ByteBuffer packet = ByteBuffer.allocate(totalLength);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) totalLength);
+        packet.putShort((short) id).putShort((short) 0);
+        packet.put((byte) 64).put((byte) 17).putShort((short) 0);
+        packet.putInt(0x0A000002).putInt(0x08080808);
+        packet.putShort((short) 40000).putShort((short) 53).putShort((short) (8 + payloadSize)).putShort((short) 0);
+        byte[] payload = new byte[payloadSize];
+        new Random(seed).nextBytes(payload);
+        packet.put(payload);
+        byte[] bytes = packet.array();
+        setChecksum(bytes);
+        return bytes;
+    }
+
+    // Split a datagram into fragments of at most mtu bytes, as a host would
+    static List<byte[]> fragment(byte[] datagram, int mtu) {
+        int payloadSize = datagram.length - 20;
+        int step = (mtu - 20) & ~7;
+        List<byte[]> fragments = new ArrayList<>();
+        for (int offset = 0; offset < payloadSize; offset += step) {
+            int size = Math.min(step, payloadSize - offset);
+            byte[] fragment = new byte[20 + size];
+            System.arraycopy(datagram, 0, fragment, 0, 20);
+            System.arraycopy(datagram, 20 + offset, fragment, 20, size);
+            fragment[2] = (byte) (fragment.length >>> 8);
+            fragment[3] = (byte) fragment.length;
+            int flags = (offset + size < payloadSize ? 0x2000 : 0) | (offset / 8);
+            fragment[6] = (byte) (flags >>> 8);
+            fragment[7] = (byte) flags;
+            setChecksum(fragment);
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+
+    private static void setChecksum(byte[] packet) {
+        packet[10] = 0;
+        packet[11] = 0;
+        short checksum = PacketUtils.checksumFinish(PacketUtils.checksumAdd(packet, 0, 20, 0));
+        packet[10] = (byte) (checksum >>> 8);
+        packet[11] = (byte) checksum;
+    }
+}
@@ -0,0 +1,240 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+// The checksum engine against the textbook one's complement sum: 16-bit
+// big-endian words, an odd last byte padded with zero, carries folded back
+public class PacketUtilsTest {
+    private static final int ROUNDS = 2000;
+
+    @Test
+    public void byteArraySumMatchesNaive() {
+        Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] data = randomBytes(random, 1 + random.nextInt(1600));
+            int offset = random.nextInt(data.length);
+            int length = random.nextInt(data.length - offset + 1);
+            assertEquals(naiveSum(data, offset, length),
+                         PacketUtils.checksumFold(PacketUtils.checksumAdd(data, offset, length, 0)));
+        }
+    }
+
+    @Test
+    public void bufferSumMatchesNaiveForEveryKindOfBuffer() {
+        Random random = new Random(2);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] data = randomBytes(random, 1 + random.nextInt(1600));
+            int offset = random.nextInt(data.length);
+            int length = random.nextInt(data.length - offset + 1);
+            int expected = naiveSum(data, offset, length);
+            for (ByteBuffer buffer : buffersOf(data)) {
+                String kind = (buffer.isDirect() ? "direct " : "heap ") + buffer.order();
+                assertEquals(kind, expected,
+                             PacketUtils.checksumFold(PacketUtils.checksumAdd(buffer, offset, length, 0)));
+                assertEquals(kind, 0, buffer.position());
+            }
+        }
+    }
+
+    @Test
+    public void runningSumAccumulatesAcrossCalls() {
+        Random random = new Random(3);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] data = randomBytes(random, 2 + random.nextInt(1600));
+            // An even split keeps both halves aligned to the words
+            int split = random.nextInt(data.length / 2 + 1) * 2;
+            long sum = PacketUtils.checksumAdd(data, 0, split, 0);
+            sum = PacketUtils.checksumAdd(ByteBuffer.wrap(data), split, data.length - split, sum);
+            assertEquals(naiveSum(data, 0, data.length), PacketUtils.checksumFold(sum));
+        }
+    }
+
+    @Test
+    public void partialSumsCombineAtAnySplit() {
+        Random random = new Random(4);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] data = randomBytes(random, 2 + random.nextInt(1600));
+            int split = 1 + random.nextInt(data.length - 1);
+            if (round % 2 == 0) split |= 1;  // make sure odd splits are well covered
+            split = Math.min(split, data.length - 1);
+            for (ByteBuffer buffer : buffersOf(data)) {
+                long head = PacketUtils.checksumAdd(buffer, 0, split, 0);
+                long tail = PacketUtils.checksumAdd(buffer, split, data.length - split, 0);
+                assertEquals("split " + split, naiveSum(data, 0, data.length),
+                             PacketUtils.checksumFold(PacketUtils.checksumCombine(head, tail, split)));
+            }
+        }
+    }
+
+    @Test
+    public void incrementalUpdateMatchesFullRecompute() {
+        Random random = new Random(5);
+        for (int round = 0; round < ROUNDS * 5; round++) {
+            byte[] data = randomBytes(random, 20 + 2 * random.nextInt(700));
+            short checksum = PacketUtils.checksumFinish(PacketUtils.checksumAdd(data, 0, data.length, 0));
+
+            int at = 2 * random.nextInt(data.length / 2);
+            int oldWord = readShort(data, at);
+            int newWord = round % 10 == 0 ? oldWord ^ 0xFFFF : random.nextInt(65536);
+            writeShort(data, at, newWord);
+            short full = PacketUtils.checksumFinish(PacketUtils.checksumAdd(data, 0, data.length, 0));
+            assertEquals(full, PacketUtils.checksumUpdate(checksum, oldWord, newWord));
+        }
+    }
+
+    @Test
+    public void incrementalUpdate32MatchesFullRecompute() {
+        Random random = new Random(6);
+        for (int round = 0; round < ROUNDS * 5; round++) {
+            byte[] data = randomBytes(random, 20 + 2 * random.nextInt(700));
+            short checksum = PacketUtils.checksumFinish(PacketUtils.checksumAdd(data, 0, data.length, 0));
+
+            // 32-bit fields such as TCP sequence numbers sit on even offsets
+            int at = 2 * random.nextInt(data.length / 2 - 1);
+            int oldValue = (readShort(data, at) << 16) | readShort(data, at + 2);
+            int newValue = round % 10 == 0 ? oldValue + 1 : random.nextInt();
+            writeShort(data, at, newValue >>> 16);
+            writeShort(data, at + 2, newValue & 0xFFFF);
+            short full = PacketUtils.checksumFinish(PacketUtils.checksumAdd(data, 0, data.length, 0));
+            assertEquals(full, PacketUtils.checksumUpdate32(checksum, oldValue, newValue));
+        }
+    }
+
+    @Test
+    public void headerChecksumsVerify() {
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            int payload = random.nextInt(1400);
+            boolean tcp = random.nextBoolean();
+            int l4Length = (tcp ? 20 : 8) + payload;
+            ByteBuffer packet = ByteBuffer.wrap(randomBytes(random, 20 + l4Length));
+            packet.put(0, (byte) 0x45);
+            packet.putShort(2, (short) (20 + l4Length));
+            packet.put(9, (byte) (tcp ? 6 : 17));
+            packet.putShort(10, (short) 0);
+            packet.putShort(10, PacketUtils.calculateIPChecksum(packet, 0));
+            assertEquals(0xFFFF, naiveSum(packet.array(), 0, 20));
+
+            int checksumAt = 20 + (tcp ? 16 : 6);
+            packet.putShort(checksumAt, (short) 0);
+            short checksum = tcp
+                ? PacketUtils.calculateTCPChecksum(packet, 0, 20, l4Length)
+                : PacketUtils.calculateUDPChecksum(packet, 0, 20, l4Length);
+            packet.putShort(checksumAt, checksum);
+            int pseudo = naiveSum(packet.array(), 12, 8) + (tcp ? 6 : 17) + l4Length;
+            int sum = naiveSum(packet.array(), 20, l4Length) + pseudo;
+            assertEquals(0xFFFF, fold(sum));
+        }
+    }
+
+    // Run with -Dbenchmarks=true. TCP checksums of a whole packet at the
+    // standard, jumbo and largest MTU, against the implementation this
+    // engine replaced, which is kept below as the reference.
+    @Test
+    public void benchmarkChecksum() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+        long sink = 0;
+        for (int size : new int[] {1500, 9000, 65535}) {
+            byte[] data = randomBytes(new Random(size), size);
+            ByteBuffer direct = ByteBuffer.allocateDirect(size);
+            direct.put(data).clear();
+            int tcpLength = size - 20;
+            int iterations = 200_000_000 / size;
+            for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.wrap(data), direct}) {
+                String kind = buffer.isDirect() ? "direct" : "heap";
+                assertEquals(baselineTcpChecksum(buffer, 0, 20, tcpLength),
+                             PacketUtils.calculateTCPChecksum(buffer, 0, 20, tcpLength));
+                for (int round = 0; round < 5; round++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) sink += baselineTcpChecksum(buffer, 0, 20, tcpLength);
+                    long baseline = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) sink += PacketUtils.calculateTCPChecksum(buffer, 0, 20, tcpLength);
+                    long current = System.nanoTime() - start;
+                    System.out.printf("%d-byte %s TCP checksum: baseline %.0f ns, current %.0f ns (%.1fx)%n",
+                                      size, kind, (double) baseline / iterations, (double) current / iterations,
+                                      (double) baseline / current);
+                }
+            }
+        }
+        assertTrue(sink != 0);
+    }
+
+    // PacketUtils.calculateTCPChecksum before the 64-bit rewrite: one
+    // relative getShort() per word
+    private static short baselineTcpChecksum(ByteBuffer buffer, int ipStart, int tcpStart, int tcpLength) {
+        long sum = 0;
+        buffer.position(ipStart + 12);
+        for (int i = 0; i < 4; i++) {
+            sum += (buffer.get() & 0xFF) << 8;
+            sum += buffer.get() & 0xFF;
+        }
+        sum += 6;
+        sum += tcpLength;
+        buffer.position(tcpStart);
+        int words = tcpLength / 2;
+        for (int i = 0; i < words; i++) {
+            sum += buffer.getShort() & 0xFFFF;
+        }
+        if (tcpLength % 2 != 0) {
+            sum += (buffer.get() & 0xFF) << 8;
+        }
+        while ((sum >> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return (short) ~sum;
+    }
+
+    static int naiveSum(byte[] data, int offset, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i += 2) {
+            int word = (data[offset + i] & 0xFF) << 8;
+            if (i + 1 < length) word |= data[offset + i + 1] & 0xFF;
+            sum = fold(sum + word);
+        }
+        return sum;
+    }
+
+    private static int fold(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    // Heap and direct, in both byte orders, all holding data
+    private static ByteBuffer[] buffersOf(byte[] data) {
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).clear();
+        ByteBuffer directLittle = ByteBuffer.allocateDirect(data.length).order(ByteOrder.LITTLE_ENDIAN);
+        directLittle.put(data).clear();
+        return new ByteBuffer[] {
+            ByteBuffer.wrap(data),
+            ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN),
+            direct,
+            directLittle,
+        };
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static int readShort(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 8);
+        b[pos + 1] = (byte) value;
+    }
+}
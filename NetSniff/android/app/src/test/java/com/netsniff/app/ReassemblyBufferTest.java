@@ -0,0 +1,136 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+public class ReassemblyBufferTest {
+    // Sequence numbers are unwrapped, so start past 2^32 to be sure
+    private static final long BASE = 5_000_000_000L;
+
+    @Test
+    public void outOfOrderDataIsReleasedOnceTheHoleFills() {
+        byte[] stream = stream(300, 1);
+        ReassemblyBuffer buffer = new ReassemblyBuffer();
+        assertEquals(100, buffer.insert(BASE + 200, stream, 200, 100, BASE));
+        assertEquals(100, buffer.insert(BASE + 100, stream, 100, 100, BASE));
+        assertEquals(200, buffer.bytes());
+        assertNull(buffer.pollContiguous(BASE));
+
+        // The in-order segment [0, 100) went straight to the socket
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long next = BASE + 100;
+        byte[] piece;
+        while ((piece = buffer.pollContiguous(next)) != null) {
+            out.write(piece, 0, piece.length);
+            next += piece.length;
+        }
+        assertEquals(BASE + 300, next);
+        assertArrayEquals(slice(stream, 100, 300), out.toByteArray());
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.bytes());
+    }
+
+    @Test
+    public void overlappingDataIsKeptOnce() {
+        byte[] stream = stream(400, 2);
+        ReassemblyBuffer buffer = new ReassemblyBuffer();
+        assertEquals(100, buffer.insert(BASE + 100, stream, 100, 100, BASE));
+        assertEquals(0, buffer.insert(BASE + 120, stream, 120, 50, BASE));   // inside
+        assertEquals(50, buffer.insert(BASE + 150, stream, 150, 100, BASE));  // tail overlaps
+        assertEquals(50, buffer.insert(BASE + 50, stream, 50, 100, BASE));    // head overlaps
+        assertEquals(100, buffer.insert(BASE + 300, stream, 300, 100, BASE));
+        assertEquals(150, buffer.insert(BASE + 250, stream, 250, 150, BASE)); // replaces [300, 400)
+        assertEquals(0, buffer.insert(BASE - 50, stream, 0, 50, BASE));       // already delivered
+        assertEquals(350, buffer.bytes());
+    }
+
+    @Test
+    public void inOrderSegmentOverrunningStoredDataTrimsIt() {
+        byte[] stream = stream(300, 3);
+        ReassemblyBuffer buffer = new ReassemblyBuffer();
+        buffer.insert(BASE + 100, stream, 100, 100, BASE);
+        buffer.insert(BASE + 250, stream, 250, 50, BASE);
+        // An in-order segment [0, 150) arrived and was forwarded
+        byte[] piece = buffer.pollContiguous(BASE + 150);
+        assertArrayEquals(slice(stream, 150, 200), piece);
+        assertNull(buffer.pollContiguous(BASE + 200));
+        assertEquals(50, buffer.bytes());
+    }
+
+    @Test
+    public void randomSegmentsRebuildTheStream() {
+        Random random = new Random(11);
+        for (int round = 0; round < 200; round++) {
+            byte[] stream = stream(2000 + random.nextInt(8000), round);
+            ReassemblyBuffer buffer = new ReassemblyBuffer();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long next = BASE;
+            while (next < BASE + stream.length) {
+                int start = (int) (next - BASE) + random.nextInt(3000) - 500;
+                start = Math.max(0, Math.min(start, stream.length - 1));
+                int length = Math.min(1 + random.nextInt(1400), stream.length - start);
+                if (BASE + start <= next) {
+                    // The shard forwards in-order data itself
+                    int skip = (int) (next - BASE - start);
+                    if (skip < length) {
+                        out.write(stream, start + skip, length - skip);
+                        next += length - skip;
+                    }
+                    byte[] piece;
+                    while ((piece = buffer.pollContiguous(next)) != null) {
+                        out.write(piece, 0, piece.length);
+                        next += piece.length;
+                    }
+                } else {
+                    buffer.insert(BASE + start, stream, start, length, next);
+                }
+            }
+            assertArrayEquals(stream, out.toByteArray());
+            assertTrue(buffer.isEmpty());
+            assertEquals(0, buffer.bytes());
+        }
+    }
+
+    @Test
+    public void sackReportsTheLatestBlockFirst() {
+        byte[] stream = stream(1000, 4);
+        ReassemblyBuffer buffer = new ReassemblyBuffer();
+        buffer.insert(BASE + 100, stream, 100, 100, BASE);
+        buffer.insert(BASE + 200, stream, 200, 50, BASE);  // adjacent: one block
+        buffer.insert(BASE + 400, stream, 400, 100, BASE);
+        buffer.insert(BASE + 700, stream, 700, 100, BASE);
+        buffer.insert(BASE + 450, stream, 450, 100, BASE); // latest, extends [400, 500)
+
+        long[] blocks = new long[8];
+        assertEquals(3, buffer.sackBlocks(blocks, 4));
+        assertEquals(BASE + 400, blocks[0]);
+        assertEquals(BASE + 550, blocks[1]);
+        assertEquals(BASE + 100, blocks[2]);
+        assertEquals(BASE + 250, blocks[3]);
+        assertEquals(BASE + 700, blocks[4]);
+        assertEquals(BASE + 800, blocks[5]);
+
+        assertEquals(2, buffer.sackBlocks(blocks, 2));
+        assertEquals(BASE + 400, blocks[0]);
+        assertEquals(BASE + 100, blocks[2]);
+
+        buffer.clear();
+        assertEquals(0, buffer.sackBlocks(blocks, 4));
+    }
+
+    private static byte[] stream(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] slice(byte[] data, int from, int to) {
+        byte[] out = new byte[to - from];
+        System.arraycopy(data, from, out, 0, out.length);
+        return out;
+    }
+}
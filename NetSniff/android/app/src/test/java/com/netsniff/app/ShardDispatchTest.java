@@ -0,0 +1,288 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+public class ShardDispatchTest {
+    private static final int[] SHARD_COUNTS = {2, 3, 4, 8};
+    private static final int SCALING_FLOWS = 32;
+    private static final int SCALING_PACKETS = 200_000;
+    // Packets the dispatcher lets each shard fall behind by, well inside its inbox
+    private static final int SCALING_BACKLOG = 1024;
+
+    @Test
+    public void bothDirectionsOfAnIpv4FlowShareAShard() {
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            int protocol = random.nextBoolean() ? 6 : 17;
+            byte[] a = randomBytes(random, 4);
+            byte[] b = randomBytes(random, 4);
+            int aPort = random.nextInt(65536);
+            int bPort = random.nextInt(65536);
+            byte[] forward = ipv4(protocol, a, aPort, b, bPort, 0);
+            byte[] reverse = ipv4(protocol, b, bPort, a, aPort, 0);
+            for (int shards : SHARD_COUNTS) {
+                int index = ToyVpnService.shardIndex(forward, forward.length, shards);
+                assertTrue(index >= 0 && index < shards);
+                assertEquals(index, ToyVpnService.shardIndex(reverse, reverse.length, shards));
+            }
+        }
+    }
+
+    @Test
+    public void bothDirectionsOfAnIpv6FlowShareAShard() {
+        Random random = new Random(2);
+        for (int i = 0; i < 10000; i++) {
+            int protocol = random.nextBoolean() ? 6 : 17;
+            byte[] a = randomBytes(random, 16);
+            byte[] b = randomBytes(random, 16);
+            int aPort = random.nextInt(65536);
+            int bPort = random.nextInt(65536);
+            byte[] forward = ipv6(protocol, a, aPort, b, bPort);
+            byte[] reverse = ipv6(protocol, b, bPort, a, aPort);
+            for (int shards : SHARD_COUNTS) {
+                int index = ToyVpnService.shardIndex(forward, forward.length, shards);
+                assertTrue(index >= 0 && index < shards);
+                assertEquals(index, ToyVpnService.shardIndex(reverse, reverse.length, shards));
+            }
+        }
+    }
+
+    @Test
+    public void fragmentsOfADatagramShareAShard() {
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            byte[] a = randomBytes(random, 4);
+            byte[] b = randomBytes(random, 4);
+            byte[] first = ipv4(17, a, random.nextInt(65536), b, random.nextInt(65536), 0x2000);
+            // A later fragment carries payload, not ports, where the ports would be
+            byte[] later = ipv4(17, a, random.nextInt(65536), b, random.nextInt(65536), 185);
+            for (int shards : SHARD_COUNTS) {
+                assertEquals(ToyVpnService.shardIndex(first, first.length, shards),
+                             ToyVpnService.shardIndex(later, later.length, shards));
+            }
+        }
+    }
+
+    @Test
+    public void icmpFragmentsGoToAShardButPingsDoNot() {
+        byte[] a = {10, 0, 0, 2};
+        byte[] b = {8, 8, 8, 8};
+        // Echo request: type 8, code 0, then the checksum and ID in the port slots
+        byte[] ping = ipv4(1, a, 0x0800, b, 0, 0);
+        assertTrue(IcmpProxy.isEchoRequest(ping, ping.length));
+        byte[] first = ipv4(1, a, 0x0800, b, 0, 0x2000);
+        byte[] later = ipv4(1, a, 0x1234, b, 0x5678, 185);
+        assertFalse(IcmpProxy.isEchoRequest(first, first.length));
+        for (int shards : SHARD_COUNTS) {
+            assertEquals(-1, ToyVpnService.shardIndex(ping, ping.length, shards));
+            int index = ToyVpnService.shardIndex(first, first.length, shards);
+            assertTrue(index >= 0 && index < shards);
+            assertEquals(index, ToyVpnService.shardIndex(later, later.length, shards));
+        }
+    }
+
+    @Test
+    public void flowsSpreadEvenly() {
+        // One app address talking to a handful of servers, as on a phone
+        Random random = new Random(4);
+        byte[] app = {10, 0, 0, 2};
+        byte[][] servers = new byte[16][];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = randomBytes(random, 4);
+        }
+        int shards = 4;
+        int flows = 20000;
+        int[] counts = new int[shards];
+        for (int i = 0; i < flows; i++) {
+            byte[] packet = ipv4(6, app, 32768 + random.nextInt(28000),
+                                 servers[random.nextInt(servers.length)], 443, 0);
+            counts[ToyVpnService.shardIndex(packet, packet.length, shards)]++;
+        }
+        for (int count : counts) {
+            assertTrue("shard load " + count, Math.abs(count - flows / shards) < flows / shards / 5);
+        }
+    }
+
+    @Test
+    public void unhandledPacketsGoNowhere() {
+        byte[] icmp = ipv4(1, new byte[4], 0, new byte[4], 0, 0);
+        assertEquals(-1, ToyVpnService.shardIndex(icmp, icmp.length, 4));
+        byte[] truncated = ipv4(6, new byte[4], 1, new byte[4], 2, 0);
+        assertEquals(-1, ToyVpnService.shardIndex(truncated, 22, 4));
+        assertEquals(-1, ToyVpnService.shardIndex(new byte[19], 19, 4));
+    }
+
+    // Run with -Dbenchmarks=true
+    @Test
+    public void benchmarkDispatch() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+        Random random = new Random(5);
+        byte[][] packets = new byte[4096][];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = i % 2 == 0
+                ? ipv4(6, randomBytes(random, 4), random.nextInt(65536), randomBytes(random, 4), 443, 0)
+                : ipv6(17, randomBytes(random, 16), random.nextInt(65536), randomBytes(random, 16), 53);
+        }
+        int sink = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            int iterations = 10_000_000;
+            for (int i = 0; i < iterations; i++) {
+                byte[] packet = packets[i & (packets.length - 1)];
+                sink += ToyVpnService.shardIndex(packet, packet.length, 4);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("shardIndex: %.1f ns/packet%n", (double) elapsed / iterations);
+        }
+        assertTrue(sink >= 0);
+    }
+
+    // Run with -Dbenchmarks=true. The test plays the dispatcher for real
+    // shards forwarding to loopback sockets, with the same flows for every
+    // shard count.
+    @Test
+    public void benchmarkShardScaling() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int shards = 1; shards <= cores; shards++) {
+            double udp = packetsPerSecond(shards, false);
+            double tcp = packetsPerSecond(shards, true);
+            System.out.printf("%d shards: UDP %.0f packets/s, TCP %.0f packets/s%n", shards, udp, tcp);
+        }
+    }
+
+    // UDP datagrams of 500 bytes or in-order TCP segments of 1000 bytes,
+    // round robin over the flows
+    private static double packetsPerSecond(int shardCount, boolean tcp) throws Exception {
+        ShardHarness harness = new ShardHarness(shardCount, ToyVpnService.DEFAULT_MTU);
+        ServerSocketChannel tcpServer = null;
+        DatagramChannel udpServer = null;
+        try {
+            int port;
+            long[] seqs = new long[SCALING_FLOWS];
+            long[] acks = new long[SCALING_FLOWS];
+            if (tcp) {
+                tcpServer = ServerSocketChannel.open();
+                tcpServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                port = tcpServer.socket().getLocalPort();
+                startTcpSink(tcpServer);
+                for (int f = 0; f < SCALING_FLOWS; f++) {
+                    seqs[f] = 1000;
+                    dispatch(harness, harness.tcpPacket(41000 + f, port, seqs[f]++, 0, 0x02, 0));
+                    byte[] synAck = harness.writer.awaitTcp(0x12);
+                    acks[f] = ShardHarness.readUnsignedInt(synAck, 24) + 1;
+                    dispatch(harness, harness.tcpPacket(41000 + f, port, seqs[f], acks[f], 0x10, 0));
+                }
+                ShardHarness.await("handshakes", () -> processed(harness) == 2 * SCALING_FLOWS);
+            } else {
+                // Nobody reads: the kernel drops what does not fit, after the shard's work is done
+                udpServer = DatagramChannel.open();
+                udpServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                port = udpServer.socket().getLocalPort();
+            }
+            harness.writer.capture = false;
+
+            long base = processed(harness);
+            long start = System.nanoTime();
+            for (int i = 0; i < SCALING_PACKETS; i++) {
+                int f = i % SCALING_FLOWS;
+                ByteBuffer packet;
+                if (tcp) {
+                    packet = harness.tcpPacket(41000 + f, port, seqs[f], acks[f], 0x18, 1000);
+                    seqs[f] += 1000;
+                } else {
+                    packet = harness.udpPacket(41000 + f, port, 500);
+                }
+                if ((i & 63) == 0) {
+                    while (i - (processed(harness) - base) > (long) shardCount * SCALING_BACKLOG) {
+                        Thread.yield();
+                    }
+                }
+                dispatch(harness, packet);
+            }
+            ShardHarness.await("shards to catch up", () -> processed(harness) - base == SCALING_PACKETS);
+            long elapsed = System.nanoTime() - start;
+            return SCALING_PACKETS * 1e9 / elapsed;
+        } finally {
+            harness.stop();
+            if (tcpServer != null) tcpServer.close();
+            if (udpServer != null) udpServer.close();
+        }
+    }
+
+    private static void dispatch(ShardHarness harness, ByteBuffer packet) {
+        int index = ToyVpnService.shardIndex(packet.array(), packet.limit(), harness.shards.length);
+        harness.shards[index].enqueue(packet);
+    }
+
+    private static long processed(ShardHarness harness) {
+        long total = 0;
+        for (FlowShard shard : harness.shards) {
+            total += shard.getPacketsProcessed();
+        }
+        return total;
+    }
+
+    // Accepts the benchmark's flows and discards whatever they upload
+    private static void startTcpSink(ServerSocketChannel server) {
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    SocketChannel peer = server.accept();
+                    Thread reader = new Thread(() -> {
+                        ByteBuffer buffer = ByteBuffer.allocate(65536);
+                        try {
+                            while (peer.read(buffer) >= 0) {
+                                buffer.clear();
+                            }
+                            peer.close();
+                        } catch (Exception ignored) {
+                        }
+                    });
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (Exception ignored) {
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    // flagsOffset: the IPv4 flags + fragment offset word
+    private static byte[] ipv4(int protocol, byte[] source, int sourcePort, byte[] dest, int destPort,
+                               int flagsOffset) {
+        ByteBuffer packet = ByteBuffer.allocate(28);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) 28);
+        packet.putShort((short) 0).putShort((short) flagsOffset);
+        packet.put((byte) 64).put((byte) protocol).putShort((short) 0);
+        packet.put(source).put(dest);
+        packet.putShort((short) sourcePort).putShort((short) destPort);
+        return packet.array();
+    }
+
+    private static byte[] ipv6(int protocol, byte[] source, int sourcePort, byte[] dest, int destPort) {
+        ByteBuffer packet = ByteBuffer.allocate(48);
+        packet.putInt(0x60000000).putShort((short) 8).put((byte) protocol).put((byte) 64);
+        packet.put(source).put(dest);
+        packet.putShort((short) sourcePort).putShort((short) destPort);
+        return packet.array();
+    }
+}
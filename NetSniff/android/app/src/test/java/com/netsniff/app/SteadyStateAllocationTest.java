@@ -0,0 +1,133 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Once forwarding is warm, neither the TUN packets handed to a shard nor the
+// packets it builds toward the app should need a new buffer
+public class SteadyStateAllocationTest {
+    private static final int BATCH = 16;
+    private static final int WARMUP_BATCHES = 20;
+    private static final int BATCHES = 300;
+    private static final int SEGMENT = 1000;
+
+    private ShardHarness harness;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new ShardHarness(1, ToyVpnService.DEFAULT_MTU);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.stop();
+    }
+
+    @Test
+    public void tcpUploadAllocatesNothingOnceWarm() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        int port = server.socket().getLocalPort();
+        AtomicLong received = new AtomicLong();
+        Thread sink = new Thread(() -> {
+            try (SocketChannel peer = server.accept()) {
+                ByteBuffer buffer = ByteBuffer.allocate(65536);
+                int n;
+                while ((n = peer.read(buffer)) >= 0) {
+                    received.addAndGet(n);
+                    buffer.clear();
+                }
+            } catch (Exception ignored) {
+            }
+        });
+        sink.start();
+
+        FlowShard shard = harness.shards[0];
+        long seq = 1000;
+        shard.enqueue(harness.tcpPacket(40000, port, seq, 0, 0x02, 0));
+        byte[] synAck = harness.writer.awaitTcp(0x12);
+        long ack = ShardHarness.readUnsignedInt(synAck, 24) + 1;
+        seq++;
+        shard.enqueue(harness.tcpPacket(40000, port, seq, ack, 0x10, 0));
+        harness.writer.capture = false;
+
+        long sent = 0;
+        long warmAllocations = -1;
+        ByteBuffer[] batch = new ByteBuffer[BATCH];
+        for (int b = 0; b < WARMUP_BATCHES + BATCHES; b++) {
+            if (b == WARMUP_BATCHES) warmAllocations = harness.pool.getAllocations();
+            for (int i = 0; i < BATCH; i++) {
+                batch[i] = harness.tcpPacket(40000, port, seq, ack, 0x18, SEGMENT);
+                seq += SEGMENT;
+            }
+            for (ByteBuffer packet : batch) {
+                shard.enqueue(packet);
+            }
+            sent += BATCH * SEGMENT;
+            long expected = sent;
+            ShardHarness.await("upload to reach the server", () -> received.get() == expected);
+            ShardHarness.await("packets back in the pool", () -> harness.pool.getOutstanding() == 0);
+        }
+
+        assertEquals("buffers allocated after warm-up", warmAllocations, harness.pool.getAllocations());
+        assertEquals(0, shard.getInboxDrops());
+        // Queued packets were charged by capacity, and grown socket buffers
+        // stay charged while the flow lives; closing it gives all of it back
+        shard.enqueue(harness.tcpPacket(40000, port, seq, ack, 0x04, 0));
+        ShardHarness.await("memory budget released",
+                           () -> harness.memory.available() == MemoryBudget.DEFAULT_LIMIT);
+        server.close();
+    }
+
+    @Test
+    public void udpEchoAllocatesNothingOnceWarm() throws Exception {
+        DatagramSocket echo = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = echo.getLocalPort();
+        Thread responder = new Thread(() -> {
+            byte[] data = new byte[2048];
+            DatagramPacket datagram = new DatagramPacket(data, data.length);
+            try {
+                while (true) {
+                    datagram.setLength(data.length);
+                    echo.receive(datagram);
+                    echo.send(datagram);
+                }
+            } catch (Exception ignored) {
+            }
+        });
+        responder.start();
+
+        FlowShard shard = harness.shards[0];
+        harness.writer.capture = false;
+        long warmAllocations = -1;
+        ByteBuffer[] batch = new ByteBuffer[BATCH];
+        for (int b = 0; b < WARMUP_BATCHES + BATCHES; b++) {
+            if (b == WARMUP_BATCHES) warmAllocations = harness.pool.getAllocations();
+            long before = harness.writer.getPacketsSubmitted();
+            for (int i = 0; i < BATCH; i++) {
+                batch[i] = harness.udpPacket(40001, port, 500);
+            }
+            for (ByteBuffer packet : batch) {
+                shard.enqueue(packet);
+            }
+            ShardHarness.await("echoes back at the TUN",
+                               () -> harness.writer.getPacketsSubmitted() == before + BATCH);
+            ShardHarness.await("packets back in the pool", () -> harness.pool.getOutstanding() == 0);
+        }
+
+        assertEquals("buffers allocated after warm-up", warmAllocations, harness.pool.getAllocations());
+        echo.close();
+    }
+}
@@ -0,0 +1,69 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class TcpRetransmitTest {
+    private ShardHarness harness;
+    private ServerSocketChannel server;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new ShardHarness(1, ToyVpnService.DEFAULT_MTU);
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.stop();
+        server.close();
+    }
+
+    @Test
+    public void retransmissionCarriesTheCurrentAckAndWindow() throws Exception {
+        int port = server.socket().getLocalPort();
+        FlowShard shard = harness.shards[0];
+        long seq = 5000;
+        shard.enqueue(harness.tcpPacket(40002, port, seq, 0, 0x02, 0));
+        byte[] synAck = harness.writer.awaitTcp(0x12);
+        long ack = ShardHarness.readUnsignedInt(synAck, 24) + 1;
+        seq++;
+        shard.enqueue(harness.tcpPacket(40002, port, seq, ack, 0x10, 0));
+
+        // The remote sends something the app never acknowledges
+        SocketChannel remote = server.accept();
+        remote.write(ByteBuffer.wrap("hello".getBytes()));
+        byte[] first = harness.writer.awaitTcp(0x18);
+        assertEquals(ack, ShardHarness.readUnsignedInt(first, 24));
+        assertEquals(seq, ShardHarness.readUnsignedInt(first, 28));
+
+        // Meanwhile the app's own data moves the ACK on
+        shard.enqueue(harness.tcpPacket(40002, port, seq, ack, 0x18, 100));
+        seq += 100;
+
+        byte[] resent;
+        do {
+            resent = harness.writer.awaitTcp(0x18);
+        } while (ShardHarness.readUnsignedInt(resent, 24) != ack);
+        assertEquals("same payload", first.length, resent.length);
+        assertEquals(seq, ShardHarness.readUnsignedInt(resent, 28));
+        for (int i = 40; i < first.length; i++) {
+            assertEquals(first[i], resent[i]);
+        }
+        int tcpLength = resent.length - 20;
+        int sum = PacketUtilsTest.naiveSum(resent, 12, 8) + 6 + tcpLength
+            + PacketUtilsTest.naiveSum(resent, 20, tcpLength);
+        assertEquals("checksum", 0xFFFF, PacketUtils.checksumFold(sum));
+        remote.close();
+    }
+}
@@ -0,0 +1,138 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TimerWheelTest {
+    private static final long START = 1_000_000;
+
+    @Test
+    public void timerFiresOnceItsDeadlinePasses() {
+        TimerWheel wheel = new TimerWheel(START);
+        TimerWheel.Timer timer = new TimerWheel.Timer("flow");
+        wheel.schedule(timer, START + 100);
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+
+        wheel.advance(START + 90, expired);
+        assertTrue(expired.isEmpty());
+        assertTrue(timer.isScheduled());
+
+        wheel.advance(START + 100, expired);
+        assertEquals(1, expired.size());
+        assertSame("flow", expired.get(0).owner);
+        assertFalse(timer.isScheduled());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void pastDeadlineFiresOnTheNextTick() {
+        TimerWheel wheel = new TimerWheel(START);
+        TimerWheel.Timer timer = new TimerWheel.Timer(null);
+        wheel.schedule(timer, START - 5000);
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+        wheel.advance(START, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(START + TimerWheel.TICK_MS, expired);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void rescheduleMovesAndCancelRemoves() {
+        TimerWheel wheel = new TimerWheel(START);
+        TimerWheel.Timer moved = new TimerWheel.Timer(null);
+        TimerWheel.Timer cancelled = new TimerWheel.Timer(null);
+        wheel.schedule(moved, START + 100);
+        wheel.schedule(moved, START + 5000);
+        wheel.schedule(cancelled, START + 200);
+        assertEquals(2, wheel.size());
+        wheel.cancel(cancelled);
+        wheel.cancel(cancelled);
+        assertEquals(1, wheel.size());
+
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+        wheel.advance(START + 4990, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(START + 5000, expired);
+        assertEquals(1, expired.size());
+        assertSame(moved, expired.get(0));
+    }
+
+    @Test
+    public void distantTimersCascadeDownToTheirTick() {
+        TimerWheel wheel = new TimerWheel(START);
+        long[] delays = {650, 41_000, 2_700_000, 7_200_000};  // one per level
+        TimerWheel.Timer[] timers = new TimerWheel.Timer[delays.length];
+        for (int i = 0; i < delays.length; i++) {
+            timers[i] = new TimerWheel.Timer(i);
+            wheel.schedule(timers[i], START + delays[i]);
+        }
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+        for (int i = 0; i < delays.length; i++) {
+            wheel.advance(START + delays[i] - TimerWheel.TICK_MS, expired);
+            assertEquals(i, expired.size());
+            wheel.advance(START + delays[i], expired);
+            assertEquals(i + 1, expired.size());
+            assertSame(timers[i], expired.get(i));
+        }
+    }
+
+    @Test
+    public void randomTimersExpireWithinATickOfTheirDeadline() {
+        Random random = new Random(7);
+        TimerWheel wheel = new TimerWheel(START);
+        int count = 5000;
+        TimerWheel.Timer[] timers = new TimerWheel.Timer[count];
+        long[] deadlines = new long[count];
+        for (int i = 0; i < count; i++) {
+            timers[i] = new TimerWheel.Timer(i);
+            deadlines[i] = START + TimerWheel.TICK_MS + (long) (random.nextDouble() * 600_000);
+            wheel.schedule(timers[i], deadlines[i]);
+        }
+        // Some flows see activity and push their timer out, some close
+        for (int i = 0; i < count; i += 3) {
+            deadlines[i] += random.nextInt(60_000);
+            wheel.schedule(timers[i], deadlines[i]);
+        }
+        for (int i = 1; i < count; i += 7) {
+            wheel.cancel(timers[i]);
+            deadlines[i] = -1;
+        }
+
+        boolean[] fired = new boolean[count];
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+        long now = START;
+        while (wheel.size() > 0) {
+            long next = now + 1 + random.nextInt(3000);
+            wheel.advance(next, expired);
+            for (TimerWheel.Timer timer : expired) {
+                int i = (Integer) timer.owner;
+                assertFalse(fired[i]);
+                assertTrue("fired early", deadlines[i] / TimerWheel.TICK_MS <= next / TimerWheel.TICK_MS);
+                assertTrue("fired late", deadlines[i] / TimerWheel.TICK_MS > now / TimerWheel.TICK_MS);
+                fired[i] = true;
+            }
+            expired.clear();
+            now = next;
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(deadlines[i] >= 0, fired[i]);
+        }
+    }
+
+    @Test
+    public void selectTimeoutNeverSleepsPastTheNextTimer() {
+        TimerWheel wheel = new TimerWheel(START);
+        assertEquals(Long.MAX_VALUE, wheel.millisUntilNext(START));
+        wheel.schedule(new TimerWheel.Timer(null), START + 250);
+        long wait = wheel.millisUntilNext(START);
+        assertTrue(wait > 0 && wait <= 250);
+        wheel.clear();
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.millisUntilNext(START));
+    }
+}
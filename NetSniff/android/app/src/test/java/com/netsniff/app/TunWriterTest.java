@@ -0,0 +1,103 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class TunWriterTest {
+    private static final int DIRECT = 200;
+    private static final int HEAP = 60;
+
+    private BufferPool pool;
+    private RecordingWriter writer;
+    private Thread thread;
+
+    // Stands in for the TUN: keeps each packet and consumes it like a write
+    private static class RecordingWriter extends TunWriter {
+        final List<byte[]> written = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingWriter(BufferPool pool) {
+            super(new FileDescriptor(), pool);
+        }
+
+        @Override
+        void writePacket(ByteBuffer packet) {
+            byte[] copy = new byte[packet.remaining()];
+            packet.get(copy);
+            written.add(copy);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        pool = new BufferPool(ToyVpnService.DEFAULT_MTU, true);
+        writer = new RecordingWriter(pool);
+        thread = new Thread(writer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.stop();
+        thread.interrupt();
+        thread.join();
+    }
+
+    @Test
+    public void queuedPacketsDrainInBatchesAndReturnToThePool() throws Exception {
+        // Queued before the writer starts, so it finds more than one batch waiting
+        for (int i = 0; i < DIRECT; i++) {
+            writer.submit(packet(pool.acquire(100), i));
+        }
+        for (int i = 0; i < HEAP; i++) {
+            writer.submit(packet(pool.acquirePacket(), DIRECT + i));
+        }
+        ByteBuffer kept = packet(pool.acquire(100), DIRECT + HEAP);
+        BufferPool.Shared shared = pool.share(kept);
+        writer.submit(shared.retain());
+        int total = DIRECT + HEAP + 1;
+        long warmAllocations = pool.getAllocations();
+
+        thread.start();
+        ShardHarness.await("the queue to drain", () -> writer.getPacketsWritten() == total);
+
+        assertTrue(writer.getBatches() >= 2);
+        assertTrue(writer.getBatches() < total);
+        assertEquals(total * 100L, writer.getBytesWritten());
+        for (int i = 0; i < total; i++) {
+            assertEquals((byte) i, writer.written.get(i)[0]);
+        }
+
+        // The shared packet is ready to be written again, and still ours
+        assertEquals(0, kept.position());
+        assertEquals(100, kept.limit());
+        assertEquals(1, pool.getOutstanding());
+        shared.release();
+        assertEquals(0, pool.getOutstanding());
+
+        // Everything went back to a free list, so borrowing again allocates nothing
+        for (int i = 0; i < DIRECT; i++) {
+            pool.acquire(100);
+        }
+        for (int i = 0; i < HEAP; i++) {
+            pool.acquirePacket();
+        }
+        assertEquals(warmAllocations, pool.getAllocations());
+    }
+
+    // A flipped 100-byte packet whose first byte is its index
+    private static ByteBuffer packet(ByteBuffer buffer, int index) {
+        for (int i = 0; i < 100; i++) {
+            buffer.put((byte) (i == 0 ? index : i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
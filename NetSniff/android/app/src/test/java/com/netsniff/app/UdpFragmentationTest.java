@@ -0,0 +1,68 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class UdpFragmentationTest {
+    private static final int MTU = 9000;
+    private static final long START = 1_000_000;
+
+    private ShardHarness harness;
+    private DatagramChannel server;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new ShardHarness(1, MTU);
+        server = DatagramChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.stop();
+        server.close();
+    }
+
+    @Test
+    public void fragmentsFillTheConfiguredMtu() throws Exception {
+        int port = server.socket().getLocalPort();
+        harness.shards[0].enqueue(harness.udpPacket(40003, port, 10));
+        SocketAddress app = server.receive(ByteBuffer.allocate(100));
+
+        byte[] payload = new byte[20000];
+        new Random(1).nextBytes(payload);
+        server.send(ByteBuffer.wrap(payload), app);
+
+        FragmentReassembler reassembler = new FragmentReassembler(new TimerWheel(START));
+        byte[] whole = null;
+        boolean first = true;
+        while (whole == null) {
+            byte[] packet = harness.writer.packets.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no fragment", packet);
+            if (packet[9] != 17) continue;
+            assertTrue(FragmentReassembler.isFragment(packet));
+            assertTrue(packet.length <= MTU);
+            if (first) {
+                // As much as an 8-byte aligned IP payload within the MTU allows
+                assertEquals(20 + ((MTU - 20) & ~7), packet.length);
+                first = false;
+            }
+            whole = reassembler.add(packet, packet.length, START);
+        }
+        assertEquals(28 + payload.length, whole.length);
+        for (int i = 0; i < payload.length; i++) {
+            assertEquals(payload[i], whole[28 + i]);
+        }
+    }
+}
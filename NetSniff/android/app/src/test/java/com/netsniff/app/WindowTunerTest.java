@@ -0,0 +1,64 @@
+package com.netsniff.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class WindowTunerTest {
+    private static final long START = 1_000_000;
+    private static final long BUDGET = 32L * 1024 * 1024;
+
+    @Test
+    public void roundTripCoversTheSlowerLeg() {
+        WindowTuner tuner = new WindowTuner(START);
+        tuner.setRtt(20);
+        assertFalse(tuner.addUploaded(1000, START + 10));
+        assertTrue(tuner.addUploaded(1000, START + 20));
+
+        // The app's ACKs come back slower than the remote's
+        tuner.setAppRtt(80);
+        assertFalse(tuner.addUploaded(1000, START + 50));
+        assertTrue(tuner.addUploaded(1000, START + 80));
+    }
+
+    @Test
+    public void growsToTwiceWhatMovedInARoundTrip() {
+        WindowTuner tuner = new WindowTuner(START);
+        tuner.setRtt(50);
+        tuner.addUploaded(100_000, START + 50);
+        tuner.addDownloaded(300_000, START + 50);
+        assertTrue(tuner.endRoundTrip(START + 50, BUDGET));
+        assertEquals(200_000, tuner.uploadBuffer);
+        assertEquals(600_000, tuner.downloadBuffer);
+        assertEquals(200_000 + 600_000 - 2 * WindowTuner.INITIAL_BUFFER, tuner.grownBytes());
+
+        // A slower round never shrinks the buffers
+        tuner.addUploaded(1000, START + 100);
+        assertFalse(tuner.endRoundTrip(START + 100, BUDGET));
+        assertEquals(200_000, tuner.uploadBuffer);
+    }
+
+    @Test
+    public void growthIsLimitedByTheBudget() {
+        WindowTuner tuner = new WindowTuner(START);
+        tuner.setRtt(50);
+        tuner.addUploaded(1_000_000, START + 50);
+        tuner.addDownloaded(1_000_000, START + 50);
+        assertTrue(tuner.endRoundTrip(START + 50, 100_000));
+        assertEquals(100_000, tuner.grownBytes());
+
+        tuner.addUploaded(1_000_000, START + 100);
+        assertFalse(tuner.endRoundTrip(START + 100, 0));
+        assertEquals(100_000, tuner.grownBytes());
+    }
+
+    @Test
+    public void neverPastTheMaximum() {
+        WindowTuner tuner = new WindowTuner(START);
+        tuner.setRtt(50);
+        tuner.addDownloaded(100L * 1024 * 1024, START + 50);
+        assertTrue(tuner.endRoundTrip(START + 50, BUDGET));
+        assertEquals(WindowTuner.MAX_BUFFER, tuner.downloadBuffer);
+        assertEquals(WindowTuner.INITIAL_BUFFER, tuner.uploadBuffer);
+    }
+}
@@ -0,0 +1,52 @@
+import { ToyVpn } from '../plugins/ToyVpn';
+
+export interface MtuBenchmarkResult {
+  mtu: number;
+  bytes: number;              // TUN bytes both ways during the run
+  cpuMillis: number;          // process CPU time during the run
+  bytesPerCpuSecond: number;
+}
+
+// Restart the VPN at each MTU and download url through it repeatedly for
+// durationMs, comparing TUN bytes per CPU-second. CPU is the whole process,
+// so the fetch itself is counted too: a large plain-HTTP file keeps that
+// share small and the same for every run. A development tool, kept out of the
+// plugin's exports; import it from a debug build or the console.
+export async function runMtuBenchmark(
+  url: string,
+  mtus: number[] = [1500, 9000, 65535],
+  durationMs = 10000,
+): Promise<MtuBenchmarkResult[]> {
+  const results: MtuBenchmarkResult[] = [];
+  for (const mtu of mtus) {
+    await ToyVpn.stopVpn();
+    await ToyVpn.startVpn({ mtu });
+    // One untimed fetch so the run starts with connections and DNS warm
+    await download(url);
+
+    const before = (await ToyVpn.getEngineStats()).throughput;
+    const end = Date.now() + durationMs;
+    while (Date.now() < end) {
+      await download(url);
+    }
+    const after = (await ToyVpn.getEngineStats()).throughput;
+    if (!before || !after) throw new Error('VPN is not running at MTU ' + mtu);
+
+    const bytes = after.bytes - before.bytes;
+    const cpuMillis = after.cpuMillis - before.cpuMillis;
+    results.push({
+      mtu: after.mtu,
+      bytes,
+      cpuMillis,
+      bytesPerCpuSecond: cpuMillis > 0 ? Math.round((bytes * 1000) / cpuMillis) : 0,
+    });
+  }
+  await ToyVpn.stopVpn();
+  console.table(results);
+  return results;
+}
+
+async function download(url: string): Promise<void> {
+  const response = await fetch(url, { cache: 'no-store' });
+  await response.arrayBuffer();
+}
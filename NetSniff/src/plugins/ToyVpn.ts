@@ -21,6 +21,122 @@ export interface PacketBatchData {
   remaining: number;
 }
 
+export interface ShardStats {
+  index: number;
+  packets: number;
+  inboxDrops: number;       // TUN packets dropped because the shard's inbox was full
+  tcpFlows: number;
+  udpFlows: number;
+  expiredFlows: number;
+  windowStalls: number;
+  writerStalls: number;
+  memoryStalls: number;
+  memoryDrops: number;
+  retransmits: number;
+  fastRetransmits: number;
+  outOfOrderSegments: number;
+  cutThroughBytes: number;  // upload bytes written straight from the TUN packet
+  coalescedAcks: number;    // ACKs saved by delaying or piggybacking them
+  windowGrowths: number;    // times a flow's buffers were grown by auto-tuning
+  windowHistory: string[];  // recently closed tuned flows: "key rtt=Nms +<ms> up/downK ..."
+  dnsForwarded: number;     // DNS misses sent through the shared upstream sockets
+  dnsRetries: number;
+  dnsTimeouts: number;      // queries given up after every attempt
+  dnsMismatched: number;    // replies dropped for not repeating the question exactly
+  dnsRotations: number;     // upstream sockets replaced for a new source port
+  dnsWins: number[];        // answers taken from each resolver, 8.8.8.8 then 1.1.1.1
+  fragmentsSent: number;    // IPv4 fragments of oversized UDP datagrams written to the TUN
+  fragmentsReceived: number;
+  datagramsReassembled: number;
+  fragmentDrops: number;    // fragments lost to overlaps, the memory cap or the reassembly timeout
+}
+
+export interface WriterStats {
+  packets: number;
+  bytes: number;
+  batches: number;
+  dropped: number;
+  queued: number;
+  avgBatch: number;
+  maxBatch: number;
+  batchHistogram: number[];  // batch sizes 1, 2-4, 5-16, 17-64, 65+
+  avgFlushMicros: number;
+  maxFlushMicros: number;
+  drainRatePps: number;
+}
+
+export interface PoolStats {
+  allocations: number;  // stays flat once forwarding reaches steady state
+  hits: number;
+  oversized: number;
+  outstanding: number;
+  classes: { size: number; allocations: number; free: number }[];
+  packets: { size: number; allocations: number; free: number };  // heap buffers TUN packets are read into
+}
+
+export interface MemoryStats {
+  used: number;  // bytes held by flows: pending uploads, out-of-order data, unacked segments
+  peak: number;
+  limit: number;
+}
+
+export interface DnsStats {
+  entries: number;  // cached answers, at most 1024
+  hits: number;     // queries answered without going upstream
+  misses: number;
+  stored: number;   // upstream answers taken into the cache
+}
+
+export interface ThroughputStats {
+  mtu: number;
+  bytes: number;              // TUN bytes both ways since the VPN started
+  cpuMillis: number;          // process CPU time over the same period
+  bytesPerCpuSecond: number;
+}
+
+export interface RttStats {
+  address: string;
+  sent: number;
+  replies: number;
+  lost: number;          // no reply within 5 s
+  minMs?: number;
+  avgMs?: number;
+  maxMs?: number;
+  histogram: number[];   // replies per bucket of IcmpStats.bucketLimitsMs, plus one for slower
+}
+
+export interface IcmpStats {
+  sent: number;          // echo requests forwarded through the ping sockets
+  replies: number;
+  timeouts: number;
+  dropped: number;       // no ping socket for the IP version, or too many outstanding
+  bucketLimitsMs: number[];
+  destinations: RttStats[];  // most recently pinged last, at most 64
+}
+
+export interface UidStats {
+  source: 'connectivity' | 'proc';  // getConnectionOwnerUid on Android 10+, /proc/net before
+  resolved: number;    // new flows whose owning app was found
+  corrected: number;   // of those, flows the foreground-app guess had wrong
+  unresolved: number;  // flows left with the guess
+  dropped: number;     // lookups skipped because the queue was full
+  queued: number;
+}
+
+export interface EngineStats {
+  running: boolean;
+  shardCount: number;
+  packets: number;
+  shards: ShardStats[];
+  writer?: WriterStats;
+  pool?: PoolStats;
+  memory?: MemoryStats;
+  dns?: DnsStats;
+  throughput?: ThroughputStats;
+  icmp?: IcmpStats;
+  uid?: UidStats;
+}
+
 export interface ToyVpnPlugin {
   requestVpnPermission(): Promise<{ status: string; message?: string }>;
   
@@ -28,6 +144,9 @@ export interface ToyVpnPlugin {
     serverAddress?: string; 
     serverPort?: string; 
     sharedSecret?: string;
+    shards?: number;
+    raceDns?: boolean;  // send DNS misses to both resolvers and take the first answer (default true)
+    mtu?: number;       // TUN MTU, 1500 (default) up to 65535; MSS follows it
   }): Promise<{ status: string; message?: string }>;
   
   stopVpn(): Promise<{ status: string; message?: string }>;
@@ -59,6 +178,9 @@ export interface ToyVpnPlugin {
   removeFromBlacklist(options: { domain: string }): Promise<{ ok: boolean }>;
   setBlacklistEnabled(options: { domain: string; enabled: boolean }): Promise<{ ok: boolean }>;
 
+  // ================= ENGINE METHODS =================
+  getEngineStats(): Promise<EngineStats>;
+
 }
 
 const ToyVpn = registerPlugin<ToyVpnPlugin>('ToyVpn', {
@@ -1,6 +1,6 @@
 import { WebPlugin } from '@capacitor/core';
 import type { PluginListenerHandle } from '@capacitor/core';
-import type { ToyVpnPlugin, PacketData } from './ToyVpn';
+import type { ToyVpnPlugin, PacketData, EngineStats } from './ToyVpn';
 
 export class ToyVpnWeb extends WebPlugin implements ToyVpnPlugin {
   async requestVpnPermission(): Promise<{ status: string; message?: string }> {
@@ -71,4 +71,11 @@ export class ToyVpnWeb extends WebPlugin implements ToyVpnPlugin {
     return { ok: false };
   }
 
+  // ==================== ENGINE METHODS (web fallbacks) ====================
+
+  async getEngineStats(): Promise<EngineStats> {
+    console.warn('ToyVpnWeb: getEngineStats() not implemented for web.');
+    return { running: false, shardCount: 0, packets: 0, shards: [] };
+  }
+
 }
\ No newline at end of file